@@ -19,32 +19,38 @@
 package org.apache.sling.launchpad.base.impl;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Dictionary;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.jar.JarFile;
-import java.util.jar.Manifest;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.felix.framework.Logger;
 import org.apache.sling.launchpad.api.LaunchpadContentProvider;
 import org.apache.sling.launchpad.api.StartupMode;
 import org.apache.sling.launchpad.base.impl.bootstrapcommands.BootstrapCommandFile;
+import org.apache.sling.launchpad.base.shared.FileTransfer;
 import org.apache.sling.launchpad.base.shared.SharedConstants;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
 import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
 import org.osgi.framework.Version;
 import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.wiring.FrameworkWiring;
 
 /**
  * The <code>BootstrapInstaller</code> class is installed into the OSGi
@@ -65,6 +71,14 @@ class BootstrapInstaller {
      */
     private static final String SCHEME = "slinginstall:";
 
+    /**
+     * The Bundle location scheme (protocol) used for bundles installed by
+     * reference to their file in the startup directory (value is
+     * "reference:"). The framework reads such bundles from the referenced
+     * file instead of copying them into its bundle cache.
+     */
+    static final String REFERENCE_SCHEME = "reference:";
+
     /**
      * The root location in which the bundles are looked up for installation
      * (value is "resources/").
@@ -110,6 +124,12 @@ class BootstrapInstaller {
      */
     private static final int STARTLEVEL_NONE = -1;
 
+    /**
+     * The number of seconds to wait for a bundle refresh to complete when
+     * deploying bundles into the running framework (value is 60).
+     */
+    private static final long REFRESH_TIMEOUT = 60;
+
     /**
      * The name of the bootstrap commands file
      */
@@ -133,14 +153,44 @@ class BootstrapInstaller {
     /** The startup mode. */
     private final StartupMode startupMode;
 
+    /** Whether bundle files are installed by reference. */
+    private final boolean installReference;
+
+    /** Whether bundles of the jar/war are installed without copying them. */
+    private final boolean installDirect;
+
+    /** Whether bundles of the jar/war are copied to the bundle pack. */
+    private final boolean installPack;
+
+    /** The bundle files changed since the last startup, if known. */
+    private final StartupChangeSet changeSet;
+
+    /** The journal of the running installation, if any. */
+    private InstallJournal journal;
+
     BootstrapInstaller(final BundleContext bundleContext,
             final Logger logger,
             final LaunchpadContentProvider resourceProvider,
             final StartupMode startupMode) {
+        this(bundleContext, logger, resourceProvider, startupMode, null);
+    }
+
+    BootstrapInstaller(final BundleContext bundleContext,
+            final Logger logger,
+            final LaunchpadContentProvider resourceProvider,
+            final StartupMode startupMode,
+            final StartupChangeSet changeSet) {
         this.startupMode = startupMode;
+        this.changeSet = changeSet;
         this.logger = logger;
         this.resourceProvider = resourceProvider;
         this.bundleContext = bundleContext;
+        this.installReference = Boolean.valueOf(
+            bundleContext.getProperty(SharedConstants.SLING_INSTALL_REFERENCE));
+        this.installDirect = Boolean.valueOf(
+            bundleContext.getProperty(SharedConstants.SLING_INSTALL_DIRECT));
+        this.installPack = Boolean.valueOf(
+            bundleContext.getProperty(SharedConstants.SLING_INSTALL_PACK));
     }
 
     /**
@@ -152,35 +202,77 @@ class BootstrapInstaller {
      * 1) Copy all bundles from enclosed resources (jar/war) to
      *   ${sling.home}/startup. This gives something like
      *   ${sling.home}/startup/0, /1, /10, /15, ...
-     *   Existing files are only replaced if the files
-     *   enclosed in the Sling launchpad jar/war file are newer.
+     *   Existing files are only replaced if the contents of the files
+     *   enclosed in the Sling launchpad jar/war file differ.
      * 2) Scan ${sling.home}/startup for bundles to install
      *   in the same way as today the enclosed resources
      *   are scanned directly.
      *   So you could place your bundles in that structure and get them installed
      *   at the requested start level (0 being "default bundle start level").
+     *
+     * If {@link SharedConstants#SLING_INSTALL_DIRECT} is set, step 1 is
+     * skipped and the enclosed bundles are installed directly from the
+     * jar/war unless overridden by a bundle in ${sling.home}/startup.
+     * Otherwise, if {@link SharedConstants#SLING_INSTALL_PACK} is set, the
+     * bundles are copied to the single {@link BundlePack} file
+     * ${sling.home}/startup/bundles.pack instead of the start level
+     * directories, which still hold bundles overriding the packed ones.
+     *
+     * The bundles are not installed right away: first an {@link InstallPlan}
+     * is computed, which is then executed and written to
+     * ${sling.home}/conf/install-plan.tsv. If
+     * {@link SharedConstants#SLING_INSTALL_DRYRUN} is set, nothing is copied,
+     * installed or started and only the plan is written.
+     *
+     * The steps of the installation are recorded in an {@link InstallJournal}
+     * in ${sling.home}/conf, which allows an interrupted installation to be
+     * resumed instead of being repeated.
+     *
+     * If the {@link StartupChangeSet} of the bundle files changed since the
+     * last startup is known, the jar/war is known to be unchanged: steps 1
+     * and 2 only consider the added and changed bundle files.
      */
     boolean install() throws IOException {
-
-        String launchpadHome = bundleContext.getProperty(SharedConstants.SLING_LAUNCHPAD);
-        if (launchpadHome == null) {
-            launchpadHome = bundleContext.getProperty(SharedConstants.SLING_HOME);
+        try {
+            return installBundles();
+        } finally {
+            if (this.journal != null) {
+                this.journal.close();
+                this.journal = null;
+            }
         }
+    }
+
+    private boolean installBundles() throws IOException {
+
+        final String launchpadHome = getLaunchpadHome();
         final File slingStartupDir = getSlingStartupDir(launchpadHome);
 
+        // a dry run only plans the installation and writes the report
+        final boolean dryRun = Boolean.valueOf(
+            bundleContext.getProperty(SharedConstants.SLING_INSTALL_DRYRUN));
+
         // execute bootstrap commands, if needed
-        final BootstrapCommandFile cmd = new BootstrapCommandFile(logger,
-            new File(launchpadHome, BOOTSTRAP_CMD_FILENAME));
-        boolean requireRestart = cmd.execute(bundleContext);
+        boolean requireRestart = false;
+        if (dryRun) {
+            logger.log(Logger.LOG_INFO, "Install dry run: not executing bootstrap commands");
+        } else {
+            final BootstrapCommandFile cmd = new BootstrapCommandFile(logger,
+                new File(launchpadHome, BOOTSTRAP_CMD_FILENAME));
+            requireRestart = cmd.execute(bundleContext);
+        }
 
         boolean shouldInstall = false;
 
         // see if the loading of bundles from the package is forced
         final String fpblString = bundleContext.getProperty(SharedConstants.FORCE_PACKAGE_BUNDLE_LOADING);
+        final StartupChangeSet changes;
         if (Boolean.valueOf(fpblString)) {
             shouldInstall = true;
+            changes = null;
         } else {
             shouldInstall = this.startupMode != StartupMode.RESTART;
+            changes = this.changeSet;
         }
 
         if (shouldInstall) {
@@ -190,10 +282,30 @@ class BootstrapInstaller {
             String dpblString = bundleContext.getProperty(SharedConstants.DISABLE_PACKAGE_BUNDLE_LOADING);
             Boolean disablePackageBundleLoading = Boolean.valueOf(dpblString);
 
+            // bundles of the jar/war are installed from the startup location
+            // unless they are installed directly from the jar/war
+            final StartupDigestIndex digestIndex = new StartupDigestIndex(logger,
+                slingStartupDir, new File(launchpadHome, DirectoryUtil.PATH_CONF));
+            final List<BundleSource> archiveBundles = new ArrayList<BundleSource>();
+
+            // record the installation to be able to resume it if interrupted
+            if (!dryRun) {
+                this.journal = openJournal(new File(launchpadHome, DirectoryUtil.PATH_CONF),
+                    digestIndex);
+            }
+
             if (disablePackageBundleLoading) {
                 logger.log(Logger.LOG_INFO, "Package bundle loading is disabled so no bundles will be installed from the resources location in the sling jar/war");
+            } else if (changes != null) {
+                logger.log(Logger.LOG_INFO, "Sling jar/war unchanged, installing changed bundle files only: " + changes);
+                for (final Map.Entry<String, StartupChangeSet.Change> change : changes.getChanges().entrySet()) {
+                    if (change.getValue() == StartupChangeSet.Change.REMOVED) {
+                        logger.log(Logger.LOG_INFO, "Bundle file " + change.getKey()
+                            + " removed, keeping the installed bundle");
+                    }
+                }
             } else {
-                // get the bundles out of the jar/war and copy them to the startup location
+                // get the bundles out of the jar/war
                 Iterator<String> resources = resourceProvider.getChildren(PATH_BUNDLES);
                 while (resources.hasNext()) {
                     String path = resources.next();
@@ -206,18 +318,40 @@ class BootstrapInstaller {
                         // calculate the startlevel of bundles contained
                         int startLevel = getStartLevel(path);
                         if (startLevel != STARTLEVEL_NONE) {
-                            copyBundles(slingStartupDir, path, startLevel);
+                            collectBundles(archiveBundles, path, startLevel);
                         }
                     }
                 }
 
-                // copy old-style core bundles
-                copyBundles(slingStartupDir, PATH_CORE_BUNDLES, STARTLEVEL_CORE_BUNDLES);
-
-                // copy old-style bundles
-                copyBundles(slingStartupDir, PATH_BUNDLES, STARTLEVEL_BUNDLES);
-
-                // done with copying at this point
+                // old-style core bundles
+                collectBundles(archiveBundles, PATH_CORE_BUNDLES, STARTLEVEL_CORE_BUNDLES);
+
+                // old-style bundles
+                collectBundles(archiveBundles, PATH_BUNDLES, STARTLEVEL_BUNDLES);
+
+                if (installDirect) {
+                    logger.log(Logger.LOG_INFO, "Installing " + archiveBundles.size()
+                        + " bundle(s) directly from the sling jar/war");
+                } else if (dryRun) {
+                    // plan with the bundles of the jar/war instead of copying them
+                    for (int i = 0; i < archiveBundles.size(); i++) {
+                        final BundleSource bundle = archiveBundles.get(i);
+                        archiveBundles.set(i, bundle.withCopyTarget(new File(new File(
+                            slingStartupDir, String.valueOf(bundle.getStartLevel())),
+                            bundle.getName())));
+                    }
+                } else if (installPack) {
+                    // copy the changed bundles to the bundle pack
+                    final BundlePack pack = new BundlePack(logger,
+                        new File(slingStartupDir, BundlePack.PACK_FILE));
+                    pack.update(archiveBundles);
+                    archiveBundles.clear();
+                    archiveBundles.addAll(pack.getSources());
+                } else {
+                    // copy the changed bundles to the startup location
+                    copyBundles(archiveBundles, slingStartupDir, digestIndex);
+                    archiveBundles.clear();
+                }
             }
 
             // get the set of all existing (installed) bundles by symbolic name
@@ -230,11 +364,46 @@ class BootstrapInstaller {
             // holds the bundles we install during this processing
             List<Bundle> installed = new LinkedList<Bundle>();
 
-            // get all bundles from the startup location and install them
-            requireRestart |= installBundles(slingStartupDir, bySymbolicName, installed);
+            // plan the installation of all bundles from the startup location
+            final ManifestCache manifestCache = new ManifestCache(logger,
+                new File(launchpadHome, DirectoryUtil.PATH_CONF));
+            final InstallPlan plan;
+            try {
+                plan = plan(slingStartupDir, archiveBundles,
+                    installDirect || installPack || dryRun ? digestIndex : null, manifestCache,
+                    bySymbolicName, changes);
+            } finally {
+                manifestCache.save();
+            }
+            logger.log(Logger.LOG_INFO, "Install plan: " + plan);
+
+            final File report = new File(new File(launchpadHome, DirectoryUtil.PATH_CONF),
+                InstallPlan.REPORT_FILE);
+            if (dryRun) {
+                writeReport(plan, report);
+                logger.log(Logger.LOG_INFO, "Install dry run: no bundles installed, plan written to " + report);
+                return false;
+            }
+
+            if (this.journal != null) {
+                for (final InstallPlan.Step step : plan.getSteps()) {
+                    if (step.getAction() != InstallPlan.Action.SKIP) {
+                        this.journal.record(InstallJournal.Event.PLANNED,
+                            InstallJournal.NO_DIGEST, step.getSource().toString());
+                    }
+                }
+            }
+
+            // install and update the bundles
+            requireRestart |= execute(plan, installed);
+            writeReport(plan, report);
 
             // start all the newly installed bundles (existing bundles are not started if they are stopped)
             startBundles(installed);
+
+            if (this.journal != null) {
+                this.journal.complete();
+            }
         }
 
         // due to the upgrade of a framework extension bundle, the framework
@@ -249,6 +418,106 @@ class BootstrapInstaller {
         return requireRestart;
     }
 
+    /**
+     * Installs and updates the bundles changed in the startup directory while
+     * the framework is running. The bundles are planned and installed as
+     * during startup, the updated bundles are refreshed at once and the newly
+     * installed bundles are started afterwards.
+     *
+     * @return <code>true</code> if a system bundle fragment was updated which
+     *      requires the framework to restart.
+     */
+    boolean deploy() {
+        final String launchpadHome = getLaunchpadHome();
+        final File slingStartupDir = getSlingStartupDir(launchpadHome);
+        final File confDir = new File(launchpadHome, DirectoryUtil.PATH_CONF);
+        final StartupDigestIndex digestIndex = this.installDirect || this.installPack
+                ? new StartupDigestIndex(logger, slingStartupDir, confDir)
+                : null;
+
+        final Map<String, Bundle> bySymbolicName = new HashMap<String, Bundle>();
+        for (final Bundle bundle : bundleContext.getBundles()) {
+            bySymbolicName.put(bundle.getSymbolicName(), bundle);
+        }
+
+        final ManifestCache manifestCache = new ManifestCache(logger, confDir);
+        final InstallPlan plan;
+        try {
+            plan = plan(slingStartupDir, new ArrayList<BundleSource>(), digestIndex,
+                manifestCache, bySymbolicName, null);
+        } finally {
+            manifestCache.save();
+        }
+        if (plan.getBatches().isEmpty()) {
+            logger.log(Logger.LOG_DEBUG, "No bundles to deploy from " + slingStartupDir);
+            return false;
+        }
+        logger.log(Logger.LOG_INFO, "Deploy plan: " + plan);
+
+        final List<Bundle> installed = new LinkedList<Bundle>();
+        final boolean requireRestart = execute(plan, installed);
+        writeReport(plan, new File(confDir, InstallPlan.REPORT_FILE));
+
+        // refresh the updated bundles in one go before starting new bundles
+        final List<Bundle> updated = new ArrayList<Bundle>();
+        for (final InstallPlan.Step step : plan.getSteps()) {
+            if (step.getAction() == InstallPlan.Action.UPDATE) {
+                updated.add(step.getInstalledBundle());
+            }
+        }
+        refreshBundles(updated);
+
+        startBundles(installed);
+
+        if (requireRestart) {
+            logger.log(Logger.LOG_WARNING,
+                "Framework extension(s) have been updated, the framework has to be restarted");
+        }
+        return requireRestart;
+    }
+
+    /**
+     * Refreshes the bundles and the bundles depending on them, waiting for
+     * the refresh to complete.
+     */
+    private void refreshBundles(final Collection<Bundle> bundles) {
+        if (bundles.isEmpty()) {
+            return;
+        }
+        final FrameworkWiring fw = bundleContext.getBundle(
+            Constants.SYSTEM_BUNDLE_LOCATION).adapt(FrameworkWiring.class);
+        final CountDownLatch done = new CountDownLatch(1);
+        fw.refreshBundles(bundles, new FrameworkListener() {
+            @Override
+            public void frameworkEvent(final FrameworkEvent event) {
+                done.countDown();
+            }
+        });
+        try {
+            if (!done.await(REFRESH_TIMEOUT, TimeUnit.SECONDS)) {
+                logger.log(Logger.LOG_WARNING, "Refresh of " + bundles.size()
+                    + " bundle(s) did not complete within " + REFRESH_TIMEOUT + " seconds");
+            }
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the startup directory in sling home, creating it if needed.
+     */
+    File getStartupDirectory() {
+        return getSlingStartupDir(getLaunchpadHome());
+    }
+
+    private String getLaunchpadHome() {
+        String launchpadHome = bundleContext.getProperty(SharedConstants.SLING_LAUNCHPAD);
+        if (launchpadHome == null) {
+            launchpadHome = bundleContext.getProperty(SharedConstants.SLING_HOME);
+        }
+        return launchpadHome;
+    }
+
     //---------- Startup folder maintenance
 
     /**
@@ -286,18 +555,15 @@ class BootstrapInstaller {
     }
 
     /**
-     * Copies the bundles from the given parent location in the jar/war
-     * to the startup directory in the sling.home based on the startlevel
-     * e.g. {sling.home}/startup/{startLevel}
+     * Adds the bundles from the given parent location in the jar/war to the
+     * list of bundles to install at the given start level.
      */
-    private void copyBundles(File slingStartupDir, String parent, int startLevel) {
+    private void collectBundles(List<BundleSource> bundles, String parent, int startLevel) {
 
         // set default start level
         if (startLevel < 0) {
             startLevel = 0;
         }
-        // this will be set and created on demand
-        File startUpLevelDir = null;
 
         Iterator<String> res = resourceProvider.getChildren(parent);
         while (res.hasNext()) {
@@ -305,39 +571,67 @@ class BootstrapInstaller {
             String path = res.next();
 
             if (DirectoryUtil.isBundle(path)) {
-                // try to access the bundle file, ignore if not possible
-                InputStream ins = resourceProvider.getResourceAsStream(path);
-                if (ins == null) {
-                    continue;
-                }
+                bundles.add(BundleSource.forResource(resourceProvider, path, startLevel));
+            }
+        }
+    }
 
-                try {
-                    // ensure we have a directory for the startlevel only when
-                    // needed
-                    if (startUpLevelDir == null) {
-                        startUpLevelDir = getOrCreateDirectory(slingStartupDir,
-                            String.valueOf(startLevel));
-                    }
+    /**
+     * Copies the bundles from the jar/war to the startup directory in the
+     * sling.home based on the startlevel e.g. {sling.home}/startup/{startLevel}
+     */
+    private void copyBundles(List<BundleSource> bundles, File slingStartupDir,
+            StartupDigestIndex digestIndex) {
+        final BundleCopier copier = new BundleCopier(logger, resourceProvider,
+            getCopyThreads(), digestIndex, this.journal);
+        final Map<Integer, File> levelDirs = new HashMap<Integer, File>();
+        for (final BundleSource bundle : bundles) {
+            // ensure we have a directory for the startlevel only when needed
+            File startUpLevelDir = levelDirs.get(bundle.getStartLevel());
+            if (startUpLevelDir == null) {
+                startUpLevelDir = getOrCreateDirectory(slingStartupDir,
+                    String.valueOf(bundle.getStartLevel()));
+                levelDirs.put(bundle.getStartLevel(), startUpLevelDir);
+            }
+            copier.add(bundle.getResource(), new File(startUpLevelDir, bundle.getName()));
+        }
 
-                    // copy over the bundle based on the startlevel
-                    String bundleFileName = extractFileName(path);
-                    File bundleFile = new File(startUpLevelDir, bundleFileName);
-                    try {
-                        copyStreamToFile(ins, bundleFile);
-                    } catch (IOException e) {
-                        // should this fail here or just log a warning?
-                        throw new RuntimeException("Failure copying file from "
-                            + path + " to startup dir (" + startUpLevelDir
-                            + ") and name (" + bundleFileName + "): " + e, e);
-                    }
-                } finally {
-                    try {
-                        ins.close();
-                    } catch (IOException ignore) {
-                    }
-                }
+        // now actually copy the changed files
+        try {
+            copier.copy();
+        } finally {
+            digestIndex.save();
+        }
+        logger.log(Logger.LOG_INFO, "File copy statistics: " + FileTransfer.getStatistics());
+    }
+
+    /**
+     * Returns the number of threads to use for copying the bundles from the
+     * jar/war to the startup directory.
+     *
+     * @see SharedConstants#SLING_INSTALL_COPY_THREADS
+     */
+    private int getCopyThreads() {
+        final String threads = bundleContext.getProperty(SharedConstants.SLING_INSTALL_COPY_THREADS);
+        if (!isBlank(threads)) {
+            try {
+                return Integer.parseInt(threads.trim());
+            } catch (final NumberFormatException nfe) {
+                logger.log(Logger.LOG_WARNING, "Ignoring invalid value " + threads
+                    + " for " + SharedConstants.SLING_INSTALL_COPY_THREADS);
             }
         }
+        return BundleCopier.getDefaultWorkers();
+    }
+
+    /**
+     * Returns the number of threads to use for reading bundle manifests and
+     * starting bundles.
+     *
+     * @see SharedConstants#SLING_INSTALL_THREADS
+     */
+    private int getInstallThreads() {
+        return BundleStarter.getThreads(logger, bundleContext);
     }
 
     /**
@@ -349,44 +643,53 @@ class BootstrapInstaller {
         if (fromStream == null || toFile == null) {
             throw new IllegalArgumentException("fromStream and toFile must not be null");
         }
-        if (! toFile.exists()) {
-            toFile.createNewFile();
-        }
         // overwrite
-        OutputStream out = new FileOutputStream(toFile);
-        try {
-            byte[] buf = new byte[1024];
-            int len;
-            while ((len = fromStream.read(buf)) > 0) {
-                out.write(buf, 0, len);
-            }
-        } finally {
-            out.close();
-        }
+        FileTransfer.copy(fromStream, toFile);
     }
 
     /**
-     * Install the Bundles from files found in startup directory under the
-     * level directories, this will only install bundles which are new or updated
-     * and will skip over them otherwise
+     * Plans the installation of the Bundles from files found in startup
+     * directory under the level directories and of the bundles to be
+     * installed directly from the jar/war. Only bundles which are new or
+     * updated are planned to be installed, all others are skipped.
      *
-     * @param context The <code>BundleContext</code> used to install the new Bundles.
+     * @param slingStartupDir The startup directory containing the start level
+     *            directories with the bundle files to install.
+     * @param archiveBundles The bundles to install directly from the jar/war
+     *            or the bundle pack. A bundle file in the startup directory overrides a bundle
+     *            with the same symbolic name in this list.
+     * @param digestIndex The index of the bundle files copied from the
+     *            jar/war to the startup directory. If not <code>null</code>
+     *            these copies are skipped as the bundles are taken directly
+     *            from the jar/war.
+     * @param manifestCache The cache providing the manifest information of
+     *            the bundle files.
      * @param currentBundles The currently installed Bundles indexed by their
-     *            Bundle location.
-     * @param parent The path to the location in which to look for bundle files to
-     *            install. Only resources whose name ends with one of the known bundle extensions are
-     *            considered for installation.
-     * @param installed The list of Bundles installed by this method. Each
-     *            Bundle successfully installed is added to this list.
+     *            symbolic name.
+     * @param changeSet The bundle files changed since the last startup. If
+     *            not <code>null</code> unchanged bundle files are not
+     *            considered.
      *
-     * @return <code>true</code> if a system bundle fragment was updated which
-     *      requires the framework to restart.
+     * @return The install plan
      */
-    private boolean installBundles(final File slingStartupDir,
+    private InstallPlan plan(final File slingStartupDir,
+            final List<BundleSource> archiveBundles,
+            final StartupDigestIndex digestIndex,
+            final ManifestCache manifestCache,
             final Map<String, Bundle> currentBundles,
-            final List<Bundle> installed) {
+            final StartupChangeSet changeSet) {
+        final InstallPlan plan = new InstallPlan();
+
+        // files to be replaced by copies from the jar/war
+        final Set<File> copyTargets = new HashSet<File>();
+        for (final BundleSource bundle : archiveBundles) {
+            if (bundle.getCopyTarget() != null) {
+                copyTargets.add(bundle.getCopyTarget());
+            }
+        }
 
-        boolean requireRestart = false;
+        // collect all bundle files with their start level first
+        final Map<File, BundleSource> bundleFiles = new LinkedHashMap<File, BundleSource>();
         File[] directories = slingStartupDir.listFiles(DirectoryUtil.DIRECTORY_FILTER);
         for (File levelDir : directories) {
             // get startlevel from dir name
@@ -399,141 +702,514 @@ class BootstrapInstaller {
             }
 
             // iterate through all files in the startlevel dir
-            File[] bundleFiles = levelDir.listFiles(DirectoryUtil.BUNDLE_FILE_FILTER);
-            for (File bundleFile : bundleFiles) {
-                requireRestart |= installBundle(bundleFile, startLevel,
-                    currentBundles, installed);
+            File[] levelFiles = levelDir.listFiles(DirectoryUtil.BUNDLE_FILE_FILTER);
+            for (File bundleFile : levelFiles) {
+                if (copyTargets.contains(bundleFile)) {
+                    continue;
+                }
+                if (changeSet != null && changeSet.getChange(dirName, bundleFile.getName()) == null) {
+                    continue;
+                }
+                final BundleSource source = BundleSource.forFile(bundleFile, startLevel);
+                if (digestIndex != null && digestIndex.getValid(bundleFile) != null) {
+                    plan.add(skip(source, null, "Copied from the sling jar/war"));
+                    continue;
+                }
+                bundleFiles.put(bundleFile, source);
             }
         }
 
-        return requireRestart;
+        // get the manifest information of all files at once
+        final Map<File, ManifestInfo> fileManifests = manifestCache.get(
+            bundleFiles.keySet(), getInstallThreads());
+
+        final Map<BundleSource, ManifestInfo> manifests = new LinkedHashMap<BundleSource, ManifestInfo>();
+        if (!archiveBundles.isEmpty()) {
+            final Map<String, File> overrides = new HashMap<String, File>();
+            for (final Map.Entry<File, ManifestInfo> info : fileManifests.entrySet()) {
+                overrides.put(info.getValue().getCleanSymbolicName(), info.getKey());
+            }
+            for (final BundleSource bundle : archiveBundles) {
+                final ManifestInfo info = readManifest(bundle);
+                final File override = info != null ? overrides.get(info.getCleanSymbolicName()) : null;
+                if (override != null) {
+                    plan.add(skip(bundle, info, "Overridden by " + override));
+                    continue;
+                }
+                manifests.put(bundle, info);
+            }
+        }
+        for (final Map.Entry<File, BundleSource> bundleFile : bundleFiles.entrySet()) {
+            manifests.put(bundleFile.getValue(), fileManifests.get(bundleFile.getKey()));
+        }
+
+        // select a single bundle archive per symbolic name
+        final Map<String, BundleSource> selected = new HashMap<String, BundleSource>();
+        for (final Map.Entry<BundleSource, ManifestInfo> bundle : manifests.entrySet()) {
+            final String name = bundle.getValue() != null ? bundle.getValue().getCleanSymbolicName() : null;
+            if (name != null) {
+                final BundleSource current = selected.get(name);
+                if (current == null || isPreferred(bundle.getValue(), manifests.get(current))) {
+                    selected.put(name, bundle.getKey());
+                }
+            }
+        }
+
+        for (final Map.Entry<BundleSource, ManifestInfo> bundle : manifests.entrySet()) {
+            final ManifestInfo manifest = bundle.getValue();
+            final BundleSource winner = manifest != null
+                    ? selected.get(manifest.getCleanSymbolicName())
+                    : null;
+            if (winner != null && winner != bundle.getKey()) {
+                logger.log(Logger.LOG_INFO, "Ignoring " + bundle.getKey()
+                    + ": Superseded by " + winner);
+                plan.add(skip(bundle.getKey(), manifest, "Superseded by " + winner));
+                continue;
+            }
+            plan.add(planBundle(bundle.getKey(), manifest, currentBundles,
+                digestIndex));
+        }
+
+        return plan;
     }
 
     /**
-     * @param bundleJar the jar file for the bundle to install
-     * @param startLevel the start level to use for this bundle
-     * @param context The <code>BundleContext</code> used to install the new Bundles.
+     * Returns <code>true</code> if the candidate bundle archive is to be
+     * installed rather than the current one with the same symbolic name:
+     * the higher version wins and for equal versions the newer
+     * <i>Bnd-LastModified</i> header. Otherwise the current archive, which
+     * has been found first, is kept.
+     */
+    static boolean isPreferred(final ManifestInfo candidate, final ManifestInfo current) {
+        final int compare = parseVersion(candidate.getVersion()).compareTo(
+            parseVersion(current.getVersion()));
+        if (compare != 0) {
+            return compare > 0;
+        }
+        return parseLastModified(candidate.getLastModified()) > parseLastModified(current.getLastModified());
+    }
+
+    private static Version parseVersion(final String version) {
+        try {
+            return Version.parseVersion(version);
+        } catch (final IllegalArgumentException iae) {
+            return Version.emptyVersion;
+        }
+    }
+
+    private static long parseLastModified(final String lastModified) {
+        if (lastModified != null) {
+            try {
+                return Long.parseLong(lastModified.trim());
+            } catch (final NumberFormatException ignore) {
+                // not a valid timestamp
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param source the bundle archive to install
+     * @param manifest the manifest information of the bundle archive or
+     *            <code>null</code> if the manifest cannot be read.
      * @param currentBundles The currently installed Bundles indexed by their
-     *            Bundle location.
-     * @param installed The list of Bundles installed by this method. Each
-     *            Bundle successfully installed is added to this list.
-     * @param startLevelService the service which sets the start level
+     *            symbolic name.
+     * @param digestIndex The index of the bundle files copied from the
+     *            jar/war used to estimate whether the bundle has to be copied
+     *            to the startup directory. May be <code>null</code>.
      *
-     * @return <code>true</code> if a system bundle fragment was updated which
-     *      requires the framework to restart.
+     * @return The step installing, updating or skipping the bundle.
      */
-    private boolean installBundle(final File bundleJar,
-            final int startLevel,
+    private InstallPlan.Step planBundle(final BundleSource source,
+            final ManifestInfo manifest,
             final Map<String, Bundle> currentBundles,
-            final List<Bundle> installed) {
-        // get the manifest for the bundle information
-        Manifest manifest = getManifest(bundleJar);
+            final StartupDigestIndex digestIndex) {
+        // the manifest for the bundle information
         if (manifest == null) {
-            logger.log(Logger.LOG_ERROR, "Ignoring " + bundleJar
+            logger.log(Logger.LOG_ERROR, "Ignoring " + source
                 + ": Cannot read manifest");
-            return false; // SHORT CIRCUIT
+            return skip(source, null, "Cannot read manifest"); // SHORT CIRCUIT
         }
 
         // ensure a symbolic name in the jar file
-        String symbolicName = getBundleSymbolicName(manifest);
+        String symbolicName = manifest.getSymbolicName();
         if (symbolicName == null) {
-            logger.log(Logger.LOG_ERROR, "Ignoring " + bundleJar
+            logger.log(Logger.LOG_ERROR, "Ignoring " + source
                 + ": Missing " + Constants.BUNDLE_SYMBOLICNAME
                 + " in manifest");
-            return false; // SHORT CIRCUIT
+            return skip(source, manifest, "Missing "
+                + Constants.BUNDLE_SYMBOLICNAME + " in manifest"); // SHORT CIRCUIT
         }
 
         // check for an installed Bundle with the symbolic name
-        Bundle installedBundle = currentBundles.get(symbolicName);
+        Bundle installedBundle = currentBundles.get(manifest.getCleanSymbolicName());
         if (ignore(installedBundle, manifest)) {
-            logger.log(Logger.LOG_INFO, "Ignoring " + bundleJar
+            logger.log(Logger.LOG_INFO, "Ignoring " + source
                 + ": More recent version already installed");
-            return false; // SHORT CIRCUIT
+            return new InstallPlan.Step(source, manifest, installedBundle,
+                InstallPlan.Action.SKIP, "More recent version already installed",
+                null, 0); // SHORT CIRCUIT
+        }
+
+        // estimate the bytes to copy to the startup directory and the
+        // bytes the framework copies into its bundle cache
+        final long size = source.getSize();
+        long copyBytes = 0;
+        final File copyTarget = source.getCopyTarget();
+        if (copyTarget != null && (digestIndex == null
+                || digestIndex.getValid(copyTarget) == null
+                || copyTarget.length() != size)) {
+            copyBytes = size;
+        }
+
+        // bundle files may be installed by reference
+        final String referenceLocation = getReferenceLocation(source);
+        if (installedBundle == null) {
+            final String location = referenceLocation != null
+                    ? referenceLocation
+                    : SCHEME + source.getName();
+            return new InstallPlan.Step(source, manifest, null,
+                InstallPlan.Action.INSTALL, "Not installed", location,
+                estimate(size, copyBytes, referenceLocation == null));
+        }
+
+        // an interrupted installation may already have updated the bundle
+        if (this.journal != null && this.journal.hasCommitted(source.toString())
+                && this.journal.isCommitted(source.toString(), digest(source))) {
+            logger.log(Logger.LOG_INFO, "Ignoring " + source
+                + ": Updated before the installation was interrupted");
+            return new InstallPlan.Step(source, manifest, installedBundle,
+                InstallPlan.Action.SKIP, "Updated before interruption", null, 0);
+        }
+
+        final String location = referenceLocation != null
+            && referenceLocation.equals(installedBundle.getLocation())
+                ? referenceLocation
+                : null;
+        final String installedVersion = installedBundle.getHeaders().get(Constants.BUNDLE_VERSION);
+        final String reason = Version.parseVersion(manifest.getVersion()).equals(
+            Version.parseVersion(installedVersion))
+                ? "Newer SNAPSHOT"
+                : "Version " + manifest.getVersion() + " replaces " + installedVersion;
+        return new InstallPlan.Step(source, manifest, installedBundle,
+            InstallPlan.Action.UPDATE, reason, location,
+            estimate(size, copyBytes, location == null));
+    }
+
+    private static InstallPlan.Step skip(final BundleSource source,
+            final ManifestInfo manifest, final String reason) {
+        return new InstallPlan.Step(source, manifest, null,
+            InstallPlan.Action.SKIP, reason, null, 0);
+    }
+
+    /**
+     * Returns the estimated number of bytes written for a bundle of the
+     * given size or -1 if the size is not known.
+     */
+    private static long estimate(final long size, final long copyBytes,
+            final boolean copyToCache) {
+        if (size < 0 || copyBytes < 0) {
+            return -1;
+        }
+        return copyBytes + (copyToCache ? size : 0);
+    }
+
+    /**
+     * Executes the install and update steps of the plan in batches by start
+     * level in ascending order.
+     *
+     * @param plan The install plan
+     * @param installed The list of Bundles installed by this method. Each
+     *            Bundle successfully installed is added to this list.
+     *
+     * @return <code>true</code> if a system bundle fragment was updated which
+     *      requires the framework to restart.
+     */
+    private boolean execute(final InstallPlan plan, final List<Bundle> installed) {
+        boolean requireRestart = false;
+        for (final Map.Entry<Integer, List<InstallPlan.Step>> batch : plan.getBatches().entrySet()) {
+            final long batchStart = System.currentTimeMillis();
+            long bytes = 0;
+            for (final InstallPlan.Step step : batch.getValue()) {
+                final long start = System.currentTimeMillis();
+                requireRestart |= executeStep(step, installed);
+                step.setTime(System.currentTimeMillis() - start);
+                bytes += Math.max(0, step.getBytes());
+            }
+            logger.log(Logger.LOG_INFO, "Installed " + batch.getValue().size()
+                + " bundle(s) of start level " + batch.getKey() + ", about "
+                + bytes + " bytes, in " + (System.currentTimeMillis() - batchStart) + "ms");
+        }
+        return requireRestart;
+    }
+
+    /**
+     * Installs or updates the bundle of the step.
+     *
+     * @param step The install or update step
+     * @param installed The list of Bundles installed by this method. Each
+     *            Bundle successfully installed is added to this list.
+     *
+     * @return <code>true</code> if a system bundle fragment was updated which
+     *      requires the framework to restart.
+     */
+    private boolean executeStep(final InstallPlan.Step step,
+            final List<Bundle> installed) {
+        final BundleSource source = step.getSource();
+        final Bundle installedBundle = step.getInstalledBundle();
+
+        // bundle files may be installed by reference
+        if (step.isReference()) {
+            return installReference(source, step.getLocation(), installedBundle, installed);
         }
 
         // try to access the JAR file, ignore if not possible
+        final MessageDigest md = StartupDigestIndex.newDigest();
         InputStream ins;
         try {
-            ins = new FileInputStream(bundleJar);
-        } catch (FileNotFoundException e) {
+            ins = new DigestInputStream(source.openStream(), md);
+        } catch (IOException e) {
             return false; // SHORT CIRCUIT
         }
 
         final boolean requireRestart;
-        if (installedBundle != null) {
+        try {
+            if (installedBundle != null) {
 
-            // if the installed bundle is an extension fragment we have to
-            // restart the framework after completing the installation
-            // or upgrade of all new bundles
-            requireRestart = isSystemBundleFragment(installedBundle);
+                // if the installed bundle is an extension fragment we have to
+                // restart the framework after completing the installation
+                // or upgrade of all new bundles
+                requireRestart = isSystemBundleFragment(installedBundle);
 
-            try {
-                installedBundle.update(ins);
-                logger.log(Logger.LOG_INFO, "Bundle "
-                    + installedBundle.getSymbolicName()
-                    + " updated from " + bundleJar);
+                try {
+                    installedBundle.update(ins);
+                    logger.log(Logger.LOG_INFO, "Bundle "
+                        + installedBundle.getSymbolicName()
+                        + " updated from " + source);
+                    setStartLevel(installedBundle, source.getStartLevel());
+                    record(InstallJournal.Event.UPDATED, md, source);
+                } catch (BundleException be) {
+                    logger.log(Logger.LOG_ERROR, "Bundle update from "
+                        + source + " failed", be);
+                }
+
+            } else {
 
-                // optionally set the start level
-                if (startLevel > 0) {
-                    installedBundle.adapt(BundleStartLevel.class).setStartLevel(startLevel);
+                // restart is not required for any bundle installation at this
+                // stage
+                requireRestart = false;
+
+                // install the JAR file as a bundle
+                String location = step.getLocation();
+                try {
+                    Bundle theBundle = bundleContext.installBundle(location, ins);
+                    logger.log(Logger.LOG_INFO, "Bundle "
+                        + theBundle.getSymbolicName() + " installed from "
+                        + location);
+
+                    // finally add the bundle to the list for later start
+                    installed.add(theBundle);
+                    setStartLevel(theBundle, source.getStartLevel());
+                    record(InstallJournal.Event.INSTALLED, md, source);
+
+                } catch (BundleException be) {
+                    logger.log(Logger.LOG_ERROR,
+                        "Bundle installation from " + location + " failed", be);
                 }
-            } catch (BundleException be) {
-                logger.log(Logger.LOG_ERROR, "Bundle update from "
-                    + bundleJar + " failed", be);
             }
+        } finally {
+            try {
+                ins.close();
+            } catch (IOException ignore) {
+            }
+        }
 
-        } else {
-
-            // restart is not required for any bundle installation at this
-            // stage
-            requireRestart = false;
+        return requireRestart;
+    }
 
-            // install the JAR file as a bundle
-            String path = bundleJar.getPath();
-            String location = SCHEME
-                + path.substring(path.lastIndexOf('/') + 1);
+    /**
+     * Installs or updates the bundle file by reference. An installed bundle
+     * is only updated by reference if it has been installed by reference to
+     * the same file: the framework keeps the original location of a bundle
+     * and re-reads the referenced file on update.
+     *
+     * @return <code>true</code> if a system bundle fragment was updated which
+     *      requires the framework to restart.
+     */
+    private boolean installReference(final BundleSource source,
+            final String location,
+            final Bundle installedBundle,
+            final List<Bundle> installed) {
+        if (installedBundle != null) {
             try {
-                Bundle theBundle = bundleContext.installBundle(location, ins);
+                installedBundle.update();
                 logger.log(Logger.LOG_INFO, "Bundle "
-                    + theBundle.getSymbolicName() + " installed from "
-                    + location);
+                    + installedBundle.getSymbolicName()
+                    + " updated from " + location);
+                setStartLevel(installedBundle, source.getStartLevel());
+                record(InstallJournal.Event.UPDATED, null, source);
+            } catch (BundleException be) {
+                logger.log(Logger.LOG_ERROR, "Bundle update from "
+                    + location + " failed", be);
+            }
+            return isSystemBundleFragment(installedBundle);
+        }
 
-                // finally add the bundle to the list for later start
-                installed.add(theBundle);
+        try {
+            Bundle theBundle = bundleContext.installBundle(location);
+            logger.log(Logger.LOG_INFO, "Bundle "
+                + theBundle.getSymbolicName() + " installed from "
+                + location);
+            installed.add(theBundle);
+            setStartLevel(theBundle, source.getStartLevel());
+            record(InstallJournal.Event.INSTALLED, null, source);
+        } catch (BundleException be) {
+            logger.log(Logger.LOG_ERROR,
+                "Bundle installation from " + location + " failed", be);
+        }
+        return false;
+    }
 
-                // optionally set the start level
-                if (startLevel > 0) {
-                    theBundle.adapt(BundleStartLevel.class).setStartLevel(startLevel);
+    /**
+     * Opens the install journal, seeding the digest index with the files
+     * copied by an interrupted installation. Returns <code>null</code> if
+     * the journal cannot be written.
+     */
+    private InstallJournal openJournal(final File confDir,
+            final StartupDigestIndex digestIndex) {
+        final InstallJournal journal = new InstallJournal(logger, confDir);
+        if (journal.isResuming()) {
+            logger.log(Logger.LOG_INFO, "Resuming interrupted installation recorded in "
+                + new File(confDir, InstallJournal.JOURNAL_FILE));
+            for (final Map.Entry<String, String> copied : journal.getCopied().entrySet()) {
+                final File file = new File(copied.getKey());
+                if (file.isFile() && digestIndex.getValid(file) == null) {
+                    digestIndex.put(file, copied.getValue());
                 }
+            }
+        }
+        try {
+            journal.open();
+            return journal;
+        } catch (final IOException ioe) {
+            logger.log(Logger.LOG_WARNING, "Cannot write install journal, "
+                + "an interrupted installation will be repeated: " + ioe);
+            return null;
+        }
+    }
 
-            } catch (BundleException be) {
-                logger.log(Logger.LOG_ERROR,
-                    "Bundle installation from " + location + " failed", be);
+    /**
+     * Records an installed or updated bundle in the install journal. If the
+     * bundle has not been read through the digest, the digest is computed
+     * from the source.
+     */
+    private void record(final InstallJournal.Event event, final MessageDigest md,
+            final BundleSource source) {
+        if (this.journal != null) {
+            final String digest = md != null
+                    ? StartupDigestIndex.toHex(md.digest())
+                    : digest(source);
+            this.journal.record(event, digest, source.toString());
+        }
+    }
+
+    /**
+     * Returns the digest of the bundle or <code>null</code> if the bundle
+     * cannot be read.
+     */
+    private String digest(final BundleSource source) {
+        InputStream ins = null;
+        try {
+            ins = source.openStream();
+            return StartupDigestIndex.digest(ins);
+        } catch (final IOException ioe) {
+            return null;
+        } finally {
+            if (ins != null) {
+                try {
+                    ins.close();
+                } catch (IOException ignore) {
+                }
             }
         }
+    }
 
-        return requireRestart;
+    /**
+     * Returns the reference location for the bundle file or
+     * <code>null</code> if the bundle is not to be installed by reference.
+     */
+    private String getReferenceLocation(final BundleSource source) {
+        final File file = source.getFile() != null ? source.getFile() : source.getCopyTarget();
+        if (!this.installReference || file == null) {
+            return null;
+        }
+        return REFERENCE_SCHEME + file.getAbsoluteFile().toURI();
     }
 
     /**
-     * Starts the Bundles in the <code>bundles</code> list. If the framework
-     * provides an active <code>StartLevel</code> service, the start levels of
-     * the Bundles is first set to <em>1</em>.
+     * Sets the start level of the bundle if the level is positive.
      */
-    private void startBundles(final List<Bundle> bundles) {
+    private void setStartLevel(final Bundle bundle, final int startLevel) {
+        if (startLevel > 0) {
+            bundle.adapt(BundleStartLevel.class).setStartLevel(startLevel);
+        }
+    }
 
-        // start all bundles
-        for (final Bundle bundle : bundles) {
-            try {
-                if (!isFragment(bundle)) {
-                    bundle.start();
+    /**
+     * Returns the manifest information of a bundle in the jar/war or the
+     * bundle pack or <code>null</code> if the manifest cannot be read.
+     */
+    private ManifestInfo readManifest(final BundleSource source) {
+        if (source.getManifest() != null) {
+            return source.getManifest();
+        }
+        InputStream ins = null;
+        try {
+            ins = source.openStream();
+            return ManifestInfo.read(ins);
+        } catch (IOException e) {
+            logger.log(Logger.LOG_WARNING,
+                "Could not get inputstream from resource (" + source + "):" + e);
+        } finally {
+            if (ins != null) {
+                try {
+                    ins.close();
+                } catch (IOException ignore) {
                 }
-            } catch (final BundleException be) {
-                logger.log(Logger.LOG_ERROR, "Bundle "
-                    + bundle.getSymbolicName() + " could not be started", be);
             }
         }
+        return null;
+    }
 
+    /**
+     * Writes the install plan report, logging any failure.
+     */
+    private void writeReport(final InstallPlan plan, final File report) {
+        try {
+            plan.write(report);
+        } catch (final IOException ioe) {
+            logger.log(Logger.LOG_WARNING, "Cannot write install plan " + report, ioe);
+        }
+    }
+
+    /**
+     * Starts the Bundles in the <code>bundles</code> list using the
+     * {@link BundleStarter}, which groups the bundles by start level and
+     * starts independent bundles of an active start level concurrently.
+     */
+    private void startBundles(final List<Bundle> bundles) {
+        final long start = System.currentTimeMillis();
+        final Map<Bundle, Long> times = new BundleStarter(logger,
+            bundleContext, getInstallThreads()).start(bundles);
+        if (this.journal != null) {
+            for (final Bundle bundle : times.keySet()) {
+                this.journal.record(InstallJournal.Event.STARTED,
+                    InstallJournal.NO_DIGEST, bundle.getLocation());
+            }
+        }
+        logger.log(Logger.LOG_INFO, "Started " + times.size() + " of "
+            + bundles.size() + " bundle(s) in "
+            + (System.currentTimeMillis() - start) + "ms");
     }
 
     private int getStartLevel(final String path) {
@@ -564,67 +1240,24 @@ class BootstrapInstaller {
 
     // ---------- Bundle JAR file information
 
-    /**
-     * Returns the Manifest from the JAR file in the given resource provided by
-     * the resource provider or <code>null</code> if the resource does not
-     * exists or is not a JAR file or has no Manifest.
-     *
-     * @param jarPath The path to the JAR file provided by the resource provider
-     *            of this instance.
-     */
-    private Manifest getManifest(final File jar) {
-        JarFile jarFile = null;
-        try {
-            jarFile = new JarFile(jar, false);
-            return jarFile.getManifest();
-        } catch (IOException e) {
-            logger.log(Logger.LOG_WARNING,
-                "Could not get inputstream from file (" + jar + "):" + e);
-        } finally {
-            if (jarFile != null) {
-                try {
-                    jarFile.close();
-                } catch (IOException ignore) {
-                }
-            }
-        }
-        return null;
-    }
-
-    /**
-     * Returns the <i>Bundle-SymbolicName</i> header from the given manifest or
-     * <code>null</code> if no such header exists.
-     * <p>
-     * Note that bundles are not allowed to have no symbolic name any more.
-     * Therefore a bundle without a symbolic name header should not be
-     * installed.
-     *
-     * @param manifest The Manifest from which to extract the header.
-     */
-    static String getBundleSymbolicName(final Manifest manifest) {
-        return manifest.getMainAttributes().getValue(
-            Constants.BUNDLE_SYMBOLICNAME);
-    }
-
     /**
      * Checks whether the installed bundle is at the same version (or more
      * recent) than the bundle described by the given manifest.
      *
      * @param installedBundle The bundle currently installed in the framework
-     * @param manifest The Manifest describing the bundle version potentially
-     *            updating the installed bundle
+     * @param manifest The Manifest information describing the bundle version
+     *            potentially updating the installed bundle
      * @return <code>true</code> if the manifest does not describe a bundle with
      *         a higher version number.
      */
-    private boolean ignore(final Bundle installedBundle, final Manifest manifest) {
+    private boolean ignore(final Bundle installedBundle, final ManifestInfo manifest) {
 
         // the bundle is not installed yet, so we have to install it
         if (installedBundle == null) {
             return false;
         }
 
-        String versionProp = manifest.getMainAttributes().getValue(
-            Constants.BUNDLE_VERSION);
+        String versionProp = manifest.getVersion();
         Version newVersion = Version.parseVersion(versionProp);
 
         String installedVersionProp = installedBundle.getHeaders().get(
@@ -644,29 +1277,19 @@ class BootstrapInstaller {
         return newVersion.compareTo(installedVersion) <= 0;
     }
 
-    /**
-     * Returns <code>true</code> if the bundle must be assumed to be a fragment
-     * according to its <code>Fragment-Host</code> header.
-     */
-    private static boolean isFragment(final Bundle bundle) {
-        Dictionary<?, ?> headerMap = bundle.getHeaders();
-        return headerMap.get(Constants.FRAGMENT_HOST) != null;
-    }
-
     /**
      * Determine if the bundle containing the passed manfiest is a newer
      * SNAPSHOT than the already-installed bundle.
      *
      * @param installedBundle the already-installed bundle
-     * @param manifest the manifest of the to-be-installed bundle
+     * @param manifest the manifest information of the to-be-installed bundle
      * @return true if the to-be-installed bundle is newer or if the comparison
      *         fails for some reason
      */
-    private boolean isNewerSnapshot(final Bundle installedBundle, final Manifest manifest) {
+    private boolean isNewerSnapshot(final Bundle installedBundle, final ManifestInfo manifest) {
         String installedDate = installedBundle.getHeaders().get(
             BND_LAST_MODIFIED_HEADER);
-        String toBeInstalledDate = manifest.getMainAttributes().getValue(
-            BND_LAST_MODIFIED_HEADER);
+        String toBeInstalledDate = manifest.getLastModified();
         if (installedDate == null) {
             logger.log(Logger.LOG_DEBUG, String.format(
                 "Currently installed bundle %s doesn't have a %s header",
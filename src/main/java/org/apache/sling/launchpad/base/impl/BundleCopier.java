@@ -0,0 +1,305 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.framework.Logger;
+import org.apache.sling.launchpad.api.LaunchpadContentProvider;
+import org.apache.sling.launchpad.base.shared.FileTransfer;
+
+/**
+ * The <code>BundleCopier</code> copies bundle archives provided by the
+ * {@link LaunchpadContentProvider} into the startup directory.
+ * <p>
+ * Copy requests are first collected with {@link #add(String, File)} and
+ * then executed by {@link #copy()} on a bounded pool of worker threads. If
+ * the same target file is requested more than once, only the last request
+ * is executed. Thus the resulting startup directory is the same as if all
+ * requests had been executed sequentially in the order they were added.
+ * <p>
+ * If a {@link StartupDigestIndex} is supplied, a file is only written if
+ * the digest of the source differs from the digest recorded for the target
+ * file. Files are written with {@link FileTransfer}, which replaces the
+ * target file atomically, and recorded in the {@link InstallJournal} if
+ * supplied.
+ */
+class BundleCopier {
+
+    /** The number of queued copy tasks allowed per worker thread */
+    private static final int QUEUE_SIZE_PER_WORKER = 4;
+
+    private final Logger logger;
+
+    private final LaunchpadContentProvider resourceProvider;
+
+    private final int workers;
+
+    /** The digest index of the startup directory, may be <code>null</code> */
+    private final StartupDigestIndex index;
+
+    /** The install journal recording written files, may be <code>null</code> */
+    private final InstallJournal journal;
+
+    /** The copy requests: target file to resource path, in order added */
+    private final Map<File, String> requests = new LinkedHashMap<File, String>();
+
+    BundleCopier(final Logger logger,
+            final LaunchpadContentProvider resourceProvider,
+            final int workers,
+            final StartupDigestIndex index) {
+        this(logger, resourceProvider, workers, index, null);
+    }
+
+    BundleCopier(final Logger logger,
+            final LaunchpadContentProvider resourceProvider,
+            final int workers,
+            final StartupDigestIndex index,
+            final InstallJournal journal) {
+        this.logger = logger;
+        this.resourceProvider = resourceProvider;
+        this.workers = Math.max(1, workers);
+        this.index = index;
+        this.journal = journal;
+    }
+
+    /**
+     * Returns the number of worker threads to use if none is configured:
+     * the number of available processors, limited to 8.
+     */
+    static int getDefaultWorkers() {
+        return Math.min(8, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Adds a request to copy the resource at <code>path</code> to the
+     * <code>target</code> file. An earlier request for the same target is
+     * replaced.
+     */
+    void add(final String path, final File target) {
+        // remove first to have the entry at the position of the last request
+        this.requests.remove(target);
+        this.requests.put(target, path);
+    }
+
+    /**
+     * Executes all collected copy requests and waits for their completion.
+     * Each failure is logged on its own.
+     *
+     * @return The number of files written, not counting files skipped
+     *      because they are unchanged
+     * @throws RuntimeException if at least one file could not be copied.
+     *      The cause is the failure of the first failed request.
+     */
+    int copy() {
+        if (this.requests.isEmpty()) {
+            return 0;
+        }
+
+        final long start = System.currentTimeMillis();
+        final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        final List<File> targets = new ArrayList<File>();
+
+        final int poolSize = Math.min(this.workers, this.requests.size());
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize,
+            poolSize, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(poolSize * QUEUE_SIZE_PER_WORKER),
+            new NamedThreadFactory("Apache Sling Bundle Copier"),
+            // a full queue makes the submitting thread copy the file itself
+            new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            for (final Map.Entry<File, String> request : this.requests.entrySet()) {
+                final File target = request.getKey();
+                final String path = request.getValue();
+                targets.add(target);
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException {
+                        return copy(path, target);
+                    }
+                }));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // collect the results in request order
+        int copied = 0;
+        int failed = 0;
+        Throwable firstFailure = null;
+        String firstFailureMsg = null;
+        for (int i = 0; i < results.size(); i++) {
+            final File target = targets.get(i);
+            final String path = this.requests.get(target);
+            try {
+                if (waitFor(results.get(i))) {
+                    copied++;
+                }
+            } catch (final ExecutionException ee) {
+                failed++;
+                final String msg = "Failure copying file from " + path
+                    + " to startup dir (" + target.getParentFile()
+                    + ") and name (" + target.getName() + "): " + ee.getCause();
+                logger.log(Logger.LOG_ERROR, msg, ee.getCause());
+                if (firstFailure == null) {
+                    firstFailure = ee.getCause();
+                    firstFailureMsg = msg;
+                }
+            }
+        }
+
+        logger.log(Logger.LOG_INFO, "Copied " + copied + " bundle(s), "
+            + (this.requests.size() - copied - failed) + " unchanged, using "
+            + poolSize + " thread(s) in "
+            + (System.currentTimeMillis() - start) + "ms");
+
+        this.requests.clear();
+
+        if (firstFailure != null) {
+            // should this fail here or just log a warning?
+            throw new RuntimeException(
+                failed + " file(s) failed to copy, first failure: "
+                    + firstFailureMsg, firstFailure);
+        }
+
+        return copied;
+    }
+
+    /**
+     * Copies a single resource to its target file unless the digest index
+     * shows the target file already has the contents of the resource.
+     *
+     * @return <code>true</code> if the target file has been written.
+     */
+    private boolean copy(final String path, final File target) throws IOException {
+        String digest = null;
+        if (this.index != null) {
+            final StartupDigestIndex.Entry entry = this.index.getValid(target);
+            if (entry != null && isSameLength(path, entry.size)) {
+                final InputStream ins = openResource(path);
+                if (ins == null) {
+                    return false;
+                }
+                try {
+                    digest = StartupDigestIndex.digest(ins);
+                } finally {
+                    close(ins);
+                }
+                if (digest.equals(entry.digest)) {
+                    logger.log(Logger.LOG_DEBUG, "Bundle " + path + " unchanged, not copying");
+                    return false;
+                }
+            }
+        }
+
+        final InputStream ins = openResource(path);
+        if (ins == null) {
+            return false;
+        }
+        try {
+            final MessageDigest md = StartupDigestIndex.newDigest();
+            FileTransfer.copy(new DigestInputStream(ins, md), target);
+            digest = StartupDigestIndex.toHex(md.digest());
+        } finally {
+            close(ins);
+        }
+
+        if (this.index != null) {
+            this.index.put(target, digest);
+        }
+        if (this.journal != null) {
+            this.journal.record(InstallJournal.Event.COPIED, digest,
+                target.getAbsolutePath());
+        }
+        return true;
+    }
+
+    /**
+     * Returns <code>false</code> if the length of the resource is known and
+     * differs from the given length.
+     */
+    private boolean isSameLength(final String path, final long length) {
+        final URL url = resourceProvider.getResource(path);
+        if (url != null) {
+            try {
+                final URLConnection conn = url.openConnection();
+                final long resLength = conn.getContentLengthLong();
+                return resLength < 0 || resLength == length;
+            } catch (final IOException ignore) {
+                // length unknown
+            }
+        }
+        return true;
+    }
+
+    private InputStream openResource(final String path) {
+        final InputStream ins = resourceProvider.getResourceAsStream(path);
+        if (ins == null) {
+            // the resource has been checked when listed, ignore if gone
+            logger.log(Logger.LOG_WARNING, "Resource " + path
+                + " cannot be accessed, not copying");
+        }
+        return ins;
+    }
+
+    private static void close(final InputStream ins) {
+        try {
+            ins.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Waits for the given task to complete, not giving up on interruption
+     * to guarantee all files have been handled when {@link #copy()}
+     * returns.
+     */
+    private static boolean waitFor(final Future<Boolean> result) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return result.get();
+                } catch (final InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,626 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.framework.Logger;
+import org.apache.sling.launchpad.base.shared.FileTransfer;
+
+/**
+ * The <code>BundlePack</code> is a single file holding the bundles of the
+ * launchpad archive along with their start level, content digest and
+ * manifest summary. It replaces the start level directories of the startup
+ * directory, which require listing and checking each file on every startup.
+ * <p>
+ * The pack starts with a header and is otherwise only appended to: changed
+ * bundles are appended followed by a new index of all current entries and a
+ * fixed size trailer pointing to the index. The previous index stays intact
+ * until the new trailer has been written: if an append is interrupted, the
+ * pack is truncated to the last complete trailer when it is loaded again.
+ * Once more than half of the file is no longer referenced, the pack is
+ * rewritten.
+ * <p>
+ * Bundles are read from the pack through read-only memory mappings, so
+ * opening a bundle does not copy its contents. A pack without any complete
+ * trailer is discarded and rebuilt from the launchpad archive.
+ */
+class BundlePack {
+
+    /** The name of the pack file in the startup directory */
+    static final String PACK_FILE = "bundles.pack";
+
+    /** The magic number of the header and the trailer ("SLPK") */
+    private static final int MAGIC = 0x534c504b;
+
+    /** The version of the pack format */
+    private static final int VERSION = 2;
+
+    /** The size of the header: magic and version */
+    private static final int HEADER_SIZE = 8;
+
+    /** The size of the trailer: index offset, index length and magic */
+    private static final int TRAILER_SIZE = 16;
+
+    private final Logger logger;
+
+    private final File file;
+
+    /** The entries of the current index by start level and name */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    BundlePack(final Logger logger, final File file) {
+        this.logger = logger;
+        this.file = file;
+        this.load();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the entries of the pack in the order they have been added.
+     */
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(entries.values()));
+    }
+
+    /**
+     * Returns the entries as sources for the installer.
+     */
+    List<BundleSource> getSources() {
+        final List<BundleSource> sources = new ArrayList<BundleSource>();
+        for (final Entry entry : entries.values()) {
+            sources.add(BundleSource.forPack(this, entry));
+        }
+        return sources;
+    }
+
+    /**
+     * Opens a stream on the bundle of the entry, backed by a memory mapping
+     * of the bundle's region of the pack.
+     */
+    InputStream openStream(final Entry entry) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new BufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY,
+                entry.offset, entry.length));
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Updates the pack to hold exactly the given bundles of the launchpad
+     * archive. Bundles already in the pack with the same start level, name
+     * and content are kept, all others are appended. The content of a
+     * bundle is only compared if its size or modification time differs
+     * from the recorded one.
+     *
+     * @return The number of bundles appended to the pack.
+     * @throws IOException If the pack cannot be written.
+     */
+    int update(final List<BundleSource> sources) throws IOException {
+        final Map<String, Entry> index = new LinkedHashMap<String, Entry>();
+        final List<BundleSource> changed = new ArrayList<BundleSource>();
+        boolean touched = false;
+        for (final BundleSource source : sources) {
+            final String key = getKey(source.getStartLevel(), source.getName());
+            final Entry entry = entries.get(key);
+            final long lastModified = source.getLastModified();
+            if (entry != null && entry.length == source.getSize()
+                    && lastModified > 0 && entry.lastModified == lastModified) {
+                index.put(key, entry);
+            } else if (entry != null && entry.length == source.getSize()
+                    && entry.digest.equals(digest(source))) {
+                // same content, only record the new modification time
+                index.put(key, entry.touch(lastModified));
+                touched = true;
+            } else {
+                changed.add(source);
+                index.put(key, null);
+            }
+        }
+        if (changed.isEmpty() && !touched && index.keySet().equals(entries.keySet())) {
+            logger.log(Logger.LOG_INFO, "Bundle pack " + file + " is up to date");
+            return 0;
+        }
+
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long position = channel.size();
+            if (position < HEADER_SIZE || this.entries.isEmpty()) {
+                // new or discarded pack
+                channel.truncate(0);
+                position = write(channel, 0, ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC).putInt(VERSION));
+            }
+
+            for (final BundleSource source : changed) {
+                // digest, read the manifest and append the bundle in a single pass
+                final MessageDigest md = StartupDigestIndex.newDigest();
+                final long offset = position;
+                final long lastModified = source.getLastModified();
+                final AppendingInputStream ins = new AppendingInputStream(
+                    new DigestInputStream(source.openStream(), md), channel, position);
+                final ManifestInfo manifest;
+                try {
+                    manifest = ManifestInfo.read(ins);
+                    ins.drain();
+                } finally {
+                    ins.close();
+                }
+                position = ins.getPosition();
+                index.put(getKey(source.getStartLevel(), source.getName()),
+                    new Entry(source.getStartLevel(), source.getName(), offset,
+                        position - offset, StartupDigestIndex.toHex(md.digest()),
+                        manifest, lastModified));
+            }
+
+            // the index followed by the trailer
+            final byte[] indexData = writeIndex(index.values());
+            final long indexOffset = position;
+            position = write(channel, position, ByteBuffer.wrap(indexData));
+            if (FileTransfer.getSyncPolicy() != FileTransfer.SyncPolicy.NONE) {
+                channel.force(false);
+            }
+            write(channel, position, ByteBuffer.allocate(TRAILER_SIZE)
+                .putLong(indexOffset).putInt(indexData.length).putInt(MAGIC));
+            if (FileTransfer.getSyncPolicy() != FileTransfer.SyncPolicy.NONE) {
+                channel.force(false);
+            }
+        } finally {
+            channel.close();
+        }
+
+        this.entries.clear();
+        this.entries.putAll(index);
+        logger.log(Logger.LOG_INFO, "Appended " + changed.size() + " bundle(s) to "
+            + file + ", holding " + index.size() + " bundle(s)");
+
+        this.compactIfNeeded();
+        return changed.size();
+    }
+
+    /**
+     * Rewrites the pack with only the current entries if more than half of
+     * the file is not referenced anymore.
+     */
+    private void compactIfNeeded() throws IOException {
+        long live = HEADER_SIZE + TRAILER_SIZE;
+        for (final Entry entry : entries.values()) {
+            live += entry.length;
+        }
+        final long size = file.length();
+        if (live * 2 >= size) {
+            return;
+        }
+
+        final File tmp = File.createTempFile("." + file.getName() + "-", ".tmp", file.getParentFile());
+        try {
+            final Map<String, Entry> index = new LinkedHashMap<String, Entry>();
+            final FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            final FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE);
+            try {
+                long position = write(out, 0, ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC).putInt(VERSION));
+                for (final Map.Entry<String, Entry> e : entries.entrySet()) {
+                    final Entry entry = e.getValue();
+                    long done = 0;
+                    while (done < entry.length) {
+                        done += in.transferTo(entry.offset + done, entry.length - done,
+                            out.position(position + done));
+                    }
+                    index.put(e.getKey(), entry.moveTo(position));
+                    position += entry.length;
+                }
+                final byte[] indexData = writeIndex(index.values());
+                final long indexOffset = position;
+                position = write(out, position, ByteBuffer.wrap(indexData));
+                write(out, position, ByteBuffer.allocate(TRAILER_SIZE)
+                    .putLong(indexOffset).putInt(indexData.length).putInt(MAGIC));
+                if (FileTransfer.getSyncPolicy() != FileTransfer.SyncPolicy.NONE) {
+                    out.force(false);
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+
+            try {
+                Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+            } catch (final IOException atomicNotSupported) {
+                Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            }
+            this.entries.clear();
+            this.entries.putAll(index);
+            logger.log(Logger.LOG_INFO, "Compacted " + file + " from " + size
+                + " to " + file.length() + " bytes");
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        try {
+            final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                final long size = channel.size();
+                if (size < HEADER_SIZE + TRAILER_SIZE) {
+                    throw new IOException("Pack too short");
+                }
+                final ByteBuffer header = read(channel, 0, HEADER_SIZE);
+                if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                    throw new IOException("Unsupported pack header");
+                }
+                try {
+                    readIndex(channel, size - TRAILER_SIZE);
+                } catch (final IOException ioe) {
+                    // an interrupted append, look for the previous trailer
+                    final long trailerOffset = recover(channel, size - TRAILER_SIZE);
+                    if (trailerOffset < 0) {
+                        throw ioe;
+                    }
+                    logger.log(Logger.LOG_WARNING, "Truncating bundle pack " + file + " from " + size
+                        + " to " + (trailerOffset + TRAILER_SIZE) + " bytes: " + ioe);
+                    truncate(trailerOffset + TRAILER_SIZE);
+                }
+            } finally {
+                channel.close();
+            }
+        } catch (final IOException ioe) {
+            logger.log(Logger.LOG_WARNING, "Discarding damaged bundle pack " + file + ": " + ioe);
+            entries.clear();
+        }
+    }
+
+    /**
+     * Reads the index referenced by the trailer at the offset into the
+     * entries.
+     */
+    private void readIndex(final FileChannel channel, final long trailerOffset) throws IOException {
+        entries.clear();
+        final ByteBuffer trailer = read(channel, trailerOffset, TRAILER_SIZE);
+        final long indexOffset = trailer.getLong();
+        final int indexLength = trailer.getInt();
+        if (trailer.getInt() != MAGIC || indexOffset < HEADER_SIZE
+                || indexLength < 0 || indexOffset + indexLength > trailerOffset) {
+            throw new IOException("Invalid pack trailer");
+        }
+        final ByteBuffer indexData = read(channel, indexOffset, indexLength);
+        for (final Entry entry : readIndex(indexData.array())) {
+            if (entry.offset < HEADER_SIZE || entry.offset + entry.length > indexOffset) {
+                throw new IOException("Invalid pack entry " + entry);
+            }
+            entries.put(getKey(entry.level, entry.name), entry);
+        }
+    }
+
+    /**
+     * Scans the pack backwards from the offset for the last trailer directly
+     * following its index and reads that index into the entries.
+     *
+     * @return The offset of the trailer or -1 if there is no valid trailer.
+     */
+    private long recover(final FileChannel channel, final long before) throws IOException {
+        final int chunk = 64 * 1024;
+        // trailers must end before the limit, chunks overlap by a trailer
+        long limit = before + TRAILER_SIZE - 1;
+        while (limit - TRAILER_SIZE >= HEADER_SIZE) {
+            final long start = Math.max(HEADER_SIZE, limit - chunk);
+            final ByteBuffer buffer = read(channel, start, (int) (limit - start));
+            for (int p = buffer.limit() - TRAILER_SIZE; p >= 0; p--) {
+                final long trailerOffset = start + p;
+                if (buffer.getInt(p + 12) == MAGIC
+                        && buffer.getLong(p) + buffer.getInt(p + 8) == trailerOffset) {
+                    try {
+                        readIndex(channel, trailerOffset);
+                        return trailerOffset;
+                    } catch (final IOException ioe) {
+                        // not a trailer, continue scanning
+                    }
+                }
+            }
+            limit = start + TRAILER_SIZE - 1;
+        }
+        entries.clear();
+        return -1;
+    }
+
+    private void truncate(final long size) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        try {
+            channel.truncate(size);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static String digest(final BundleSource source) throws IOException {
+        final InputStream ins = source.openStream();
+        try {
+            return StartupDigestIndex.digest(ins);
+        } finally {
+            ins.close();
+        }
+    }
+
+    private static String getKey(final int level, final String name) {
+        return level + "/" + name;
+    }
+
+    private static long write(final FileChannel channel, long position,
+            final ByteBuffer buffer) throws IOException {
+        if (buffer.position() > 0) {
+            buffer.flip();
+        }
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    private static ByteBuffer read(final FileChannel channel, long position,
+            final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            final int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of pack");
+            }
+            position += n;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] writeIndex(final Iterable<Entry> index) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bos);
+        final List<Entry> list = new ArrayList<Entry>();
+        for (final Entry entry : index) {
+            list.add(entry);
+        }
+        out.writeInt(list.size());
+        for (final Entry entry : list) {
+            out.writeInt(entry.level);
+            out.writeUTF(entry.name);
+            out.writeLong(entry.offset);
+            out.writeLong(entry.length);
+            out.writeUTF(entry.digest);
+            out.writeLong(entry.lastModified);
+            out.writeBoolean(entry.manifest != null);
+            if (entry.manifest != null) {
+                out.writeUTF(toField(entry.manifest.getSymbolicName()));
+                out.writeUTF(toField(entry.manifest.getVersion()));
+                out.writeUTF(toField(entry.manifest.getLastModified()));
+                out.writeUTF(toField(entry.manifest.getFragmentHost()));
+            }
+        }
+        out.close();
+        return bos.toByteArray();
+    }
+
+    private static List<Entry> readIndex(final byte[] data) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        final int count = in.readInt();
+        final List<Entry> index = new ArrayList<Entry>();
+        for (int i = 0; i < count; i++) {
+            final int level = in.readInt();
+            final String name = in.readUTF();
+            final long offset = in.readLong();
+            final long length = in.readLong();
+            final String digest = in.readUTF();
+            final long lastModified = in.readLong();
+            ManifestInfo manifest = null;
+            if (in.readBoolean()) {
+                manifest = new ManifestInfo(toValue(in.readUTF()), toValue(in.readUTF()),
+                    toValue(in.readUTF()), toValue(in.readUTF()));
+            }
+            index.add(new Entry(level, name, offset, length, digest, manifest, lastModified));
+        }
+        return index;
+    }
+
+    private static String toField(final String value) {
+        return value == null ? "" : value;
+    }
+
+    private static String toValue(final String field) {
+        return field.length() == 0 ? null : field;
+    }
+
+    /**
+     * A bundle in the pack.
+     */
+    static final class Entry {
+
+        final int level;
+
+        final String name;
+
+        final long offset;
+
+        final long length;
+
+        final String digest;
+
+        final ManifestInfo manifest;
+
+        /** The modification time of the source or -1 if not known */
+        final long lastModified;
+
+        Entry(final int level, final String name, final long offset,
+                final long length, final String digest, final ManifestInfo manifest,
+                final long lastModified) {
+            this.level = level;
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.digest = digest;
+            this.manifest = manifest;
+            this.lastModified = lastModified;
+        }
+
+        Entry moveTo(final long newOffset) {
+            return new Entry(level, name, newOffset, length, digest, manifest, lastModified);
+        }
+
+        Entry touch(final long newLastModified) {
+            return new Entry(level, name, offset, length, digest, manifest, newLastModified);
+        }
+
+        @Override
+        public String toString() {
+            return level + "/" + name;
+        }
+    }
+
+    /**
+     * An input stream writing everything read to the pack.
+     */
+    private static final class AppendingInputStream extends FilterInputStream {
+
+        private final FileChannel channel;
+
+        private long position;
+
+        AppendingInputStream(final InputStream in, final FileChannel channel, final long position) {
+            super(in);
+            this.channel = channel;
+            this.position = position;
+        }
+
+        /**
+         * Returns the position in the pack after the bytes read so far.
+         */
+        long getPosition() {
+            return position;
+        }
+
+        /**
+         * Reads the remaining bytes.
+         */
+        void drain() throws IOException {
+            final byte[] buf = new byte[64 * 1024];
+            while (read(buf, 0, buf.length) >= 0) {
+                // written by read
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                position = write(channel, position, ByteBuffer.wrap(new byte[] { (byte) b }));
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                position = write(channel, position, ByteBuffer.wrap(b, off, n).slice());
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            // skipped bytes have to be written as well
+            final byte[] buf = new byte[(int) Math.max(0, Math.min(n, 8192))];
+            final int read = read(buf, 0, buf.length);
+            return Math.max(0, read);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * An input stream reading from a (mapped) byte buffer.
+     */
+    private static final class BufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        BufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
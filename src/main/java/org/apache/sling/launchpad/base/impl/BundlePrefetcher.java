@@ -0,0 +1,360 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.framework.Logger;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+/**
+ * The <code>BundlePrefetcher</code> reads the archives of the installed
+ * bundles in start level order in background threads while the framework
+ * starts, so the start level thread finds them in the page cache instead of
+ * waiting for random reads on cold storage.
+ * <p>
+ * The archives are read sequentially in large chunks, which lets the
+ * operating system read ahead. Bundles are only read up to
+ * {@link #LOOKAHEAD} start levels ahead of the active start level of the
+ * framework and in total up to a byte budget. Prefetching ends once the
+ * framework has started or is stopped, logging the bytes read and how many
+ * bundles were started after their archive had been read.
+ * <p>
+ * Only the archives of bundles installed by reference are read, as these
+ * are the files the framework opens. Other bundles are skipped.
+ */
+class BundlePrefetcher implements SynchronousBundleListener, FrameworkListener, Runnable {
+
+    /**
+     * The number of start levels bundles are prefetched ahead of the active
+     * start level of the framework (value is 5).
+     */
+    static final int LOOKAHEAD = 5;
+
+    /** The size of the buffer used to read the archives (value is 1MB) */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /** The number of threads reading archives (value is 2) */
+    private static final int THREADS = 2;
+
+    /** The time to wait for the start level to advance (value is 50ms) */
+    private static final long POLL_INTERVAL = 50L;
+
+    private final Logger logger;
+
+    private final BundleContext bundleContext;
+
+    private final long budget;
+
+    /** The ids of the bundles whose archive has been read */
+    private final Set<Long> prefetched = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    private final AtomicInteger misses = new AtomicInteger();
+
+    private volatile boolean stopped;
+
+    private volatile long startedAt;
+
+    BundlePrefetcher(final Logger logger, final BundleContext bundleContext,
+            final long budget) {
+        this.logger = logger;
+        this.bundleContext = bundleContext;
+        this.budget = budget;
+    }
+
+    /**
+     * Starts prefetching in a background thread. To be called before the
+     * framework is started.
+     */
+    void start() {
+        this.startedAt = System.currentTimeMillis();
+        this.bundleContext.addBundleListener(this);
+        this.bundleContext.addFrameworkListener(this);
+
+        final Thread thread = new Thread(this, "Apache Sling Bundle Prefetcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        final Bundle[] bundles;
+        try {
+            bundles = this.bundleContext.getBundles();
+        } catch (final IllegalStateException ise) {
+            // framework already stopped
+            this.stop(false);
+            return;
+        }
+        final SortedMap<Integer, List<Bundle>> levels = new TreeMap<Integer, List<Bundle>>();
+        for (final Bundle bundle : bundles) {
+            if (bundle.getBundleId() == 0 || getBundleFile(bundle) == null) {
+                continue;
+            }
+            final BundleStartLevel bsl = bundle.adapt(BundleStartLevel.class);
+            final int level = bsl != null ? bsl.getStartLevel() : 0;
+            List<Bundle> group = levels.get(level);
+            if (group == null) {
+                group = new ArrayList<Bundle>();
+                levels.put(level, group);
+            }
+            group.add(bundle);
+        }
+        if (levels.isEmpty()) {
+            logger.log(Logger.LOG_INFO, "No bundles installed by reference, nothing to prefetch");
+            this.stop(false);
+            return;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+            new NamedThreadFactory("Apache Sling Bundle Prefetcher"));
+        try {
+            for (final Map.Entry<Integer, List<Bundle>> group : levels.entrySet()) {
+                if (!this.awaitLevel(group.getKey() - LOOKAHEAD)) {
+                    break;
+                }
+
+                final List<Future<Long>> results = new ArrayList<Future<Long>>();
+                for (final Bundle bundle : group.getValue()) {
+                    results.add(executor.submit(new Callable<Long>() {
+                        @Override
+                        public Long call() {
+                            return prefetch(bundle);
+                        }
+                    }));
+                }
+                for (final Future<Long> result : results) {
+                    waitFor(result);
+                }
+                if (this.bytesRead.get() >= this.budget) {
+                    logger.log(Logger.LOG_DEBUG, "Prefetch budget of " + this.budget + " bytes used up");
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Waits for the framework to reach the start level.
+     *
+     * @return <code>true</code> if the start level has been reached and
+     *      prefetching should go on.
+     */
+    private boolean awaitLevel(final int level) {
+        try {
+            final Bundle systemBundle = this.bundleContext.getBundle(Constants.SYSTEM_BUNDLE_LOCATION);
+            final FrameworkStartLevel fsl = systemBundle != null
+                    ? systemBundle.adapt(FrameworkStartLevel.class) : null;
+            if (fsl == null) {
+                return false;
+            }
+            while (!this.stopped && fsl.getStartLevel() < level) {
+                try {
+                    Thread.sleep(POLL_INTERVAL);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        } catch (final IllegalStateException ise) {
+            // framework already stopped
+            return false;
+        }
+        return !this.stopped;
+    }
+
+    /**
+     * Reads the archive of the bundle unless it is already active or the
+     * budget is used up.
+     *
+     * @return The number of bytes read
+     */
+    private long prefetch(final Bundle bundle) {
+        if (this.stopped || bundle.getState() == Bundle.ACTIVE
+                || this.bytesRead.get() >= this.budget) {
+            return 0;
+        }
+        final File file = getBundleFile(bundle);
+        if (file == null || !file.isFile()) {
+            return 0;
+        }
+
+        long read = 0;
+        FileInputStream ins = null;
+        try {
+            ins = new FileInputStream(file);
+            final FileChannel channel = ins.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            int n;
+            while (!this.stopped && (n = channel.read(buffer)) >= 0) {
+                read += n;
+                buffer.clear();
+            }
+            this.prefetched.add(bundle.getBundleId());
+        } catch (final IOException ioe) {
+            logger.log(Logger.LOG_DEBUG, "Cannot prefetch " + file + ": " + ioe);
+        } finally {
+            if (ins != null) {
+                try {
+                    ins.close();
+                } catch (final IOException ignore) {
+                }
+            }
+        }
+        this.bytesRead.addAndGet(read);
+        return read;
+    }
+
+    /**
+     * Returns the archive file of a bundle installed by reference. Returns
+     * <code>null</code> for other bundles: the layout of the framework
+     * bundle cache is private to the framework, so those are not read.
+     */
+    static File getBundleFile(final Bundle bundle) {
+        final String location = bundle.getLocation();
+        if (location == null || !location.startsWith(BootstrapInstaller.REFERENCE_SCHEME)) {
+            return null;
+        }
+        try {
+            return new File(URI.create(location.substring(
+                BootstrapInstaller.REFERENCE_SCHEME.length())));
+        } catch (final IllegalArgumentException iae) {
+            return null;
+        }
+    }
+
+    // ---------- listeners
+
+    @Override
+    public void bundleChanged(final BundleEvent event) {
+        if (event.getType() == BundleEvent.STOPPING && event.getBundle().getBundleId() == 0) {
+            // the framework is stopped before it has started
+            this.stop();
+            return;
+        }
+        if (!this.stopped && event.getType() == BundleEvent.STARTING) {
+            if (this.prefetched.contains(event.getBundle().getBundleId())) {
+                this.hits.incrementAndGet();
+            } else {
+                this.misses.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void frameworkEvent(final FrameworkEvent event) {
+        if (event.getType() == FrameworkEvent.STARTED) {
+            this.stop();
+        }
+    }
+
+    /**
+     * Stops prefetching and logs the metrics.
+     */
+    void stop() {
+        this.stop(true);
+    }
+
+    private synchronized void stop(final boolean logMetrics) {
+        if (this.stopped) {
+            return;
+        }
+        this.stopped = true;
+        try {
+            this.bundleContext.removeBundleListener(this);
+            this.bundleContext.removeFrameworkListener(this);
+        } catch (final IllegalStateException ignore) {
+            // framework already stopped
+        }
+        if (!logMetrics) {
+            return;
+        }
+        logger.log(Logger.LOG_INFO, "Prefetched " + this.prefetched.size()
+            + " bundle archive(s), " + this.bytesRead.get() + " bytes, in "
+            + (System.currentTimeMillis() - this.startedAt) + "ms; "
+            + this.hits.get() + " of " + (this.hits.get() + this.misses.get())
+            + " bundle(s) started after their archive was prefetched");
+    }
+
+    int getHits() {
+        return hits.get();
+    }
+
+    int getMisses() {
+        return misses.get();
+    }
+
+    long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    private static void waitFor(final Future<Long> result) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    result.get();
+                    return;
+                } catch (final InterruptedException ie) {
+                    interrupted = true;
+                } catch (final ExecutionException ee) {
+                    // prefetch does not throw checked exceptions
+                    return;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
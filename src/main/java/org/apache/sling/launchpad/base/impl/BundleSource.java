@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import org.apache.sling.launchpad.api.LaunchpadContentProvider;
+
+/**
+ * The <code>BundleSource</code> describes a bundle archive to be installed
+ * by the {@link BootstrapInstaller} along with the start level to assign.
+ * The archive is either a file in the startup directory, a resource of
+ * the launchpad archive accessed through the
+ * {@link LaunchpadContentProvider} or an entry of the {@link BundlePack}.
+ */
+class BundleSource {
+
+    private final String name;
+
+    private final int startLevel;
+
+    private final File file;
+
+    private final LaunchpadContentProvider resourceProvider;
+
+    private final String resource;
+
+    private final File copyTarget;
+
+    private final BundlePack pack;
+
+    private final BundlePack.Entry packEntry;
+
+    private BundleSource(final String name, final int startLevel, final File file,
+            final LaunchpadContentProvider resourceProvider, final String resource,
+            final File copyTarget, final BundlePack pack, final BundlePack.Entry packEntry) {
+        this.name = name;
+        this.startLevel = startLevel;
+        this.file = file;
+        this.resourceProvider = resourceProvider;
+        this.resource = resource;
+        this.copyTarget = copyTarget;
+        this.pack = pack;
+        this.packEntry = packEntry;
+    }
+
+    /**
+     * Creates a source for a bundle file in the startup directory.
+     */
+    static BundleSource forFile(final File file, final int startLevel) {
+        return new BundleSource(file.getName(), startLevel, file, null, null, null, null, null);
+    }
+
+    /**
+     * Creates a source for a bundle contained in the launchpad archive.
+     */
+    static BundleSource forResource(final LaunchpadContentProvider resourceProvider,
+            final String resource, final int startLevel) {
+        return new BundleSource(BootstrapInstaller.extractFileName(resource),
+            startLevel, null, resourceProvider, resource, null, null, null);
+    }
+
+    /**
+     * Creates a source for a bundle held in the bundle pack.
+     */
+    static BundleSource forPack(final BundlePack pack, final BundlePack.Entry entry) {
+        return new BundleSource(entry.name, entry.level, null, null, null, null,
+            pack, entry);
+    }
+
+    /**
+     * Returns a copy of this resource source recording the file in the
+     * startup directory the resource is to be copied to.
+     */
+    BundleSource withCopyTarget(final File copyTarget) {
+        return new BundleSource(name, startLevel, file, resourceProvider,
+            resource, copyTarget, pack, packEntry);
+    }
+
+    /**
+     * Returns the file name of the bundle archive without any path.
+     */
+    String getName() {
+        return name;
+    }
+
+    int getStartLevel() {
+        return startLevel;
+    }
+
+    /**
+     * Returns the bundle file or <code>null</code> if the bundle is read
+     * from the launchpad archive.
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the path of the resource in the launchpad archive or
+     * <code>null</code> if the bundle is read from a file.
+     */
+    String getResource() {
+        return resource;
+    }
+
+    /**
+     * Returns the file in the startup directory a resource of the launchpad
+     * archive is to be copied to or <code>null</code> if the resource is
+     * not copied.
+     */
+    File getCopyTarget() {
+        return copyTarget;
+    }
+
+    /**
+     * Returns the manifest summary recorded in the bundle pack or
+     * <code>null</code> if the bundle is not read from the pack or the
+     * manifest has to be read from the archive.
+     */
+    ManifestInfo getManifest() {
+        return packEntry != null ? packEntry.manifest : null;
+    }
+
+    /**
+     * Returns the size of the bundle archive in bytes or -1 if the size is
+     * not known.
+     */
+    long getSize() {
+        if (file != null) {
+            return file.length();
+        }
+        if (packEntry != null) {
+            return packEntry.length;
+        }
+        final URL url = resourceProvider.getResource(resource);
+        if (url != null) {
+            try {
+                return url.openConnection().getContentLengthLong();
+            } catch (final IOException ignore) {
+                // size not known
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the modification time of the bundle archive or -1 if not
+     * known. For a resource of the launchpad archive this may be the
+     * modification time of the launchpad archive itself.
+     */
+    long getLastModified() {
+        if (file != null) {
+            return file.lastModified();
+        }
+        if (packEntry != null) {
+            return packEntry.lastModified;
+        }
+        final URL url = resourceProvider.getResource(resource);
+        if (url != null) {
+            try {
+                final long lastModified = url.openConnection().getLastModified();
+                return lastModified > 0 ? lastModified : -1;
+            } catch (final IOException ignore) {
+                // modification time not known
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Opens a stream on the bundle archive.
+     *
+     * @throws IOException If the bundle archive does not exist or cannot be
+     *      opened.
+     */
+    InputStream openStream() throws IOException {
+        if (file != null) {
+            return new FileInputStream(file);
+        }
+        if (packEntry != null) {
+            return pack.openStream(packEntry);
+        }
+        final InputStream ins = resourceProvider.getResourceAsStream(resource);
+        if (ins == null) {
+            throw new FileNotFoundException(resource);
+        }
+        return ins;
+    }
+
+    @Override
+    public String toString() {
+        if (packEntry != null) {
+            return pack.getFile().getPath() + "!/" + packEntry;
+        }
+        return file != null ? file.getPath() : resource;
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.felix.framework.Logger;
+import org.apache.sling.launchpad.base.shared.SharedConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * The <code>BundleStarter</code> starts a set of bundles, grouped by their
+ * start levels in ascending order.
+ * <p>
+ * If the framework is not active yet or the start level of a group is above
+ * the active start level of the framework, starting a bundle only marks it
+ * to be started by the framework once the start level is reached. This is
+ * done sequentially.
+ * <p>
+ * Otherwise the bundles of the group are resolved first and then started
+ * in waves: a bundle is started as soon as all bundles of the group it is
+ * wired to have been started. The bundles of a wave are started
+ * concurrently on a bounded pool of threads. Bundles in a wiring cycle are
+ * started in the last wave.
+ * <p>
+ * Fragments, including framework extensions, are never started.
+ * <p>
+ * A transient starter starts the bundles with
+ * <code>Bundle.START_TRANSIENT</code>, honouring their activation policy.
+ * This is used to start persistently started bundles of the start level
+ * the framework is entering: unlike persistent starts, transient starts
+ * are not queued behind the start level change, so they run concurrently
+ * with it.
+ */
+class BundleStarter {
+
+    private final Logger logger;
+
+    private final BundleContext bundleContext;
+
+    private final int threads;
+
+    private final boolean transientStart;
+
+    BundleStarter(final Logger logger, final BundleContext bundleContext,
+            final int threads) {
+        this(logger, bundleContext, threads, false);
+    }
+
+    BundleStarter(final Logger logger, final BundleContext bundleContext,
+            final int threads, final boolean transientStart) {
+        this.logger = logger;
+        this.bundleContext = bundleContext;
+        this.threads = Math.max(1, threads);
+        this.transientStart = transientStart;
+    }
+
+    /**
+     * Starts the bundles. Failures are logged per bundle.
+     *
+     * @return The activation time in milliseconds of each bundle started,
+     *      in the order of completion.
+     */
+    Map<Bundle, Long> start(final Collection<Bundle> bundles) {
+        final Map<Bundle, Long> times = new LinkedHashMap<Bundle, Long>();
+
+        // group by start level, ignoring fragments
+        final SortedMap<Integer, List<Bundle>> levels = new TreeMap<Integer, List<Bundle>>();
+        for (final Bundle bundle : bundles) {
+            if (isFragment(bundle)) {
+                continue;
+            }
+            final int level = getStartLevel(bundle);
+            List<Bundle> group = levels.get(level);
+            if (group == null) {
+                group = new ArrayList<Bundle>();
+                levels.put(level, group);
+            }
+            group.add(bundle);
+        }
+        if (levels.isEmpty()) {
+            return times;
+        }
+
+        ExecutorService executor = null;
+        try {
+            for (final Map.Entry<Integer, List<Bundle>> group : levels.entrySet()) {
+                if (!isActiveLevel(group.getKey()) || this.threads == 1) {
+                    for (final Bundle bundle : group.getValue()) {
+                        startBundle(bundle, times);
+                    }
+                } else {
+                    if (executor == null) {
+                        executor = Executors.newFixedThreadPool(this.threads,
+                            new NamedThreadFactory("Apache Sling Bundle Starter"));
+                    }
+                    startGroup(group.getKey(), group.getValue(), executor, times);
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+
+        return times;
+    }
+
+    /**
+     * Resolves and starts the bundles of a single start level in waves of
+     * mutually independent bundles.
+     */
+    private void startGroup(final int level, final List<Bundle> group,
+            final ExecutorService executor, final Map<Bundle, Long> times) {
+        final FrameworkWiring fw = getSystemBundle().adapt(FrameworkWiring.class);
+        if (fw != null) {
+            fw.resolveBundles(group);
+        }
+
+        final List<Set<Bundle>> waves = getWaves(group);
+        logger.log(Logger.LOG_DEBUG, "Starting " + group.size()
+            + " bundle(s) of start level " + level + " in " + waves.size() + " wave(s)");
+
+        for (final Set<Bundle> wave : waves) {
+            if (wave.size() == 1) {
+                startBundle(wave.iterator().next(), times);
+                continue;
+            }
+
+            final List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (final Bundle bundle : wave) {
+                results.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        return startBundle(bundle);
+                    }
+                }));
+            }
+            int i = 0;
+            for (final Bundle bundle : wave) {
+                final Long time = waitFor(results.get(i++));
+                if (time != null) {
+                    times.put(bundle, time);
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits the bundles into waves such that each bundle only depends on
+     * bundles of earlier waves. Dependencies on bundles outside of the
+     * group are ignored. Bundles which cannot be ordered due to cycles make
+     * up the last wave.
+     */
+    List<Set<Bundle>> getWaves(final List<Bundle> group) {
+        final Set<Bundle> members = new HashSet<Bundle>(group);
+        final Map<Bundle, Set<Bundle>> dependencies = new HashMap<Bundle, Set<Bundle>>();
+        for (final Bundle bundle : group) {
+            final Set<Bundle> deps = new HashSet<Bundle>();
+            final BundleWiring wiring = bundle.adapt(BundleWiring.class);
+            if (wiring != null) {
+                final List<BundleWire> wires = wiring.getRequiredWires(null);
+                if (wires != null) {
+                    for (final BundleWire wire : wires) {
+                        final Bundle provider = wire.getProviderWiring().getBundle();
+                        if (provider != bundle && members.contains(provider)) {
+                            deps.add(provider);
+                        }
+                    }
+                }
+            }
+            dependencies.put(bundle, deps);
+        }
+
+        final List<Set<Bundle>> waves = new ArrayList<Set<Bundle>>();
+        final Set<Bundle> done = new HashSet<Bundle>();
+        final Set<Bundle> remaining = new LinkedHashSet<Bundle>(group);
+        while (!remaining.isEmpty()) {
+            final Set<Bundle> wave = new LinkedHashSet<Bundle>();
+            for (final Bundle bundle : remaining) {
+                if (done.containsAll(dependencies.get(bundle))) {
+                    wave.add(bundle);
+                }
+            }
+            if (wave.isEmpty()) {
+                logger.log(Logger.LOG_DEBUG, "Wiring cycle between bundles "
+                    + remaining + ", starting them together");
+                wave.addAll(remaining);
+            }
+            waves.add(wave);
+            done.addAll(wave);
+            remaining.removeAll(wave);
+        }
+        return waves;
+    }
+
+    private void startBundle(final Bundle bundle, final Map<Bundle, Long> times) {
+        final Long time = startBundle(bundle);
+        if (time != null) {
+            times.put(bundle, time);
+        }
+    }
+
+    /**
+     * Starts the bundle and returns the time in milliseconds this took or
+     * <code>null</code> if the bundle failed to start.
+     */
+    private Long startBundle(final Bundle bundle) {
+        final long start = System.currentTimeMillis();
+        try {
+            if (this.transientStart) {
+                final BundleStartLevel bsl = bundle.adapt(BundleStartLevel.class);
+                bundle.start(bsl != null && bsl.isActivationPolicyUsed()
+                    ? Bundle.START_TRANSIENT | Bundle.START_ACTIVATION_POLICY
+                    : Bundle.START_TRANSIENT);
+            } else {
+                bundle.start();
+            }
+            final long time = System.currentTimeMillis() - start;
+            logger.log(Logger.LOG_INFO, "Bundle " + bundle.getSymbolicName()
+                + " started in " + time + "ms");
+            return time;
+        } catch (final BundleException be) {
+            logger.log(Logger.LOG_ERROR, "Bundle "
+                + bundle.getSymbolicName() + " could not be started", be);
+        } catch (final RuntimeException re) {
+            logger.log(Logger.LOG_ERROR, "Bundle "
+                + bundle.getSymbolicName() + " could not be started", re);
+        }
+        return null;
+    }
+
+    /**
+     * Returns <code>true</code> if the framework is active and bundles with
+     * the given start level are started immediately. A transient starter
+     * also starts bundles while the framework is starting, since the start
+     * levels up to the beginning start level are entered before the
+     * framework is active.
+     */
+    private boolean isActiveLevel(final int level) {
+        final Bundle systemBundle = getSystemBundle();
+        if (systemBundle == null || !(systemBundle.getState() == Bundle.ACTIVE
+                || (this.transientStart && systemBundle.getState() == Bundle.STARTING))) {
+            return false;
+        }
+        final FrameworkStartLevel fsl = systemBundle.adapt(FrameworkStartLevel.class);
+        return fsl != null && level <= fsl.getStartLevel();
+    }
+
+    /**
+     * Returns the number of threads to start bundles with.
+     *
+     * @see SharedConstants#SLING_INSTALL_THREADS
+     */
+    static int getThreads(final Logger logger, final BundleContext bundleContext) {
+        final String threads = bundleContext.getProperty(SharedConstants.SLING_INSTALL_THREADS);
+        if (threads != null && threads.trim().length() > 0) {
+            try {
+                return Integer.parseInt(threads.trim());
+            } catch (final NumberFormatException nfe) {
+                logger.log(Logger.LOG_WARNING, "Ignoring invalid value " + threads
+                    + " for " + SharedConstants.SLING_INSTALL_THREADS);
+            }
+        }
+        return BundleCopier.getDefaultWorkers();
+    }
+
+    private Bundle getSystemBundle() {
+        return this.bundleContext.getBundle(Constants.SYSTEM_BUNDLE_LOCATION);
+    }
+
+    private static int getStartLevel(final Bundle bundle) {
+        final BundleStartLevel bsl = bundle.adapt(BundleStartLevel.class);
+        return bsl != null ? bsl.getStartLevel() : 0;
+    }
+
+    /**
+     * Returns <code>true</code> if the bundle must be assumed to be a fragment
+     * according to its <code>Fragment-Host</code> header.
+     */
+    static boolean isFragment(final Bundle bundle) {
+        Dictionary<?, ?> headerMap = bundle.getHeaders();
+        return headerMap.get(Constants.FRAGMENT_HOST) != null;
+    }
+
+    private static Long waitFor(final Future<Long> result) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return result.get();
+                } catch (final InterruptedException ie) {
+                    interrupted = true;
+                } catch (final ExecutionException ee) {
+                    // startBundle catches all expected exceptions
+                    return null;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.felix.framework.Logger;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.resource.Namespace;
+
+/**
+ * The <code>CriticalPath</code> activates a set of critical bundles, for
+ * example the HTTP service and the health checks, and all bundles they
+ * depend on ahead of the other bundles, so the instance can answer
+ * requests while the other bundles are still starting.
+ * <p>
+ * The dependencies are taken from the requirements and capabilities the
+ * framework parsed from the manifests of the installed bundles: imported
+ * packages, required bundles, required services and extenders such as
+ * Declarative Services. Optional requirements are ignored. A requirement
+ * already satisfied by the system bundle or a bundle of the critical path
+ * adds no bundle; otherwise the matching bundle with the lowest start
+ * level is added. Fragments attaching to a bundle of the critical path
+ * are added as well.
+ * <p>
+ * The bundles of the critical path are moved to start level 1 before the
+ * framework is started. Once the framework reaches the original start
+ * level of a bundle, the original level is restored. As the start levels
+ * are persisted by the framework, the original levels are recorded in
+ * {@link #STATE_FILE} in the conf directory until all of them have been
+ * restored. If the framework is stopped before, the remaining levels are
+ * restored by {@link #restore()} on the next launch.
+ */
+class CriticalPath implements FrameworkListener {
+
+    /** The name of the file in the conf directory holding the original start levels */
+    static final String STATE_FILE = "launchpad-critical-path.properties";
+
+    /** The start level the bundles of the critical path are moved to */
+    private static final int CRITICAL_START_LEVEL = 1;
+
+    private final Logger logger;
+
+    private final BundleContext bundleContext;
+
+    private final File stateFile;
+
+    /** The original start levels of the moved bundles, guarded by this */
+    private final Map<Bundle, Integer> originalLevels = new LinkedHashMap<Bundle, Integer>();
+
+    CriticalPath(final Logger logger, final BundleContext bundleContext, final File confDir) {
+        this.logger = logger;
+        this.bundleContext = bundleContext;
+        this.stateFile = new File(confDir, STATE_FILE);
+    }
+
+    /**
+     * Restores the original start levels recorded by a previous launch
+     * which was stopped before the framework reached them. To be called
+     * before any bundle is installed or updated.
+     */
+    void restore() {
+        if (!stateFile.isFile()) {
+            return;
+        }
+        final Properties levels = new Properties();
+        InputStream ins = null;
+        try {
+            ins = new FileInputStream(stateFile);
+            levels.load(ins);
+        } catch (final IOException ioe) {
+            logger.log(Logger.LOG_WARNING, "Cannot read the start levels of the critical path from "
+                + stateFile + ": " + ioe);
+            return;
+        } finally {
+            if (ins != null) {
+                try {
+                    ins.close();
+                } catch (final IOException ignore) {
+                }
+            }
+        }
+
+        int restored = 0;
+        for (final String location : levels.stringPropertyNames()) {
+            final Bundle bundle = bundleContext.getBundle(location);
+            final BundleStartLevel bsl = bundle != null ? bundle.adapt(BundleStartLevel.class) : null;
+            if (bsl == null || bundle.getState() == Bundle.UNINSTALLED) {
+                continue;
+            }
+            try {
+                bsl.setStartLevel(Integer.parseInt(levels.getProperty(location)));
+                restored++;
+            } catch (final NumberFormatException nfe) {
+                logger.log(Logger.LOG_WARNING, "Ignoring invalid start level " + levels.getProperty(location)
+                    + " for " + location + " in " + stateFile);
+            }
+        }
+        logger.log(Logger.LOG_INFO, "Restored the start levels of " + restored
+            + " bundle(s) moved by the critical path of a previous launch");
+        stateFile.delete();
+    }
+
+    /**
+     * Moves the critical bundles with the given symbolic names and their
+     * dependencies to the lowest start level.
+     */
+    void prioritize(final Set<String> criticalNames) {
+        final Set<Bundle> closure = getClosure(criticalNames);
+        int moved = 0;
+        synchronized (this) {
+            for (final Bundle bundle : closure) {
+                if (isFragment(bundle.adapt(BundleRevision.class))) {
+                    continue;
+                }
+                final BundleStartLevel bsl = bundle.adapt(BundleStartLevel.class);
+                if (bsl != null && bsl.getStartLevel() > CRITICAL_START_LEVEL) {
+                    originalLevels.put(bundle, bsl.getStartLevel());
+                }
+            }
+            // record the original levels before changing the persisted ones
+            try {
+                save();
+            } catch (final IOException ioe) {
+                logger.log(Logger.LOG_WARNING, "Cannot record the start levels of the critical path in "
+                    + stateFile + ", not moving any bundle: " + ioe);
+                originalLevels.clear();
+                return;
+            }
+            for (final Bundle bundle : originalLevels.keySet()) {
+                bundle.adapt(BundleStartLevel.class).setStartLevel(CRITICAL_START_LEVEL);
+                moved++;
+            }
+        }
+        logger.log(Logger.LOG_INFO, "Critical path of " + criticalNames + " has " + closure.size()
+            + " bundle(s), moved " + moved + " to start level " + CRITICAL_START_LEVEL);
+        if (moved > 0) {
+            bundleContext.addFrameworkListener(this);
+        }
+    }
+
+    /**
+     * Restores the original start levels reached by the framework.
+     */
+    @Override
+    public void frameworkEvent(final FrameworkEvent event) {
+        if (event.getType() != FrameworkEvent.STARTED && event.getType() != FrameworkEvent.STARTLEVEL_CHANGED) {
+            return;
+        }
+        final FrameworkStartLevel fsl = bundleContext.getBundle().adapt(FrameworkStartLevel.class);
+        if (fsl == null) {
+            return;
+        }
+        final int activeLevel = fsl.getStartLevel();
+        final boolean done;
+        synchronized (this) {
+            for (final Map.Entry<Bundle, Integer> entry : new ArrayList<Map.Entry<Bundle, Integer>>(originalLevels.entrySet())) {
+                if (entry.getValue() <= activeLevel) {
+                    final Bundle bundle = entry.getKey();
+                    final BundleStartLevel bsl = bundle.adapt(BundleStartLevel.class);
+                    if (bsl != null && bundle.getState() != Bundle.UNINSTALLED) {
+                        bsl.setStartLevel(entry.getValue());
+                    }
+                    originalLevels.remove(bundle);
+                }
+            }
+            done = originalLevels.isEmpty();
+            if (done) {
+                stateFile.delete();
+            } else {
+                try {
+                    save();
+                } catch (final IOException ioe) {
+                    // the recorded levels are restored again on the next launch
+                    logger.log(Logger.LOG_DEBUG, "Cannot update " + stateFile + ": " + ioe);
+                }
+            }
+        }
+        if (done) {
+            logger.log(Logger.LOG_DEBUG, "Restored start levels of the critical path");
+            bundleContext.removeFrameworkListener(this);
+        }
+    }
+
+    /**
+     * Writes the original start levels not restored yet by bundle location
+     * to the state file or deletes it if there are none.
+     */
+    private void save() throws IOException {
+        if (originalLevels.isEmpty()) {
+            stateFile.delete();
+            return;
+        }
+        final Properties levels = new Properties();
+        for (final Map.Entry<Bundle, Integer> entry : originalLevels.entrySet()) {
+            levels.setProperty(entry.getKey().getLocation(), String.valueOf(entry.getValue()));
+        }
+        stateFile.getParentFile().mkdirs();
+        final OutputStream os = new FileOutputStream(stateFile);
+        try {
+            levels.store(os, "Original start levels of the critical path");
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Returns the bundles with the given symbolic names and the bundles
+     * they depend on, directly or indirectly.
+     */
+    Set<Bundle> getClosure(final Set<String> criticalNames) {
+        final Map<String, List<BundleCapability>> capabilities = new HashMap<String, List<BundleCapability>>();
+        final List<BundleRevision> fragments = new ArrayList<BundleRevision>();
+        final Deque<Bundle> queue = new ArrayDeque<Bundle>();
+        final Set<Bundle> closure = new LinkedHashSet<Bundle>();
+        final Set<String> missing = new HashSet<String>(criticalNames);
+
+        for (final Bundle bundle : bundleContext.getBundles()) {
+            final BundleRevision revision = bundle.adapt(BundleRevision.class);
+            if (revision == null || bundle.getState() == Bundle.UNINSTALLED) {
+                continue;
+            }
+            for (final BundleCapability capability : revision.getDeclaredCapabilities(null)) {
+                List<BundleCapability> list = capabilities.get(capability.getNamespace());
+                if (list == null) {
+                    list = new ArrayList<BundleCapability>();
+                    capabilities.put(capability.getNamespace(), list);
+                }
+                list.add(capability);
+            }
+            if (isFragment(revision)) {
+                fragments.add(revision);
+            }
+            if (bundle.getSymbolicName() != null && missing.remove(bundle.getSymbolicName())) {
+                closure.add(bundle);
+                queue.add(bundle);
+            }
+        }
+        if (!missing.isEmpty()) {
+            logger.log(Logger.LOG_WARNING, "Critical bundles not installed: " + missing);
+        }
+
+        while (!queue.isEmpty()) {
+            final Bundle bundle = queue.remove();
+            final BundleRevision revision = bundle.adapt(BundleRevision.class);
+            for (final BundleRequirement requirement : revision.getDeclaredRequirements(null)) {
+                if (Namespace.RESOLUTION_OPTIONAL.equals(
+                        requirement.getDirectives().get(Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE))) {
+                    continue;
+                }
+                final Bundle provider = getProvider(requirement, capabilities.get(requirement.getNamespace()), closure);
+                if (provider != null && closure.add(provider)) {
+                    queue.add(provider);
+                }
+            }
+            // fragments attaching to the bundle
+            for (final BundleRevision fragment : fragments) {
+                if (!closure.contains(fragment.getBundle())) {
+                    for (final BundleRequirement host : fragment.getDeclaredRequirements(BundleRevision.HOST_NAMESPACE)) {
+                        if (matches(host, revision.getDeclaredCapabilities(BundleRevision.HOST_NAMESPACE))
+                                && closure.add(fragment.getBundle())) {
+                            queue.add(fragment.getBundle());
+                        }
+                    }
+                }
+            }
+        }
+        return closure;
+    }
+
+    /**
+     * Returns the bundle to add to satisfy the requirement or
+     * <code>null</code> if the requirement is already satisfied or cannot
+     * be satisfied.
+     */
+    private Bundle getProvider(final BundleRequirement requirement,
+            final List<BundleCapability> candidates,
+            final Set<Bundle> closure) {
+        if (candidates == null) {
+            return null;
+        }
+        final Filter filter = getFilter(requirement);
+        Bundle provider = null;
+        int providerLevel = Integer.MAX_VALUE;
+        for (final BundleCapability capability : candidates) {
+            if (filter != null && !filter.matches(capability.getAttributes())) {
+                continue;
+            }
+            final Bundle bundle = capability.getRevision().getBundle();
+            if (bundle.getBundleId() == 0 || closure.contains(bundle)) {
+                return null;
+            }
+            final BundleStartLevel bsl = bundle.adapt(BundleStartLevel.class);
+            final int level = bsl != null ? bsl.getStartLevel() : Integer.MAX_VALUE - 1;
+            if (level < providerLevel) {
+                provider = bundle;
+                providerLevel = level;
+            }
+        }
+        return provider;
+    }
+
+    private static boolean isFragment(final BundleRevision revision) {
+        return revision != null && (revision.getTypes() & BundleRevision.TYPE_FRAGMENT) != 0;
+    }
+
+    private boolean matches(final BundleRequirement requirement, final List<BundleCapability> capabilities) {
+        final Filter filter = getFilter(requirement);
+        for (final BundleCapability capability : capabilities) {
+            if (filter == null || filter.matches(capability.getAttributes())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the filter of the requirement or <code>null</code> if the
+     * requirement matches any capability of its namespace.
+     */
+    private Filter getFilter(final BundleRequirement requirement) {
+        final String filter = requirement.getDirectives().get(Namespace.REQUIREMENT_FILTER_DIRECTIVE);
+        if (filter == null) {
+            return null;
+        }
+        try {
+            return FrameworkUtil.createFilter(filter);
+        } catch (final InvalidSyntaxException ise) {
+            logger.log(Logger.LOG_DEBUG, "Ignoring invalid filter " + filter + ": " + ise);
+            return null;
+        }
+    }
+}
@@ -18,22 +18,31 @@
  */
 package org.apache.sling.launchpad.base.impl;
 
-import java.lang.reflect.InvocationTargetException;
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.Dictionary;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.felix.framework.Logger;
 import org.apache.sling.launchpad.api.StartupHandler;
 import org.apache.sling.launchpad.api.StartupListener;
 import org.apache.sling.launchpad.api.StartupMode;
 import org.apache.sling.launchpad.api.StartupService;
+import org.apache.sling.launchpad.base.shared.SharedConstants;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
@@ -42,6 +51,9 @@ import org.osgi.framework.Constants;
 import org.osgi.framework.FrameworkEvent;
 import org.osgi.framework.FrameworkListener;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
 import org.osgi.service.startlevel.StartLevel;
 import org.osgi.util.tracker.ServiceTracker;
 import org.osgi.util.tracker.ServiceTrackerCustomizer;
@@ -62,15 +74,82 @@ import org.osgi.util.tracker.ServiceTrackerCustomizer;
 public class DefaultStartupHandler
     implements StartupHandler, BundleListener, FrameworkListener, Runnable {
 
+    /** The default quiet period in milliseconds (value is 200). */
+    private static final long DEFAULT_QUIET_PERIOD = 200L;
+
+    /** The default idle timeout in milliseconds (value is 2000). */
+    private static final long DEFAULT_IDLE_TIMEOUT = 2000L;
+
+    /** The default time budget of a startup listener in milliseconds (value is 1000). */
+    private static final long DEFAULT_LISTENER_BUDGET = 1000L;
+
+    /** The default time in milliseconds before raising a deferred start level (value is 1000). */
+    private static final long DEFAULT_DEFERRED_PACE = 1000L;
+
+    /** The default watchdog window in milliseconds (value is 60000). */
+    private static final long DEFAULT_WATCHDOG_WINDOW = 60000L;
+
+    /** The default number of bundles in the timings report (value is 20). */
+    private static final long DEFAULT_TIMINGS_COUNT = 20L;
+
+    /** The service property listing the slowest bundles of the startup. */
+    private static final String PROP_SLOWEST_BUNDLES = "startup.slowest.bundles";
+
+    /** The service property with the duration of the startup in milliseconds. */
+    private static final String PROP_DURATION = "startup.duration";
+
+    /** The service property with the progress of the startup. */
+    private static final String PROP_PROGRESS = "startup.progress";
+
+    /** The service property with the predicted time in milliseconds until the startup is finished. */
+    private static final String PROP_REMAINING = "startup.remaining";
+
+    /** The name of the log service interface. */
+    private static final String LOG_SERVICE = "org.osgi.service.log.LogService";
+
     /** Logger. */
     private final Logger logger;
 
+    /** Whether debug messages are logged, as configured for the logger at construction. */
+    private final boolean debugEnabled;
+
+    /**
+     * Tracker binding the log service, if available, to its log method: the
+     * tracked object is the log service and its method.
+     */
+    private final ServiceTracker<Object, Object[]> logServiceTracker;
+
+    /** Executor passing log messages on outside the event dispatch threads. */
+    private final ExecutorService logExecutor;
+
     /** Marker for finished. */
     private final AtomicBoolean finished = new AtomicBoolean(false);
 
     /** Marker if startup should wait */
     private final AtomicInteger startupShouldWait = new AtomicInteger(0);
 
+    /** Lock notified whenever the startup is asked to wait or to go on. */
+    private final Object waitLock = new Object();
+
+    /** Time of the last call to {@link #waitWithStartup(boolean)}, guarded by waitLock. */
+    private long lastWaitChange;
+
+    /** Whether {@link #waitWithStartup(boolean)} has been called, guarded by waitLock. */
+    private boolean waitSignaled;
+
+    /**
+     * Time in milliseconds without a call to {@link #waitWithStartup(boolean)}
+     * after which the start level is increased.
+     */
+    private final long quietPeriod;
+
+    /**
+     * Time in milliseconds after a start level change after which the
+     * start level is increased if {@link #waitWithStartup(boolean)} has
+     * never been called.
+     */
+    private final long idleTimeout;
+
     /** The queue for increasing the start level. */
     private final BlockingQueue<Boolean> queue = new LinkedBlockingQueue<>();
 
@@ -80,18 +159,42 @@ public class DefaultStartupHandler
     /** The target start level. */
     private final long targetStartLevel;
 
+    /** The start level at which the startup is finished. */
+    private final long readyStartLevel;
+
+    /** Time in milliseconds to wait before raising each start level above the ready level. */
+    private final long deferredPace;
+
+    /** Whether the start levels above the ready level are being raised. */
+    private volatile boolean deferring;
+
     /** The startup mode. */
     private final StartupMode startupMode;
 
     /** Service tracker for startup listeners. */
     private final ServiceTracker<StartupListener, StartupListener> listenerTracker;
 
+    /** Executor notifying the startup listeners in order outside the event dispatch threads. */
+    private final ExecutorService listenerExecutor;
+
+    /** The latest progress not yet passed to the startup listeners, if any. */
+    private final AtomicReference<Float> pendingProgress = new AtomicReference<>();
+
+    /** Time in milliseconds a startup listener may take before a warning is logged. */
+    private final long listenerBudget;
+
     /** Expected bundle counts. */
     private final int expectedBundlesCount;
 
     /** Active bundle set. */
     private final Set<String> activeBundles = new HashSet<>();
 
+    /** The start level of the latest started bundle, only used by the event thread. */
+    private int startedLevel;
+
+    /** The number of started bundles of that start level, only used by the event thread. */
+    private int startedInLevel;
+
     /** Bundle Context. */
     private final BundleContext bundleContext;
 
@@ -107,7 +210,38 @@ public class DefaultStartupHandler
     /** The startup manager. */
     private final StartupManager startupManager;
 
-    private volatile Object[] logService;
+    /**
+     * The start levels with changed bundles or <code>null</code> if
+     * unknown. Used to skip levels without changes in incremental mode.
+     */
+    private final SortedSet<Integer> changedLevels;
+
+    /** The start level reached by the previous incremental step. */
+    private int lastStartLevel;
+
+    /** The timings of the start levels and bundles. */
+    private final StartupTimings timings;
+
+    /** The number of bundles in the timings report, 0 for no report. */
+    private final int timingsCount;
+
+    /** The watchdog reporting a stalled startup or <code>null</code> if disabled. */
+    private final StartupWatchdog watchdog;
+
+    /** The starter activating the bundles of a start level in parallel or <code>null</code> if disabled. */
+    private final LevelStarter levelStarter;
+
+    /** The profile of the previous startups. */
+    private final StartupProfile profile;
+
+    /** The file of the startup profile or <code>null</code> if not available. */
+    private final File profileFile;
+
+    /** The predicted time the startup is finished or -1 if not known. */
+    private volatile long predictedFinishAt = -1;
+
+    /** The registration of this startup handler. */
+    private final ServiceRegistration<?> registration;
 
     /**
      * Constructor.
@@ -121,10 +255,47 @@ public class DefaultStartupHandler
             final long startedAt) {
         this.logger = logger;
         this.bundleContext = context;
+        this.debugEnabled = logger.getLogLevel() >= Logger.LOG_DEBUG;
+        this.logExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("Apache Sling Startup Logger"));
+        this.logServiceTracker = new ServiceTracker<>(context, LOG_SERVICE,
+                new ServiceTrackerCustomizer<Object, Object[]>() {
+
+                    @Override
+                    public Object[] addingService(final ServiceReference<Object> reference) {
+                        final Object ls = context.getService(reference);
+                        if ( ls != null ) {
+                            try {
+                                final Method logMethod = ls.getClass().getMethod("log",
+                                    ServiceReference.class, Integer.TYPE, String.class, Throwable.class);
+                                logMethod.setAccessible(true);
+                                return new Object[] { ls, logMethod };
+                            } catch (final NoSuchMethodException ex) {
+                                // no need to log
+                            }
+                            context.ungetService(reference);
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public void modifiedService(final ServiceReference<Object> reference, final Object[] service) {
+                        // nothing to do
+                    }
+
+                    @Override
+                    public void removedService(final ServiceReference<Object> reference, final Object[] service) {
+                        context.ungetService(reference);
+                    }
+                });
+        this.logServiceTracker.open();
         this.startedAt = startedAt;
         this.startupMode = manager.getMode();
         this.targetStartLevel = manager.getTargetStartLevel();
+        final long readyLevel = manager.getReadyStartLevel();
+        this.readyStartLevel = readyLevel > 0 && readyLevel < this.targetStartLevel ? readyLevel : this.targetStartLevel;
         this.startupManager = manager;
+        this.timings = new StartupTimings(startedAt);
+        context.addBundleListener(this.timings);
 
         StartupListener listener = null;
         try {
@@ -133,6 +304,8 @@ public class DefaultStartupHandler
             // ignore
         }
         this.mbeanStartupListener = listener;
+        this.listenerBudget = getNumber(context, SharedConstants.SLING_STARTUP_LISTENER_BUDGET, DEFAULT_LISTENER_BUDGET);
+        this.listenerExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("Apache Sling Startup Listener Notifier"));
         this.listenerTracker = new ServiceTracker<>(context, StartupListener.class,
                 new ServiceTrackerCustomizer<StartupListener, StartupListener>() {
 
@@ -150,11 +323,20 @@ public class DefaultStartupHandler
                     public StartupListener addingService(final ServiceReference<StartupListener> reference) {
                         final StartupListener listener = context.getService(reference);
                         if (listener != null) {
-                            try {
-                                listener.inform(startupMode, finished.get());
-                            } catch (final Throwable t) {
-                                logger.log(Logger.LOG_ERROR, "Error calling StartupListener " + listener, t);
-                            }
+                            final boolean isFinished = finished.get();
+                            notifyListeners(new Runnable() {
+
+                                @Override
+                                public void run() {
+                                    notifyListener(listener, "inform", new ListenerCall() {
+
+                                        @Override
+                                        public void call(final StartupListener target) {
+                                            target.inform(startupMode, isFinished);
+                                        }
+                                    });
+                                }
+                            });
                         }
                         return listener;
                     }
@@ -164,6 +346,34 @@ public class DefaultStartupHandler
         context.addFrameworkListener(this);
 
         this.useIncremental = this.startupMode != StartupMode.RESTART && manager.isIncrementalStartupEnabled();
+        this.quietPeriod = getNumber(context, SharedConstants.SLING_STARTUP_QUIET_PERIOD, DEFAULT_QUIET_PERIOD);
+        this.idleTimeout = getNumber(context, SharedConstants.SLING_STARTUP_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+        this.deferredPace = getNumber(context, SharedConstants.SLING_STARTUP_DEFERRED_PACE, DEFAULT_DEFERRED_PACE);
+        this.changedLevels = this.useIncremental ? getChangedLevels(manager.getChangeSet()) : null;
+        this.timingsCount = (int) Math.min(Integer.MAX_VALUE,
+            getNumber(context, SharedConstants.SLING_STARTUP_TIMINGS, DEFAULT_TIMINGS_COUNT));
+
+        final long watchdogWindow = getNumber(context, SharedConstants.SLING_STARTUP_WATCHDOG, DEFAULT_WATCHDOG_WINDOW);
+        if ( watchdogWindow > 0 ) {
+            this.watchdog = new StartupWatchdog(context, logger,
+                context.getBundle(Constants.SYSTEM_BUNDLE_LOCATION).adapt(FrameworkStartLevel.class),
+                this.startupShouldWait, watchdogWindow);
+            this.watchdog.start();
+        } else {
+            this.watchdog = null;
+        }
+        final int startThreads = BundleStarter.getThreads(logger, context);
+        if ( Boolean.valueOf(context.getProperty(SharedConstants.SLING_STARTUP_PARALLEL)) && startThreads > 1 ) {
+            this.log(Logger.LOG_INFO, "Starting the bundles of each start level with " + startThreads + " threads");
+            this.levelStarter = new LevelStarter(logger, context, startThreads);
+            this.levelStarter.start();
+        } else {
+            this.levelStarter = null;
+        }
+
+        final File confDir = manager.getConfigDir();
+        this.profileFile = confDir != null ? new File(confDir, StartupProfile.PROFILE_FILE) : null;
+        this.profile = StartupProfile.load(this.profileFile);
 
         if ( !this.useIncremental ) {
             final Bundle[] bundles = context.getBundles();
@@ -171,12 +381,23 @@ public class DefaultStartupHandler
 
             context.addBundleListener(this);
         } else {
-            this.expectedBundlesCount = 10;
+            final int profiledBundles = this.profile.getBundles(this.startupMode);
+            this.expectedBundlesCount = profiledBundles > 0 ? profiledBundles : 10;
         }
 
-        this.bundleContext.registerService(StartupHandler.class.getName(), this, null);
+        this.registration = this.bundleContext.registerService(StartupHandler.class.getName(), this, null);
         this.log(Logger.LOG_INFO, "Started startup handler with target start level="
                + String.valueOf(this.targetStartLevel) + ", and expected bundle count=" + String.valueOf(this.expectedBundlesCount));
+        if ( this.readyStartLevel < this.targetStartLevel ) {
+            this.log(Logger.LOG_INFO, "Startup finishes at start level " + String.valueOf(this.readyStartLevel)
+                + ", higher start levels are raised afterwards");
+        }
+        final long expectedTime = this.profile.getTotal(this.startupMode);
+        if ( expectedTime > 0 ) {
+            this.predictedFinishAt = startedAt + expectedTime;
+            this.log(Logger.LOG_INFO, "Startup expected to finish in " + String.valueOf(expectedTime)
+                + "ms based on previous startups");
+        }
         final Thread t = new Thread(this);
         t.start();
     }
@@ -210,53 +431,209 @@ public class DefaultStartupHandler
                 // ignore
             }
             if ( doInc != null && doInc ) {
-                // if the installer is idle we first wait
-                // we have to do this to give the installer or plugins for the installer,
-                // time to start after the start level has changed
-                if ( this.startupShouldWait.get() == 0 ) {
-                    this.sleep(2000L);
+                final long changedAt = System.currentTimeMillis();
+                // coalesce requests queued in the meantime
+                while ( Boolean.TRUE.equals(this.queue.peek()) ) {
+                    this.queue.poll();
                 }
-                // now we wait until the installer is idle
-                while ( this.startupShouldWait.get() != 0 ) {
-                    this.sleep(50L);
+                final int startLevel = this.startLevelService.getStartLevel();
+                // levels without changed bundles are passed without waiting
+                if ( this.changedLevels == null
+                     || !this.changedLevels.subSet(this.lastStartLevel + 1, startLevel + 1).isEmpty() ) {
+                    this.timings.waited(startLevel, this.awaitIdle(changedAt));
                 }
+                this.lastStartLevel = startLevel;
                 this.incStartLevel();
             }
         }
     }
 
     /**
-     * Increment the current start level by one
+     * Wait until the installer (or plugins for the installer) is idle after
+     * the start level has changed: until the startup is not asked to wait
+     * and no request to wait has been made for the quiet period. If no
+     * request to wait has been made at all, the installer has time to start
+     * until the idle timeout.
+     * @param changedAt The time the start level changed
+     * @return The time in milliseconds the startup was asked to wait
+     */
+    private long awaitIdle(final long changedAt) {
+        long waited = 0;
+        synchronized ( this.waitLock ) {
+            while ( !this.finished.get() ) {
+                final long timeout;
+                if ( this.startupShouldWait.get() != 0 ) {
+                    // wait for the installer to signal it is idle
+                    timeout = 0;
+                } else {
+                    final long until = this.waitSignaled
+                            ? Math.max(changedAt, this.lastWaitChange) + this.quietPeriod
+                            : changedAt + this.idleTimeout;
+                    timeout = until - System.currentTimeMillis();
+                    if ( timeout <= 0 ) {
+                        return waited;
+                    }
+                }
+                final long before = System.currentTimeMillis();
+                try {
+                    this.waitLock.wait(timeout);
+                } catch (final InterruptedException e) {
+                    // ignore
+                }
+                if ( timeout == 0 ) {
+                    waited += System.currentTimeMillis() - before;
+                }
+            }
+        }
+        return waited;
+    }
+
+    /**
+     * Increment the current start level up to the next start level with
+     * changed bundles if these are known or otherwise up to the next start
+     * level with installed bundles. Levels without (changed) bundles are
+     * skipped.
      */
     private void incStartLevel() {
-        final int newLevel = this.startLevelService.getStartLevel() + 1;
-        this.log(Logger.LOG_DEBUG, "Increasing start level to " + String.valueOf(newLevel));
+        final int currentLevel = this.startLevelService.getStartLevel();
+        final int newLevel = this.nextStartLevel(currentLevel,
+            this.changedLevels != null ? this.changedLevels : this.getOccupiedLevels(),
+            this.readyStartLevel);
+        if ( this.debugEnabled ) {
+            this.log(Logger.LOG_DEBUG, "Increasing start level to " + String.valueOf(newLevel)
+                + (newLevel > currentLevel + 1 ? ", skipping start levels without bundles" : ""));
+        }
         this.startLevelService.setStartLevel(newLevel);
     }
 
+    /**
+     * Returns the lowest of the levels above the current start level, but
+     * at most the limit, or the limit if there is none.
+     */
+    private int nextStartLevel(final int currentLevel, final SortedSet<Integer> levels, final long limit) {
+        final SortedSet<Integer> next = levels.tailSet(currentLevel + 1);
+        return (int) Math.max(currentLevel + 1,
+            next.isEmpty() ? limit : Math.min(next.first(), limit));
+    }
+
+    /**
+     * Raise the start levels above the ready level up to the target start
+     * level after the startup is finished, one level with bundles at a
+     * time after waiting the deferred pace. Stops if the framework stops.
+     */
+    private void raiseDeferredStartLevels() {
+        try {
+            int level = this.startLevelService.getStartLevel();
+            while ( level < this.targetStartLevel && this.isFrameworkActive() ) {
+                Thread.sleep(this.deferredPace);
+                final int newLevel = this.nextStartLevel(level, this.getOccupiedLevels(), this.targetStartLevel);
+                this.log(Logger.LOG_INFO, "Increasing deferred start level to " + String.valueOf(newLevel));
+                this.startLevelService.setStartLevel(newLevel);
+                synchronized ( this.waitLock ) {
+                    while ( this.startLevelService.getStartLevel() < newLevel && this.isFrameworkActive() ) {
+                        this.waitLock.wait(1000);
+                    }
+                }
+                level = this.startLevelService.getStartLevel();
+            }
+            if ( level >= this.targetStartLevel ) {
+                this.log(Logger.LOG_INFO, "Reached target start level " + String.valueOf(level)
+                    + " in " + String.valueOf(System.currentTimeMillis() - this.startedAt) + "ms");
+            }
+        } catch (final InterruptedException ie) {
+            // stop raising
+        } catch (final IllegalStateException ise) {
+            // framework stopped
+        } finally {
+            this.deferring = false;
+            try {
+                if ( this.levelStarter != null ) {
+                    this.levelStarter.stop();
+                }
+                this.bundleContext.removeFrameworkListener(this);
+            } catch (final IllegalStateException ignore) {
+                // framework stopped
+            }
+        }
+    }
+
+    private boolean isFrameworkActive() {
+        return this.bundleContext.getBundle().getState() == Bundle.ACTIVE;
+    }
+
+    /**
+     * Returns the start levels of the installed bundles. The levels are
+     * collected on each increment as the installer may have installed
+     * further bundles in the meantime.
+     */
+    private SortedSet<Integer> getOccupiedLevels() {
+        final SortedSet<Integer> levels = new TreeSet<>();
+        final Bundle[] bundles = this.bundleContext.getBundles();
+        if ( bundles != null ) {
+            for (final Bundle bundle : bundles) {
+                if ( bundle.getBundleId() == 0 ) {
+                    continue;
+                }
+                final BundleStartLevel bsl = bundle.adapt(BundleStartLevel.class);
+                if ( bsl != null ) {
+                    levels.add(bsl.getStartLevel());
+                }
+            }
+        }
+        return levels;
+    }
+
+    /**
+     * Returns the start levels of the changed bundles or <code>null</code>
+     * if not known. Bundles without a start level are assigned the initial
+     * bundle start level.
+     */
+    private SortedSet<Integer> getChangedLevels(final StartupChangeSet changeSet) {
+        if ( changeSet == null ) {
+            return null;
+        }
+        final SortedSet<Integer> levels = new TreeSet<>();
+        for (final Integer level : changeSet.getLevels()) {
+            levels.add(level > 0 ? level : this.startLevelService.getInitialBundleStartLevel());
+        }
+        this.log(Logger.LOG_INFO, "Changed bundles in start levels " + levels);
+        return levels;
+    }
+
     /**
      * @see org.apache.sling.launchpad.api.StartupHandler#waitWithStartup(boolean)
      */
     @Override
     public void waitWithStartup(final boolean flag) {
-        this.log(Logger.LOG_DEBUG, "Wait with startup " + flag);
-        if ( flag ) {
-            this.startupShouldWait.incrementAndGet();
-        } else {
-            this.startupShouldWait.decrementAndGet();
+        if ( this.debugEnabled ) {
+            this.log(Logger.LOG_DEBUG, "Wait with startup " + flag);
+        }
+        synchronized ( this.waitLock ) {
+            if ( flag ) {
+                this.startupShouldWait.incrementAndGet();
+            } else {
+                this.startupShouldWait.decrementAndGet();
+            }
+            this.waitSignaled = true;
+            this.lastWaitChange = System.currentTimeMillis();
+            this.waitLock.notifyAll();
         }
     }
 
     /**
-     * Sleep a little bit
-     * @param time Sleeping time
+     * Returns the non-negative number, like a time in milliseconds, configured
+     * by the framework property or the default value if not set or invalid.
      */
-    private void sleep(final long time) {
-        try {
-            Thread.sleep(time);
-        } catch ( final InterruptedException e) {
-            // ignore
+    private long getNumber(final BundleContext context, final String name, final long defaultValue) {
+        final String value = context.getProperty(name);
+        if ( value != null ) {
+            try {
+                return Math.max(0, Long.parseLong(value.trim()));
+            } catch (final NumberFormatException nfe) {
+                this.log(Logger.LOG_WARNING, "Ignoring invalid value " + value + " for " + name);
+            }
         }
+        return defaultValue;
     }
 
     /**
@@ -277,9 +654,22 @@ public class DefaultStartupHandler
     @Override
     public void frameworkEvent(final FrameworkEvent event) {
         if ( finished.get() ) {
+            if ( this.deferring && event.getType() == FrameworkEvent.STARTLEVEL_CHANGED ) {
+                synchronized ( this.waitLock ) {
+                    this.waitLock.notifyAll();
+                }
+            }
             return;
         }
-        this.log(Logger.LOG_DEBUG, "Received framework event " + event);
+        if ( this.debugEnabled ) {
+            this.log(Logger.LOG_DEBUG, "Received framework event " + event);
+        }
+        if ( event.getType() == FrameworkEvent.STARTED || event.getType() == FrameworkEvent.STARTLEVEL_CHANGED ) {
+            this.timings.startLevelReached(this.startLevelService.getStartLevel(), System.currentTimeMillis());
+            if ( this.watchdog != null ) {
+                this.watchdog.startLevelChanged();
+            }
+        }
 
         if ( !this.useIncremental ) {
             // restart
@@ -290,16 +680,31 @@ public class DefaultStartupHandler
         } else {
             // first startup or update
             if ( event.getType() == FrameworkEvent.STARTED ) {
-                this.enqueue(true);
+                if ( this.readyStartLevel < this.targetStartLevel
+                     && this.startLevelService.getStartLevel() >= this.readyStartLevel ) {
+                    this.startupFinished();
+                } else {
+                    this.enqueue(true);
+                }
 
             } else if ( event.getType() == FrameworkEvent.STARTLEVEL_CHANGED ) {
-                if ( this.startLevelService.getStartLevel() >= this.targetStartLevel ) {
+                if ( this.startLevelService.getStartLevel() >= this.readyStartLevel ) {
                     this.startupFinished();
                 } else {
                     this.enqueue(true);
                     final int startLevel = this.startLevelService.getStartLevel();
-                    this.log(Logger.LOG_DEBUG, "Startup progress " + String.valueOf(startLevel) + '/' + String.valueOf(targetStartLevel));
-                    final float ratio = (float) startLevel / (float) targetStartLevel;
+                    if ( this.debugEnabled ) {
+                        this.log(Logger.LOG_DEBUG, "Startup progress " + String.valueOf(startLevel) + '/' + String.valueOf(readyStartLevel));
+                    }
+                    // weight the progress by the cost of the start levels in previous startups
+                    float ratio = this.profile.getProgress(this.startupMode, startLevel);
+                    if ( ratio < 0 ) {
+                        ratio = (float) startLevel / (float) readyStartLevel;
+                    }
+                    final long remaining = this.profile.getRemaining(this.startupMode, startLevel);
+                    if ( remaining >= 0 ) {
+                        this.predictedFinishAt = System.currentTimeMillis() + remaining;
+                    }
                     this.startupProgress(ratio);
                 }
             }
@@ -314,64 +719,78 @@ public class DefaultStartupHandler
         log(null, level, msg, t);
     }
 
+    /**
+     * Log the message with the log service if available or the logger
+     * otherwise. The message is handed to the log executor, so the calling
+     * thread, usually an event dispatch thread, does not wait for it.
+     */
     private void log(final ServiceReference<?> sRef, final int level, final String msg, final Throwable t) {
-        boolean loggedWithService = false;
-        if ( this.logService == null ) {
-            final ServiceReference<?> ref = this.bundleContext.getServiceReference("org.osgi.service.log.LogService");
-            if ( ref != null ) {
-                final Object ls = this.bundleContext.getService(ref);
-                if ( ls != null ) {
-                    final Class<?>[] formalParams = {
-                            ServiceReference.class,
-                            Integer.TYPE,
-                            String.class,
-                            Throwable.class
-                        };
-
-                    try {
-                        final Method logMethod = ls.getClass().getMethod("log", formalParams);
-                        logMethod.setAccessible(true);
-                        logService = new Object[] { ls, logMethod };
-                    } catch (final NoSuchMethodException ex) {
-                        // no need to log
-                    }
-                }
+        if ( level >= Logger.LOG_DEBUG && !this.debugEnabled ) {
+            return;
+        }
+        final Runnable task = new Runnable() {
+
+            @Override
+            public void run() {
+                dispatch(sRef, level, msg, t);
             }
+        };
+        try {
+            this.logExecutor.execute(task);
+        } catch (final RejectedExecutionException ree) {
+            // startup finished, log directly
+            task.run();
         }
-        if ( this.logService != null ) {
-            final Object[] params = {sRef, new Integer(level), msg, t};
+    }
+
+    private void dispatch(final ServiceReference<?> sRef, final int level, final String msg, final Throwable t) {
+        final Object[] logService = this.logServiceTracker.getService();
+        if ( logService != null ) {
             try {
-                ((Method) this.logService[1]).invoke(this.logService[0], params);
-                loggedWithService = true;
-            } catch (final InvocationTargetException ex) {
-                // no need to log
-            } catch (final IllegalAccessException ex) {
+                ((Method) logService[1]).invoke(logService[0], sRef, level, msg, t);
+                return;
+            } catch (final Exception ex) {
                 // no need to log
             }
         }
-        if ( !loggedWithService ) {
-            logger.log(level, msg);
-        }
+        logger.log(level, msg, t);
     }
 
     /**
      * Notify finished startup
      */
     private void startupFinished() {
-        this.log(Logger.LOG_INFO, "Startup finished in " + String.valueOf(System.currentTimeMillis() - this.startedAt) + "ms");
+        final long finishedAt = System.currentTimeMillis();
+        this.log(Logger.LOG_INFO, "Startup finished in " + String.valueOf(finishedAt - this.startedAt) + "ms");
+        this.deferring = this.readyStartLevel < this.targetStartLevel
+                && this.startLevelService.getStartLevel() < this.targetStartLevel;
         this.finished.set(true);
-
-        for (final StartupListener listener : this.listenerTracker.getServices(new StartupListener[0])) {
-            try {
-                listener.startupFinished(this.startupMode);
-            } catch (Throwable t) {
-                this.log(Logger.LOG_ERROR, "Error calling StartupListener " + listener, t);
-            }
+        this.timings.finish(finishedAt);
+        this.bundleContext.removeBundleListener(this.timings);
+        if ( this.watchdog != null ) {
+            this.watchdog.stop();
         }
-        if ( this.mbeanStartupListener != null ) {
-            this.mbeanStartupListener.startupFinished(this.startupMode);
+        this.saveProfile(finishedAt - this.startedAt);
+        synchronized ( this.waitLock ) {
+            this.waitLock.notifyAll();
         }
 
+        this.notifyListeners(new Runnable() {
+
+            @Override
+            public void run() {
+                notifyAllListeners("startupFinished", new ListenerCall() {
+
+                    @Override
+                    public void call(final StartupListener listener) {
+                        listener.startupFinished(startupMode);
+                    }
+                });
+            }
+        });
+        // listeners added later are informed directly
+        this.listenerExecutor.shutdown();
+
         // stop the queue
         this.enqueue(false);
 
@@ -382,13 +801,22 @@ public class DefaultStartupHandler
         if ( !this.useIncremental ) {
             this.bundleContext.removeBundleListener(this);
         }
-        this.bundleContext.removeFrameworkListener(this);
+        if ( !this.deferring ) {
+            if ( this.levelStarter != null ) {
+                this.levelStarter.stop();
+            }
+            this.bundleContext.removeFrameworkListener(this);
+        }
 
         // register startup service
         final Dictionary<String, Object> serviceProps = new Hashtable<>();
         serviceProps.put(StartupMode.class.getName(), this.startupMode.name());
         serviceProps.put(Constants.SERVICE_DESCRIPTION, "Apache Sling Startup Service");
         serviceProps.put(Constants.SERVICE_VENDOR, "The Apache Software Foundation");
+        serviceProps.put(PROP_DURATION, finishedAt - this.startedAt);
+        if ( this.timingsCount > 0 ) {
+            serviceProps.put(PROP_SLOWEST_BUNDLES, this.reportTimings());
+        }
         this.bundleContext.registerService(StartupService.class, new StartupService() {
 
             @Override
@@ -400,22 +828,165 @@ public class DefaultStartupHandler
 
         // update timestamp
         this.startupManager.markInstalled();
+
+        // close the log service tracker once the pending messages are logged
+        try {
+            this.logExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    logServiceTracker.close();
+                }
+            });
+        } catch (final RejectedExecutionException ree) {
+            // already closed
+        }
+        this.logExecutor.shutdown();
+
+        // raise the start levels above the ready level
+        if ( this.deferring ) {
+            new NamedThreadFactory("Apache Sling Deferred Start Levels").newThread(new Runnable() {
+
+                @Override
+                public void run() {
+                    raiseDeferredStartLevels();
+                }
+            }).start();
+        }
     }
 
     /**
-     * Notify startup progress
+     * Record the timings of this startup in the startup profile.
+     */
+    private void saveProfile(final long duration) {
+        if ( this.profileFile != null ) {
+            this.profile.record(this.startupMode, this.timings, duration);
+            try {
+                this.profile.save(this.profileFile);
+            } catch (final IOException ioe) {
+                this.log(Logger.LOG_WARNING, "Cannot write startup profile " + this.profileFile, ioe);
+            }
+        }
+    }
+
+    /**
+     * Write the timings report to the logs directory and return the
+     * slowest bundles.
+     */
+    private String[] reportTimings() {
+        final List<StartupTimings.BundleTiming> slowest = this.timings.getSlowestBundles(this.timingsCount);
+        final String[] result = new String[slowest.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = slowest.get(i).toString();
+        }
+        final String slingHome = this.bundleContext.getProperty(SharedConstants.SLING_HOME);
+        if ( slingHome != null ) {
+            final File file = new File(new File(slingHome, "logs"), StartupTimings.REPORT_FILE);
+            try {
+                this.timings.writeReport(file, this.timingsCount);
+                this.log(Logger.LOG_INFO, "Startup timings written to " + file);
+            } catch (final IOException ioe) {
+                this.log(Logger.LOG_WARNING, "Cannot write startup timings to " + file, ioe);
+            }
+        }
+        if ( result.length > 0 ) {
+            this.log(Logger.LOG_INFO, "Slowest bundle activation: " + result[0]);
+        }
+        return result;
+    }
+
+    /**
+     * Notify startup progress. Progress not yet passed to the listeners
+     * is replaced, so the listeners only see the latest ratio.
      * @param ratio ratio
      */
     private void startupProgress(final float ratio) {
-        for (final StartupListener listener : this.listenerTracker.getServices(new StartupListener[0])) {
+        if ( this.pendingProgress.getAndSet(ratio) == null ) {
+            this.notifyListeners(new Runnable() {
+
+                @Override
+                public void run() {
+                    final Float latest = pendingProgress.getAndSet(null);
+                    if ( latest != null ) {
+                        notifyAllListeners("startupProgress", new ListenerCall() {
+
+                            @Override
+                            public void call(final StartupListener listener) {
+                                listener.startupProgress(latest);
+                            }
+                        });
+                        publishProgress(latest);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Publish the progress and the predicted remaining time with the
+     * properties of the startup handler service.
+     */
+    private void publishProgress(final float ratio) {
+        if ( this.registration != null && !this.finished.get() ) {
+            final Dictionary<String, Object> props = new Hashtable<>();
+            props.put(PROP_PROGRESS, ratio);
+            final long finishAt = this.predictedFinishAt;
+            if ( finishAt >= 0 ) {
+                props.put(PROP_REMAINING, Math.max(0, finishAt - System.currentTimeMillis()));
+            }
             try {
-                listener.startupProgress(ratio);
-            } catch (final Throwable t) {
-                this.log(Logger.LOG_ERROR, "Error calling StartupListener " + listener, t);
+                this.registration.setProperties(props);
+            } catch (final IllegalStateException ise) {
+                // framework is shutting down
             }
         }
+    }
+
+    /** A call of a startup listener. */
+    private interface ListenerCall {
+
+        void call(StartupListener listener);
+    }
+
+    /**
+     * Run the notification with the listener executor, or directly once
+     * the startup is finished.
+     */
+    private void notifyListeners(final Runnable notification) {
+        try {
+            this.listenerExecutor.execute(notification);
+        } catch (final RejectedExecutionException ree) {
+            notification.run();
+        }
+    }
+
+    /**
+     * Call the tracked startup listeners and the MBean startup listener.
+     */
+    private void notifyAllListeners(final String name, final ListenerCall call) {
+        for (final StartupListener listener : this.listenerTracker.getServices(new StartupListener[0])) {
+            this.notifyListener(listener, name, call);
+        }
         if ( this.mbeanStartupListener != null ) {
-            this.mbeanStartupListener.startupProgress(ratio);
+            this.notifyListener(this.mbeanStartupListener, name, call);
+        }
+    }
+
+    /**
+     * Call the startup listener and log a warning if it exceeds the
+     * time budget.
+     */
+    private void notifyListener(final StartupListener listener, final String name, final ListenerCall call) {
+        final long start = System.currentTimeMillis();
+        try {
+            call.call(listener);
+        } catch (final Throwable t) {
+            this.log(Logger.LOG_ERROR, "Error calling StartupListener " + listener, t);
+        }
+        final long time = System.currentTimeMillis() - start;
+        if ( time > this.listenerBudget ) {
+            this.log(Logger.LOG_WARNING, "StartupListener " + listener + " took " + String.valueOf(time)
+                + "ms in " + name + ", exceeding the budget of " + String.valueOf(this.listenerBudget) + "ms");
         }
     }
 
@@ -425,14 +996,35 @@ public class DefaultStartupHandler
     @Override
     public void bundleChanged(final BundleEvent event) {
         if (!finished.get()) {
-            this.log(Logger.LOG_DEBUG, "Received bundle event " + event);
+            if ( this.debugEnabled ) {
+                this.log(Logger.LOG_DEBUG, "Received bundle event " + event);
+            }
 
             if (event.getType() == BundleEvent.RESOLVED || event.getType() == BundleEvent.STARTED) {
                 // Add (if not existing) bundle to active bundles and refresh progress bar
                 activeBundles.add(event.getBundle().getSymbolicName());
 
-                this.log(Logger.LOG_DEBUG, "Startup progress " + String.valueOf(activeBundles.size()) + '/' + String.valueOf(expectedBundlesCount));
-                final float ratio = (float) activeBundles.size() / (float) expectedBundlesCount;
+                if ( event.getType() == BundleEvent.STARTED ) {
+                    final BundleStartLevel bsl = event.getBundle().adapt(BundleStartLevel.class);
+                    final int level = bsl != null ? bsl.getStartLevel() : 0;
+                    if ( level != this.startedLevel ) {
+                        this.startedLevel = level;
+                        this.startedInLevel = 0;
+                    }
+                    this.startedInLevel++;
+                }
+
+                if ( this.debugEnabled ) {
+                    this.log(Logger.LOG_DEBUG, "Startup progress " + String.valueOf(activeBundles.size()) + '/' + String.valueOf(expectedBundlesCount));
+                }
+                // weight the progress by the cost of the start levels and their bundles in previous startups
+                float ratio = this.profile.getProgress(this.startupMode, this.startedLevel, this.startedInLevel);
+                if ( ratio < 0 ) {
+                    ratio = (float) activeBundles.size() / (float) expectedBundlesCount;
+                } else {
+                    this.predictedFinishAt = System.currentTimeMillis()
+                        + this.profile.getRemaining(this.startupMode, this.startedLevel, this.startedInLevel);
+                }
                 this.startupProgress(ratio);
             } else if (event.getType() == BundleEvent.STOPPED) {
                 // Only remove bundle from active bundles,
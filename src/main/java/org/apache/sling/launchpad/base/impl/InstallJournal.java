@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.felix.framework.Logger;
+import org.apache.sling.launchpad.base.shared.FileTransfer;
+
+/**
+ * The <code>InstallJournal</code> records the steps of the bootstrap
+ * installation in the <code>conf</code> directory as they are committed,
+ * each with the digest of the bundle concerned.
+ * <p>
+ * An installation interrupted before it is {@link #complete() completed},
+ * for example because the process has been killed, leaves the journal
+ * without the final record. The next installation then resumes: bundle
+ * files already copied are not copied again and bundles already installed
+ * or updated from the same content are not updated again.
+ * <p>
+ * The journal is a text file with one record per line:
+ * <code>event TAB digest TAB key</code>, where the key identifies the
+ * bundle source or the copied file and the digest is <code>-</code> if not
+ * known. Each record is flushed and, depending on the
+ * {@link FileTransfer.SyncPolicy}, forced to the storage device before
+ * the next step is taken.
+ */
+class InstallJournal {
+
+    /** The name of the journal file in the conf directory */
+    static final String JOURNAL_FILE = "install-journal.log";
+
+    /** The placeholder for an unknown digest */
+    static final String NO_DIGEST = "-";
+
+    /** The events recorded in the journal */
+    enum Event {
+        BEGIN, PLANNED, COPIED, INSTALLED, UPDATED, STARTED, COMPLETE;
+
+        String getName() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        static Event fromName(final String name) {
+            try {
+                return valueOf(name.toUpperCase(Locale.ENGLISH));
+            } catch (final IllegalArgumentException iae) {
+                return null;
+            }
+        }
+    }
+
+    private final Logger logger;
+
+    private final File journalFile;
+
+    /** The digests of the copied files of an interrupted installation */
+    private final Map<String, String> copied = new HashMap<String, String>();
+
+    /** The digests of the bundles installed or updated by an interrupted installation */
+    private final Map<String, String> committed = new HashMap<String, String>();
+
+    private boolean resuming;
+
+    private FileOutputStream out;
+
+    InstallJournal(final Logger logger, final File confDir) {
+        this.logger = logger;
+        this.journalFile = new File(confDir, JOURNAL_FILE);
+        this.load();
+    }
+
+    /**
+     * Returns <code>true</code> if the journal of an interrupted
+     * installation has been found.
+     */
+    boolean isResuming() {
+        return resuming;
+    }
+
+    /**
+     * Returns the files copied by the interrupted installation with the
+     * digest of their contents.
+     */
+    Map<String, String> getCopied() {
+        return copied;
+    }
+
+    /**
+     * Returns <code>true</code> if the interrupted installation has
+     * installed or updated the bundle of the source from content with the
+     * given digest.
+     */
+    boolean isCommitted(final String key, final String digest) {
+        return digest != null && digest.equals(committed.get(key));
+    }
+
+    /**
+     * Returns <code>true</code> if the interrupted installation has
+     * installed or updated the bundle of the source at all.
+     */
+    boolean hasCommitted(final String key) {
+        return committed.containsKey(key);
+    }
+
+    /**
+     * Opens the journal for writing. Unless resuming, a previous journal is
+     * replaced.
+     */
+    synchronized void open() throws IOException {
+        this.journalFile.getParentFile().mkdirs();
+        this.out = new FileOutputStream(this.journalFile, this.resuming);
+        if (!this.resuming) {
+            this.record(Event.BEGIN, NO_DIGEST, String.valueOf(System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Records a committed step. Failures are logged but do not stop the
+     * installation, which merely cannot be resumed completely then.
+     */
+    synchronized void record(final Event event, final String digest, final String key) {
+        if (this.out == null) {
+            return;
+        }
+        final String line = event.getName() + '\t' + (digest != null ? digest : NO_DIGEST)
+            + '\t' + key.replace('\n', ' ').replace('\r', ' ') + '\n';
+        try {
+            this.out.write(line.getBytes(StandardCharsets.UTF_8));
+            this.out.flush();
+            if (FileTransfer.getSyncPolicy() != FileTransfer.SyncPolicy.NONE) {
+                this.out.getFD().sync();
+            }
+        } catch (final IOException ioe) {
+            logger.log(Logger.LOG_WARNING, "Cannot write to install journal "
+                + this.journalFile + ": " + ioe);
+            this.close();
+        }
+    }
+
+    /**
+     * Records the completion of the installation and closes the journal.
+     */
+    synchronized void complete() {
+        this.record(Event.COMPLETE, NO_DIGEST, String.valueOf(System.currentTimeMillis()));
+        this.close();
+    }
+
+    /**
+     * Closes the journal.
+     */
+    synchronized void close() {
+        if (this.out != null) {
+            try {
+                this.out.close();
+            } catch (final IOException ignore) {
+            }
+            this.out = null;
+        }
+    }
+
+    private void load() {
+        if (!this.journalFile.isFile()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(this.journalFile), StandardCharsets.UTF_8));
+            Event last = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t", 3);
+                final Event event = fields.length == 3 ? Event.fromName(fields[0]) : null;
+                if (event == null) {
+                    // incomplete record written when interrupted
+                    continue;
+                }
+                last = event;
+                if (event == Event.COPIED) {
+                    copied.put(fields[2], fields[1]);
+                } else if (event == Event.INSTALLED || event == Event.UPDATED) {
+                    committed.put(fields[2], fields[1]);
+                }
+            }
+            this.resuming = last != null && last != Event.COMPLETE;
+        } catch (final IOException ioe) {
+            logger.log(Logger.LOG_WARNING, "Cannot read install journal "
+                + this.journalFile + ": " + ioe);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+        if (!this.resuming) {
+            copied.clear();
+            committed.clear();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.sling.launchpad.base.shared.FileTransfer;
+import org.osgi.framework.Bundle;
+
+/**
+ * The <code>InstallPlan</code> lists the decisions of the
+ * {@link BootstrapInstaller} for each bundle found in the launchpad archive
+ * and the startup directory: whether the bundle is installed, updated or
+ * skipped, why, whether it is started and how many bytes are estimated to
+ * be written to do so.
+ * <p>
+ * The plan is computed before any bundle is touched and is then executed
+ * in batches by start level. It can be written as a tab separated report,
+ * one line per bundle.
+ */
+class InstallPlan {
+
+    /** The name of the plan report file in the conf directory */
+    static final String REPORT_FILE = "install-plan.tsv";
+
+    /** The columns of the plan report */
+    private static final String[] COLUMNS = { "action", "start", "level",
+        "symbolicName", "version", "installedVersion", "bytes", "time",
+        "source", "location", "reason" };
+
+    /** The action taken for a bundle */
+    enum Action {
+        INSTALL, UPDATE, SKIP
+    }
+
+    /**
+     * The decision for a single bundle.
+     */
+    static final class Step {
+
+        private final BundleSource source;
+
+        private final ManifestInfo manifest;
+
+        private final Bundle installedBundle;
+
+        private final Action action;
+
+        private final String reason;
+
+        private final String location;
+
+        private final long bytes;
+
+        /** The time in milliseconds the step took, -1 if not executed */
+        private volatile long time = -1;
+
+        Step(final BundleSource source, final ManifestInfo manifest,
+                final Bundle installedBundle, final Action action,
+                final String reason, final String location, final long bytes) {
+            this.source = source;
+            this.manifest = manifest;
+            this.installedBundle = installedBundle;
+            this.action = action;
+            this.reason = reason;
+            this.location = location;
+            this.bytes = bytes;
+        }
+
+        BundleSource getSource() {
+            return source;
+        }
+
+        /**
+         * Returns the manifest information of the bundle archive or
+         * <code>null</code> if the manifest cannot be read.
+         */
+        ManifestInfo getManifest() {
+            return manifest;
+        }
+
+        /**
+         * Returns the bundle installed with the same symbolic name or
+         * <code>null</code> if no such bundle is installed.
+         */
+        Bundle getInstalledBundle() {
+            return installedBundle;
+        }
+
+        Action getAction() {
+            return action;
+        }
+
+        String getReason() {
+            return reason;
+        }
+
+        /**
+         * Returns the location used to install the bundle or
+         * <code>null</code> if the bundle is skipped or updated from a
+         * stream.
+         */
+        String getLocation() {
+            return location;
+        }
+
+        /**
+         * Returns whether the bundle is installed by reference to its file.
+         */
+        boolean isReference() {
+            return location != null && location.startsWith(BootstrapInstaller.REFERENCE_SCHEME);
+        }
+
+        /**
+         * Returns whether the bundle is started after installation: only
+         * newly installed bundles which are not fragments are started.
+         */
+        boolean isStart() {
+            return action == Action.INSTALL && manifest.getFragmentHost() == null;
+        }
+
+        /**
+         * Returns the estimated number of bytes written to execute this
+         * step or -1 if the size of the bundle archive is not known.
+         */
+        long getBytes() {
+            return bytes;
+        }
+
+        long getTime() {
+            return time;
+        }
+
+        void setTime(final long time) {
+            this.time = time;
+        }
+    }
+
+    private final List<Step> steps = new ArrayList<Step>();
+
+    void add(final Step step) {
+        this.steps.add(step);
+    }
+
+    List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * Returns the steps installing or updating a bundle grouped by start
+     * level in ascending order. Each group is executed as a batch.
+     */
+    SortedMap<Integer, List<Step>> getBatches() {
+        final SortedMap<Integer, List<Step>> batches = new TreeMap<Integer, List<Step>>();
+        for (final Step step : steps) {
+            if (step.getAction() != Action.SKIP) {
+                final int level = step.getSource().getStartLevel();
+                List<Step> batch = batches.get(level);
+                if (batch == null) {
+                    batch = new ArrayList<Step>();
+                    batches.put(level, batch);
+                }
+                batch.add(step);
+            }
+        }
+        return batches;
+    }
+
+    /**
+     * Returns the number of steps with the given action.
+     */
+    int count(final Action action) {
+        int count = 0;
+        for (final Step step : steps) {
+            if (step.getAction() == action) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the estimated number of bytes written to execute the plan,
+     * ignoring steps of unknown size.
+     */
+    long getBytes() {
+        long bytes = 0;
+        for (final Step step : steps) {
+            if (step.getBytes() > 0) {
+                bytes += step.getBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the plan as a tab separated report with a header line.
+     */
+    void write(final File file) throws IOException {
+        final StringWriter out = new StringWriter();
+        final PrintWriter pw = new PrintWriter(out);
+        pw.print('#');
+        pw.println(join(COLUMNS));
+        for (final Step step : steps) {
+            final ManifestInfo manifest = step.getManifest();
+            final Bundle installed = step.getInstalledBundle();
+            pw.println(join(new String[] {
+                step.getAction().name(),
+                String.valueOf(step.isStart()),
+                String.valueOf(step.getSource().getStartLevel()),
+                manifest != null ? manifest.getSymbolicName() : null,
+                manifest != null ? manifest.getVersion() : null,
+                installed != null ? String.valueOf(installed.getVersion()) : null,
+                String.valueOf(step.getBytes()),
+                String.valueOf(step.getTime()),
+                step.getSource().toString(),
+                step.getLocation(),
+                step.getReason() }));
+        }
+        pw.flush();
+
+        file.getParentFile().mkdirs();
+        FileTransfer.copy(new ByteArrayInputStream(
+            out.toString().getBytes("UTF-8")), file);
+    }
+
+    @Override
+    public String toString() {
+        return count(Action.INSTALL) + " install(s), " + count(Action.UPDATE)
+            + " update(s), " + count(Action.SKIP) + " skipped, about "
+            + getBytes() + " bytes to write";
+    }
+
+    private static String join(final String[] values) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append('\t');
+            }
+            if (values[i] != null) {
+                // keep one line per bundle
+                sb.append(values[i].replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.felix.framework.Logger;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.startlevel.BundleStartLevel;
+
+/**
+ * The <code>LevelStarter</code> activates the bundles of a start level in
+ * parallel while the framework enters the start level during the startup.
+ * <p>
+ * The framework starts the bundles of a start level one after the other on
+ * its start level thread. When the first bundle of a start level is being
+ * started, the other persistently started bundles of that start level are
+ * started transiently by a {@link BundleStarter} on a background thread,
+ * in waves of bundles not wired to each other. The start level thread
+ * waits for bundles being started and skips bundles already active, so
+ * the start level is still only reached once all its bundles have been
+ * started. The persistent state of the bundles is not changed. The starter
+ * stops itself when the framework is stopped.
+ * <p>
+ * As the start order within a start level is no longer defined, the
+ * starter is only used if enabled with
+ * {@link org.apache.sling.launchpad.base.shared.SharedConstants#SLING_STARTUP_PARALLEL}.
+ */
+class LevelStarter implements SynchronousBundleListener {
+
+    private final Logger logger;
+
+    private final BundleContext bundleContext;
+
+    private final BundleStarter starter;
+
+    /** The start levels whose bundles have been started, guarded by this */
+    private final Set<Integer> levels = new HashSet<Integer>();
+
+    private final ExecutorService executor;
+
+    LevelStarter(final Logger logger, final BundleContext bundleContext, final int threads) {
+        this.logger = logger;
+        this.bundleContext = bundleContext;
+        this.starter = new BundleStarter(logger, bundleContext, threads, true);
+        this.executor = Executors.newSingleThreadExecutor(
+            new NamedThreadFactory("Apache Sling Start Level Starter"));
+    }
+
+    /**
+     * Starts starting the bundles of the start levels entered.
+     */
+    void start() {
+        this.bundleContext.addBundleListener(this);
+    }
+
+    /**
+     * Stops starting bundles. Bundles being started are not interrupted.
+     */
+    void stop() {
+        this.executor.shutdown();
+        try {
+            this.bundleContext.removeBundleListener(this);
+        } catch (final IllegalStateException ignore) {
+            // framework already stopped
+        }
+    }
+
+    @Override
+    public void bundleChanged(final BundleEvent event) {
+        if (event.getType() == BundleEvent.STOPPING && event.getBundle().getBundleId() == 0) {
+            // the framework is stopped before the startup finished
+            stop();
+            return;
+        }
+        if (event.getType() != BundleEvent.STARTING) {
+            return;
+        }
+        final BundleStartLevel bsl = event.getBundle().adapt(BundleStartLevel.class);
+        if (bsl == null) {
+            return;
+        }
+        final int level = bsl.getStartLevel();
+        synchronized (this) {
+            if (!levels.add(level)) {
+                return;
+            }
+        }
+
+        final List<Bundle> group = getPendingBundles(level, event.getBundle());
+        if (group.isEmpty()) {
+            return;
+        }
+        try {
+            this.executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    final long start = System.currentTimeMillis();
+                    final Map<Bundle, Long> times = starter.start(group);
+                    logger.log(Logger.LOG_INFO, "Started " + times.size() + " of " + group.size()
+                        + " bundle(s) of start level " + level + " in parallel in "
+                        + (System.currentTimeMillis() - start) + "ms");
+                }
+            });
+        } catch (final RejectedExecutionException ree) {
+            // stopped, the framework starts the bundles
+        }
+    }
+
+    /**
+     * Returns the bundles of the start level which the framework is going
+     * to start, except the bundle being started.
+     */
+    private List<Bundle> getPendingBundles(final int level, final Bundle starting) {
+        final List<Bundle> group = new ArrayList<Bundle>();
+        for (final Bundle bundle : this.bundleContext.getBundles()) {
+            if (bundle == starting || bundle.getBundleId() == 0
+                    || (bundle.getState() != Bundle.INSTALLED && bundle.getState() != Bundle.RESOLVED)) {
+                continue;
+            }
+            final BundleStartLevel bsl = bundle.adapt(BundleStartLevel.class);
+            if (bsl != null && bsl.getStartLevel() == level && bsl.isPersistentlyStarted()) {
+                group.add(bundle);
+            }
+        }
+        return group;
+    }
+}
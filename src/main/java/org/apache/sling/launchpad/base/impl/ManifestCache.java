@@ -0,0 +1,320 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import org.apache.felix.framework.Logger;
+
+/**
+ * The <code>ManifestCache</code> caches the {@link ManifestInfo} of bundle
+ * files. An entry is valid as long as the file has the size and last
+ * modification time recorded when the manifest was read.
+ * <p>
+ * The cache is stored in the <code>conf</code> directory as a properties
+ * file whose keys are the absolute paths of the bundle files. Manifests of
+ * files not found in the cache can be read concurrently.
+ */
+class ManifestCache {
+
+    /** The name of the cache file in the conf directory */
+    static final String CACHE_FILE = "manifest-cache.properties";
+
+    /** The separator of the fields of a cache entry */
+    private static final char SEPARATOR = '\t';
+
+    private final Logger logger;
+
+    private final File cacheFile;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /** Whether entries have been added since the cache was loaded */
+    private volatile boolean modified;
+
+    ManifestCache(final Logger logger, final File confDir) {
+        this.logger = logger;
+        this.cacheFile = new File(confDir, CACHE_FILE);
+        this.load();
+    }
+
+    /**
+     * Returns the manifest information of the bundle file, reading the
+     * manifest if the cache has no valid entry for the file.
+     *
+     * @return The manifest information or <code>null</code> if the file
+     *      has no manifest or cannot be read.
+     */
+    ManifestInfo get(final File file) {
+        final String key = file.getAbsolutePath();
+        final long size = file.length();
+        final long lastModified = file.lastModified();
+
+        final Entry entry = this.entries.get(key);
+        if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+            return entry.info;
+        }
+
+        final Manifest manifest = this.readManifest(file);
+        if (manifest == null) {
+            return null;
+        }
+        final ManifestInfo info = ManifestInfo.fromManifest(manifest);
+        this.entries.put(key, new Entry(size, lastModified, info));
+        this.modified = true;
+        return info;
+    }
+
+    /**
+     * Returns the manifest information of all the bundle files. Manifests
+     * missing in the cache are read using up to <code>threads</code>
+     * threads.
+     *
+     * @return The manifest information indexed by file. Files whose
+     *      manifest cannot be read are not contained in the map.
+     */
+    Map<File, ManifestInfo> get(final Collection<File> files, final int threads) {
+        final long start = System.currentTimeMillis();
+        final Map<File, ManifestInfo> result = new HashMap<File, ManifestInfo>();
+        final List<File> misses = new ArrayList<File>();
+        for (final File file : files) {
+            final Entry entry = this.entries.get(file.getAbsolutePath());
+            if (entry != null && entry.size == file.length()
+                && entry.lastModified == file.lastModified()) {
+                result.put(file, entry.info);
+            } else {
+                misses.add(file);
+            }
+        }
+
+        if (misses.size() > 1 && threads > 1) {
+            final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(threads, misses.size()),
+                new NamedThreadFactory("Apache Sling Manifest Reader"));
+            try {
+                final List<Future<ManifestInfo>> infos = new ArrayList<Future<ManifestInfo>>();
+                for (final File file : misses) {
+                    infos.add(executor.submit(new Callable<ManifestInfo>() {
+                        @Override
+                        public ManifestInfo call() {
+                            return get(file);
+                        }
+                    }));
+                }
+                for (int i = 0; i < misses.size(); i++) {
+                    final ManifestInfo info = waitFor(infos.get(i));
+                    if (info != null) {
+                        result.put(misses.get(i), info);
+                    }
+                }
+            } finally {
+                executor.shutdown();
+            }
+        } else {
+            for (final File file : misses) {
+                final ManifestInfo info = get(file);
+                if (info != null) {
+                    result.put(file, info);
+                }
+            }
+        }
+
+        logger.log(Logger.LOG_INFO, "Got manifests of " + files.size()
+            + " bundle(s), " + misses.size() + " read from file, in "
+            + (System.currentTimeMillis() - start) + "ms");
+        return result;
+    }
+
+    /**
+     * Writes the cache to the conf directory if it has been modified.
+     * Entries of files which do not exist anymore are removed.
+     */
+    void save() {
+        if (!this.modified) {
+            return;
+        }
+
+        final Properties props = new Properties();
+        for (final Map.Entry<String, Entry> e : this.entries.entrySet()) {
+            if (new File(e.getKey()).isFile()) {
+                props.setProperty(e.getKey(), e.getValue().toString());
+            }
+        }
+
+        OutputStream os = null;
+        try {
+            this.cacheFile.getParentFile().mkdirs();
+            os = new FileOutputStream(this.cacheFile);
+            props.store(os, "Bundle manifest cache");
+            this.modified = false;
+        } catch (final IOException ioe) {
+            logger.log(Logger.LOG_WARNING, "Cannot write manifest cache "
+                + this.cacheFile, ioe);
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private void load() {
+        if (!this.cacheFile.isFile()) {
+            return;
+        }
+
+        final Properties props = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(this.cacheFile);
+            props.load(is);
+        } catch (final IOException ioe) {
+            logger.log(Logger.LOG_WARNING, "Cannot read manifest cache "
+                + this.cacheFile + ", ignoring", ioe);
+            return;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        for (final String key : props.stringPropertyNames()) {
+            final Entry entry = Entry.parse(props.getProperty(key));
+            if (entry != null) {
+                this.entries.put(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Returns the Manifest from the JAR file or <code>null</code> if the
+     * file does not exist or is not a JAR file or has no Manifest.
+     */
+    private Manifest readManifest(final File jar) {
+        JarFile jarFile = null;
+        try {
+            jarFile = new JarFile(jar, false);
+            return jarFile.getManifest();
+        } catch (IOException e) {
+            logger.log(Logger.LOG_WARNING,
+                "Could not get inputstream from file (" + jar + "):" + e);
+        } finally {
+            if (jarFile != null) {
+                try {
+                    jarFile.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+        return null;
+    }
+
+    private static ManifestInfo waitFor(final Future<ManifestInfo> result) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return result.get();
+                } catch (final InterruptedException ie) {
+                    interrupted = true;
+                } catch (final ExecutionException ee) {
+                    // reading the manifest does not throw checked exceptions
+                    throw new RuntimeException(ee.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A cached manifest along with the file state it has been read from.
+     */
+    private static final class Entry {
+
+        final long size;
+
+        final long lastModified;
+
+        final ManifestInfo info;
+
+        Entry(final long size, final long lastModified, final ManifestInfo info) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.info = info;
+        }
+
+        static Entry parse(final String value) {
+            final String[] parts = value.split(String.valueOf(SEPARATOR), -1);
+            if (parts.length == 6) {
+                try {
+                    return new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                        new ManifestInfo(toValue(parts[2]), toValue(parts[3]),
+                            toValue(parts[4]), toValue(parts[5])));
+                } catch (final NumberFormatException ignore) {
+                    // invalid entry, ignored
+                }
+            }
+            return null;
+        }
+
+        private static String toValue(final String field) {
+            return field.length() == 0 ? null : field;
+        }
+
+        private static String toField(final String value) {
+            return value == null ? "" : value;
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(size) + SEPARATOR + lastModified + SEPARATOR
+                + toField(info.getSymbolicName()) + SEPARATOR
+                + toField(info.getVersion()) + SEPARATOR
+                + toField(info.getLastModified()) + SEPARATOR
+                + toField(info.getFragmentHost());
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+
+import org.osgi.framework.Constants;
+
+/**
+ * The <code>ManifestInfo</code> holds the manifest headers of a bundle
+ * archive the {@link BootstrapInstaller} needs to decide whether to install
+ * or update the bundle.
+ */
+class ManifestInfo {
+
+    private final String symbolicName;
+
+    private final String version;
+
+    private final String lastModified;
+
+    private final String fragmentHost;
+
+    ManifestInfo(final String symbolicName, final String version,
+            final String lastModified, final String fragmentHost) {
+        this.symbolicName = symbolicName;
+        this.version = version;
+        this.lastModified = lastModified;
+        this.fragmentHost = fragmentHost;
+    }
+
+    /**
+     * Creates the information from the main attributes of the manifest.
+     */
+    static ManifestInfo fromManifest(final Manifest manifest) {
+        final Attributes attrs = manifest.getMainAttributes();
+        return new ManifestInfo(attrs.getValue(Constants.BUNDLE_SYMBOLICNAME),
+            attrs.getValue(Constants.BUNDLE_VERSION),
+            attrs.getValue(BootstrapInstaller.BND_LAST_MODIFIED_HEADER),
+            attrs.getValue(Constants.FRAGMENT_HOST));
+    }
+
+    /**
+     * Reads the manifest from the bundle archive provided by the stream.
+     * The stream is only read up to the manifest entry and is not closed.
+     *
+     * @return The manifest information or <code>null</code> if the archive
+     *      has no manifest.
+     * @throws IOException If the archive cannot be read.
+     */
+    static ManifestInfo read(final InputStream ins) throws IOException {
+        final JarInputStream jis = new JarInputStream(ins, false);
+        Manifest manifest = jis.getManifest();
+        if (manifest == null) {
+            // the manifest is not the first entry, look for it
+            JarEntry entry;
+            while ((entry = jis.getNextJarEntry()) != null) {
+                if (JarFile.MANIFEST_NAME.equalsIgnoreCase(entry.getName())) {
+                    manifest = new Manifest(jis);
+                    break;
+                }
+            }
+        }
+        return manifest != null ? fromManifest(manifest) : null;
+    }
+
+    /**
+     * Returns the <i>Bundle-SymbolicName</i> header or <code>null</code> if
+     * the header is missing.
+     */
+    String getSymbolicName() {
+        return symbolicName;
+    }
+
+    /**
+     * Returns the symbolic name from the <i>Bundle-SymbolicName</i> header
+     * without any attributes or directives or <code>null</code> if the
+     * header is missing.
+     */
+    String getCleanSymbolicName() {
+        if (symbolicName == null) {
+            return null;
+        }
+        final int semi = symbolicName.indexOf(';');
+        return (semi < 0 ? symbolicName : symbolicName.substring(0, semi)).trim();
+    }
+
+    /**
+     * Returns the <i>Bundle-Version</i> header or <code>null</code> if the
+     * header is missing.
+     */
+    String getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the <i>Bnd-LastModified</i> header or <code>null</code> if the
+     * header is missing.
+     */
+    String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns the <i>Fragment-Host</i> header or <code>null</code> if the
+     * bundle is not a fragment.
+     */
+    String getFragmentHost() {
+        return fragmentHost;
+    }
+
+    @Override
+    public String toString() {
+        return "ManifestInfo [symbolicName=" + symbolicName + ", version="
+            + version + "]";
+    }
+}
@@ -27,9 +27,11 @@ import java.net.URL;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
@@ -42,6 +44,8 @@ import javax.management.ObjectName;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.util.FelixConstants;
 import org.apache.sling.launchpad.api.LaunchpadContentProvider;
+import org.apache.sling.launchpad.api.StartupListener;
+import org.apache.sling.launchpad.base.shared.FileTransfer;
 import org.apache.sling.launchpad.base.shared.Notifiable;
 import org.apache.sling.launchpad.base.shared.SharedConstants;
 import org.apache.sling.launchpad.base.shared.Util;
@@ -163,6 +167,18 @@ public class Sling {
      */
     private static final long REINIT_TIMEOUT = 1000L;
 
+    /**
+     * The default time in milliseconds to wait for further changes in the
+     * startup directory before deploying bundles (value is 2000).
+     */
+    private static final long DEFAULT_WATCH_DEBOUNCE = 2000L;
+
+    /**
+     * The default number of bytes of bundle archives to prefetch while the
+     * framework starts (value is 512MB).
+     */
+    private static final long DEFAULT_PREFETCH_BUDGET = 512L * 1024L * 1024L;
+
     /**
      * The simple logger to log messages during startup and shutdown to
      */
@@ -176,6 +192,18 @@ public class Sling {
      */
     private Framework framework;
 
+    /**
+     * The watcher deploying bundles from the startup directory once the
+     * startup has finished or <code>null</code> if not enabled.
+     */
+    private volatile StartupDirectoryWatcher startupWatcher;
+
+    /**
+     * The prefetcher reading the bundle archives while the framework starts
+     * or <code>null</code> if not enabled.
+     */
+    private volatile BundlePrefetcher prefetcher;
+
     /**
      * Initializes this servlet by loading the framework configuration
      * properties, starting the OSGi framework (Apache Felix) and exposing the
@@ -199,6 +227,12 @@ public class Sling {
         // read the default parameters
         final Map<String, String> props = this.loadConfigProperties(propOverwrite);
 
+        // configure the file copy, overwriting the system property setting
+        final String fsync = props.get(SharedConstants.SLING_COPY_FSYNC);
+        if (fsync != null) {
+            FileTransfer.setSyncPolicy(FileTransfer.SyncPolicy.fromString(fsync));
+        }
+
         // check for bootstrap command file
         copyBootstrapCommandFile(props);
 
@@ -211,8 +245,11 @@ public class Sling {
             Framework tmpFramework = createFramework(notifiable, logger, props);
             init(tmpFramework);
 
+            // restore the start levels left by an unfinished critical path startup
+            new CriticalPath(logger, tmpFramework.getBundleContext(), startupManager.getConfigDir()).restore();
+
             final boolean restart = new BootstrapInstaller(tmpFramework.getBundleContext(), logger,
-                    resourceProvider, startupManager.getMode()).install();
+                    resourceProvider, startupManager.getMode(), startupManager.getChangeSet()).install();
             startupManager.markInstalled();
 
             if (restart) {
@@ -221,16 +258,49 @@ public class Sling {
                 init(tmpFramework);
             }
 
+            // optionally report the start levels proposed for the installed bundles
+            if (Boolean.valueOf(props.get(SharedConstants.SLING_STARTUP_ANALYZE))) {
+                analyzeStartLevels(tmpFramework.getBundleContext(), props,
+                    (int) startupManager.getTargetStartLevel());
+            }
+
+            // optionally start the critical bundles and their dependencies first
+            final Set<String> critical = getCriticalBundles(props);
+            if (!critical.isEmpty()) {
+                new CriticalPath(logger, tmpFramework.getBundleContext(), startupManager.getConfigDir())
+                    .prioritize(critical);
+            }
+
             new DefaultStartupHandler(tmpFramework.getBundleContext(), logger, startupManager, startedAt);
 
+            // optionally watch the startup directory once startup has finished
+            if (Boolean.valueOf(props.get(SharedConstants.SLING_INSTALL_WATCH))) {
+                final StartupDirectoryWatcher watcher = new StartupDirectoryWatcher(logger,
+                    new BootstrapInstaller(tmpFramework.getBundleContext(), logger,
+                        resourceProvider, startupManager.getMode()),
+                    getWatchDebounce(props));
+                tmpFramework.getBundleContext().registerService(StartupListener.class, watcher, null);
+                this.startupWatcher = watcher;
+            }
+
+            // optionally read the bundle archives ahead of their activation
+            if (Boolean.valueOf(props.get(SharedConstants.SLING_PREFETCH))) {
+                final BundlePrefetcher prefetcher = new BundlePrefetcher(logger,
+                    tmpFramework.getBundleContext(), getPrefetchBudget(props));
+                this.prefetcher = prefetcher;
+                prefetcher.start();
+            }
+
             // finally start
             tmpFramework.start();
 
             // only assign field if start succeeds
             this.framework = tmpFramework;
         } catch (final BundleException be) {
+            this.stopPrefetcher();
             throw be;
         } catch (final Exception e) {
+            this.stopPrefetcher();
             // thrown by SlingFelix constructor
             throw new BundleException("Uncaught Instantiation Issue: " + e, e);
         }
@@ -252,6 +322,16 @@ public class Sling {
                 framework = null;
             }
 
+            // stop deploying bundles
+            final StartupDirectoryWatcher watcher = this.startupWatcher;
+            if (watcher != null) {
+                watcher.stop();
+                this.startupWatcher = null;
+            }
+
+            // stop reading bundle archives if the startup has not finished
+            this.stopPrefetcher();
+
             // shutdown the Felix container
             if (myFramework != null) {
                 logger.log(Logger.LOG_INFO, "Shutting down Apache Sling");
@@ -281,6 +361,95 @@ public class Sling {
         }
     }
 
+    /**
+     * Returns the maximum number of bytes to prefetch.
+     *
+     * @see SharedConstants#SLING_PREFETCH_BUDGET
+     */
+    private void stopPrefetcher() {
+        final BundlePrefetcher prefetcher = this.prefetcher;
+        if (prefetcher != null) {
+            prefetcher.stop();
+            this.prefetcher = null;
+        }
+    }
+
+    private long getPrefetchBudget(final Map<String, String> props) {
+        final String budget = props.get(SharedConstants.SLING_PREFETCH_BUDGET);
+        if (budget != null) {
+            try {
+                return Long.parseLong(budget.trim()) * 1024L * 1024L;
+            } catch (final NumberFormatException nfe) {
+                logger.log(Logger.LOG_WARNING, "Ignoring invalid value " + budget
+                    + " for " + SharedConstants.SLING_PREFETCH_BUDGET);
+            }
+        }
+        return DEFAULT_PREFETCH_BUDGET;
+    }
+
+    /**
+     * Returns the time in milliseconds to wait for further changes in the
+     * startup directory before deploying bundles.
+     *
+     * @see SharedConstants#SLING_INSTALL_WATCH_DEBOUNCE
+     */
+    private long getWatchDebounce(final Map<String, String> props) {
+        final String debounce = props.get(SharedConstants.SLING_INSTALL_WATCH_DEBOUNCE);
+        if (debounce != null) {
+            try {
+                return Long.parseLong(debounce.trim());
+            } catch (final NumberFormatException nfe) {
+                logger.log(Logger.LOG_WARNING, "Ignoring invalid value " + debounce
+                    + " for " + SharedConstants.SLING_INSTALL_WATCH_DEBOUNCE);
+            }
+        }
+        return DEFAULT_WATCH_DEBOUNCE;
+    }
+
+    /**
+     * Returns the symbolic names of the bundles to start first.
+     *
+     * @see SharedConstants#SLING_STARTUP_CRITICAL
+     */
+    private Set<String> getCriticalBundles(final Map<String, String> props) {
+        final Set<String> names = new LinkedHashSet<String>();
+        final String critical = props.get(SharedConstants.SLING_STARTUP_CRITICAL);
+        if (critical != null) {
+            final StringTokenizer tokener = new StringTokenizer(critical, ", \t");
+            while (tokener.hasMoreTokens()) {
+                names.add(tokener.nextToken());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Writes the start levels proposed for the installed bundles from their
+     * dependencies to <code>logs/start-level-analysis.txt</code>.
+     *
+     * @see SharedConstants#SLING_STARTUP_ANALYZE
+     */
+    private void analyzeStartLevels(final BundleContext context, final Map<String, String> props,
+            final int targetStartLevel) {
+        final StartLevelAnalyzer analyzer = new StartLevelAnalyzer(logger, targetStartLevel);
+        analyzer.addBundles(context.getBundles());
+        analyzer.analyze();
+        final File file = new File(new File(props.get(SharedConstants.SLING_HOME), "logs"),
+            StartLevelAnalyzer.REPORT_FILE);
+        try {
+            analyzer.writeReport(file);
+            logger.log(Logger.LOG_INFO, "Start level analysis written to " + file + ": "
+                + analyzer.getCycles().size() + " cycle(s), " + analyzer.getUnresolved().size()
+                + " bundle(s) with unresolved requirements");
+            if (!analyzer.getOverflowing().isEmpty()) {
+                logger.log(Logger.LOG_WARNING, "Start level analysis: " + analyzer.getOverflowing().size()
+                    + " bundle(s) need a start level above the target start level " + targetStartLevel);
+            }
+        } catch (final IOException ioe) {
+            logger.log(Logger.LOG_WARNING, "Cannot write start level analysis " + file, ioe);
+        }
+    }
+
     // ---------- BundleActivator ----------------------------------------------
 
     /**
@@ -486,17 +655,11 @@ public class Sling {
                 InputStream src = this.resourceProvider.getResourceAsStream(path);
                 if (src != null) {
                     File target = new File(slingHome, path);
-                    OutputStream dest = null;
                     try {
                         // only copy file if not existing
                         if (!target.exists()) {
                             target.getParentFile().mkdirs();
-                            dest = new FileOutputStream(target);
-                            byte[] buf = new byte[2048];
-                            int rd;
-                            while ((rd = src.read(buf)) >= 0) {
-                                dest.write(buf, 0, rd);
-                            }
+                            FileTransfer.copy(src, target);
                         }
 
                         // after copying replace property and add url property
@@ -509,12 +672,6 @@ public class Sling {
                         this.logger.log(Logger.LOG_ERROR, "Cannot copy file "
                             + value + " to " + target, ioe);
                     } finally {
-                        if (dest != null) {
-                            try {
-                                dest.close();
-                            } catch (IOException ignore) {
-                            }
-                        }
                         try {
                             src.close();
                         } catch (IOException ignore) {
@@ -870,7 +1027,6 @@ public class Sling {
         if ( url != null ) {
             this.logger.log(Logger.LOG_DEBUG, "Checking last modification date of bootstrap command file.");
             InputStream is = null;
-            OutputStream os = null;
             try {
                 final long lastModified = url.openConnection().getLastModified();
                 final File launchpadHome = new File(props.get(SharedConstants.SLING_LAUNCHPAD));
@@ -882,12 +1038,7 @@ public class Sling {
                 if ( copyFile ) {
                     this.logger.log(Logger.LOG_INFO, "Copying bootstrap command file.");
                     is = this.resourceProvider.getResourceAsStream(BootstrapInstaller.BOOTSTRAP_CMD_FILENAME);
-                    os = new FileOutputStream(cmdFile);
-                    final byte[] buffer = new byte[2048];
-                    int l;
-                    while ( (l = is.read(buffer, 0, buffer.length)) != -1 ) {
-                        os.write(buffer, 0, l);
-                    }
+                    FileTransfer.copy(is, cmdFile);
                 }
 
             } catch (final IOException ioe) {
@@ -896,9 +1047,6 @@ public class Sling {
                 if ( is != null ) {
                     try { is.close(); } catch (final IOException ignore) {}
                 }
-                if ( os != null ) {
-                    try { os.close(); } catch (final IOException ignore) {}
-                }
             }
         } else {
             this.logger.log(Logger.LOG_DEBUG, "Bootstrap command file not found.");
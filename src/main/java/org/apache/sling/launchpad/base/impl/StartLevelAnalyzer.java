@@ -0,0 +1,700 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.StringMap;
+import org.apache.felix.framework.util.manifestparser.ManifestParser;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.resource.Namespace;
+
+/**
+ * The <code>StartLevelAnalyzer</code> proposes start levels for a set of
+ * bundles from the dependencies declared in their manifests: the
+ * <i>Import-Package</i>, <i>Require-Bundle</i> and
+ * <i>Require-Capability</i> requirements matched against the
+ * <i>Export-Package</i>, <i>Bundle-SymbolicName</i> and
+ * <i>Provide-Capability</i> capabilities of the other bundles.
+ * <p>
+ * A bundle is placed one start level above the highest bundle it depends
+ * on, so each start level holds as many bundles as possible which can be
+ * activated in parallel and the number of start levels is minimal.
+ * Bundles depending on each other in a cycle share a start level.
+ * Fragments are placed in the start level of their host. Cycles and
+ * mandatory requirements not satisfied by any bundle or the system bundle
+ * are reported, as are bundles whose dependencies need more start levels
+ * than available up to the target start level of the framework. The
+ * layering is not compressed to fit, as bundles sharing a start level are
+ * started in no particular order.
+ * <p>
+ * The analyzer is used at runtime to report on the installed bundles and
+ * from the command line to report on and optionally rewrite a directory
+ * laid out like <code>startup/&lt;level&gt;</code> or
+ * <code>resources/bundles/&lt;level&gt;</code>:
+ *
+ * <pre>
+ * java -cp org.apache.sling.launchpad.base.jar \
+ *     org.apache.sling.launchpad.base.impl.StartLevelAnalyzer [-rewrite] [-target &lt;level&gt;] &lt;dir&gt;
+ * </pre>
+ */
+class StartLevelAnalyzer {
+
+    /** The name of the report file in the logs directory */
+    static final String REPORT_FILE = "start-level-analysis.txt";
+
+    /** The lowest start level proposed */
+    private static final int FIRST_START_LEVEL = 1;
+
+    /**
+     * The target start level assumed from the command line if none is
+     * given, the beginning start level of the default configuration (value
+     * is 30).
+     */
+    private static final int DEFAULT_TARGET_START_LEVEL = 30;
+
+    /** A bundle analyzed */
+    static final class Node {
+
+        private final String location;
+
+        private final String symbolicName;
+
+        private final int currentLevel;
+
+        private final boolean fragment;
+
+        private final List<BundleCapability> capabilities;
+
+        private final List<BundleRequirement> requirements;
+
+        private final Set<Node> dependencies = new LinkedHashSet<Node>();
+
+        private Node host;
+
+        private int proposedLevel;
+
+        /** The Tarjan index and low link, -1 if not visited */
+        private int index = -1;
+
+        private int lowLink;
+
+        private boolean onStack;
+
+        Node(final String location, final String symbolicName, final int currentLevel, final boolean fragment,
+                final List<BundleCapability> capabilities, final List<BundleRequirement> requirements) {
+            this.location = location;
+            this.symbolicName = symbolicName;
+            this.currentLevel = currentLevel;
+            this.fragment = fragment;
+            this.capabilities = capabilities;
+            this.requirements = requirements;
+        }
+
+        String getLocation() {
+            return location;
+        }
+
+        String getSymbolicName() {
+            return symbolicName;
+        }
+
+        int getCurrentLevel() {
+            return currentLevel;
+        }
+
+        int getProposedLevel() {
+            return proposedLevel;
+        }
+
+        @Override
+        public String toString() {
+            return symbolicName + " (" + location + ")";
+        }
+    }
+
+    private final Logger logger;
+
+    /** The highest start level which may be proposed */
+    private final int targetStartLevel;
+
+    private final List<Node> nodes = new ArrayList<Node>();
+
+    /** The capabilities provided by the system bundle */
+    private final List<BundleCapability> systemCapabilities = new ArrayList<BundleCapability>();
+
+    /** The bundles depending on each other in a cycle */
+    private final List<List<Node>> cycles = new ArrayList<List<Node>>();
+
+    /** The mandatory requirements not satisfied by any bundle */
+    private final Map<Node, List<BundleRequirement>> unresolved = new IdentityHashMap<Node, List<BundleRequirement>>();
+
+    /**
+     * @param logger The logger
+     * @param targetStartLevel The start level the framework is started to,
+     *            the highest start level which may be proposed
+     */
+    StartLevelAnalyzer(final Logger logger, final int targetStartLevel) {
+        this.logger = logger;
+        this.targetStartLevel = targetStartLevel;
+    }
+
+    /**
+     * Adds the capabilities of the system bundle, which satisfy
+     * requirements but are not placed in a start level.
+     */
+    void addSystemCapabilities(final List<BundleCapability> capabilities) {
+        systemCapabilities.addAll(capabilities);
+    }
+
+    /**
+     * Adds a bundle to analyze.
+     *
+     * @param location The location of the bundle, reported and used to
+     *            rewrite a layout
+     * @param currentLevel The start level currently assigned to the bundle
+     * @param headers The manifest headers of the bundle
+     * @return <code>false</code> if the manifest cannot be parsed, in which
+     *         case the bundle is ignored
+     */
+    boolean addBundle(final String location, final int currentLevel, final Map<String, Object> headers) {
+        final Map<String, Object> headerMap = new StringMap(headers);
+        if (headerMap.get(Constants.BUNDLE_SYMBOLICNAME) == null) {
+            logger.log(Logger.LOG_WARNING, "Ignoring " + location + " without Bundle-SymbolicName");
+            return false;
+        }
+        try {
+            final ManifestParser parser = new ManifestParser(logger, Collections.<String, Object> emptyMap(), null,
+                headerMap);
+            nodes.add(new Node(location, parser.getSymbolicName(), currentLevel,
+                headerMap.get(Constants.FRAGMENT_HOST) != null, parser.getCapabilities(), parser.getRequirements()));
+            return true;
+        } catch (final BundleException be) {
+            logger.log(Logger.LOG_WARNING, "Ignoring " + location + " with invalid manifest: " + be.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Adds the installed bundles except the system bundle, whose
+     * capabilities are added as system capabilities.
+     */
+    void addBundles(final Bundle[] bundles) {
+        for (final Bundle bundle : bundles) {
+            if (bundle.getBundleId() == 0) {
+                final BundleRevision revision = bundle.adapt(BundleRevision.class);
+                if (revision != null) {
+                    addSystemCapabilities(revision.getDeclaredCapabilities(null));
+                }
+            } else if (bundle.getState() != Bundle.UNINSTALLED) {
+                final BundleStartLevel bsl = bundle.adapt(BundleStartLevel.class);
+                final Map<String, Object> headers = new HashMap<String, Object>();
+                final Dictionary<String, String> dict = bundle.getHeaders("");
+                for (final Enumeration<String> keys = dict.keys(); keys.hasMoreElements();) {
+                    final String key = keys.nextElement();
+                    headers.put(key, dict.get(key));
+                }
+                addBundle(bundle.getLocation(), bsl != null ? bsl.getStartLevel() : 0, headers);
+            }
+        }
+    }
+
+    /**
+     * Builds the dependency graph and computes the proposed start levels,
+     * the cycles and the unresolved requirements.
+     */
+    void analyze() {
+        final Map<String, List<BundleCapability>> index = new HashMap<String, List<BundleCapability>>();
+        final Map<BundleCapability, Node> providers = new IdentityHashMap<BundleCapability, Node>();
+        for (final Node node : nodes) {
+            for (final BundleCapability capability : node.capabilities) {
+                getList(index, capability.getNamespace()).add(capability);
+                providers.put(capability, node);
+            }
+        }
+        for (final BundleCapability capability : systemCapabilities) {
+            getList(index, capability.getNamespace()).add(capability);
+        }
+
+        // fragments are placed with their host, so do their capabilities
+        for (final Node node : nodes) {
+            if (node.fragment) {
+                for (final BundleRequirement requirement : node.requirements) {
+                    if (BundleRevision.HOST_NAMESPACE.equals(requirement.getNamespace())) {
+                        node.host = getProvider(node, requirement, index, providers);
+                        if (node.host == null) {
+                            addUnresolved(node, requirement);
+                        }
+                    }
+                }
+                if (node.host != null) {
+                    for (final BundleCapability capability : node.capabilities) {
+                        providers.put(capability, node.host);
+                    }
+                }
+            }
+        }
+
+        for (final Node node : nodes) {
+            // fragments contribute their requirements to their host
+            final Node dependent = node.host != null ? node.host : node;
+            for (final BundleRequirement requirement : node.requirements) {
+                if (BundleRevision.HOST_NAMESPACE.equals(requirement.getNamespace())
+                        || "osgi.ee".equals(requirement.getNamespace())) {
+                    // the host is handled above, the execution environment
+                    // is provided by the platform
+                    continue;
+                }
+                final Node provider = getProvider(dependent, requirement, index, providers);
+                if (provider != null && provider != dependent) {
+                    dependent.dependencies.add(provider);
+                } else if (provider == null && isMandatory(requirement)
+                        && !isSatisfied(requirement, index.get(requirement.getNamespace()))) {
+                    addUnresolved(node, requirement);
+                }
+            }
+        }
+
+        final Map<Node, List<Node>> components = findComponents();
+        for (final Node node : nodes) {
+            if (!node.fragment) {
+                computeLevel(node, components);
+            }
+        }
+        for (final Node node : nodes) {
+            if (node.fragment) {
+                node.proposedLevel = node.host != null ? node.host.proposedLevel : node.currentLevel;
+            }
+        }
+    }
+
+    /**
+     * Returns the bundle satisfying the requirement: the bundle itself, a
+     * bundle already a dependency or the bundle with the lowest current
+     * start level. <code>null</code> is returned if the requirement is only
+     * satisfied by the system bundle or not at all.
+     */
+    private Node getProvider(final Node node, final BundleRequirement requirement,
+            final Map<String, List<BundleCapability>> index, final Map<BundleCapability, Node> providers) {
+        final List<BundleCapability> candidates = index.get(requirement.getNamespace());
+        if (candidates == null) {
+            return null;
+        }
+        Node provider = null;
+        for (final BundleCapability capability : candidates) {
+            if (!requirement.matches(capability)) {
+                continue;
+            }
+            final Node candidate = providers.get(capability);
+            if (candidate == null || candidate == node || node.dependencies.contains(candidate)) {
+                // system bundle, the bundle itself or already depended on
+                return candidate;
+            }
+            if (provider == null || candidate.currentLevel < provider.currentLevel) {
+                provider = candidate;
+            }
+        }
+        return provider;
+    }
+
+    private static boolean isSatisfied(final BundleRequirement requirement,
+            final List<BundleCapability> candidates) {
+        if (candidates != null) {
+            for (final BundleCapability capability : candidates) {
+                if (requirement.matches(capability)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isMandatory(final BundleRequirement requirement) {
+        final Map<String, String> directives = requirement.getDirectives();
+        final String effective = directives.get(Namespace.REQUIREMENT_EFFECTIVE_DIRECTIVE);
+        return !Namespace.RESOLUTION_OPTIONAL.equals(directives.get(Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE))
+            && (effective == null || Namespace.EFFECTIVE_RESOLVE.equals(effective));
+    }
+
+    private void addUnresolved(final Node node, final BundleRequirement requirement) {
+        List<BundleRequirement> list = unresolved.get(node);
+        if (list == null) {
+            list = new ArrayList<BundleRequirement>();
+            unresolved.put(node, list);
+        }
+        list.add(requirement);
+    }
+
+    /**
+     * Finds the strongly connected components of the dependency graph with
+     * Tarjan's algorithm and records the components of more than one
+     * bundle as cycles.
+     *
+     * @return The component of each bundle
+     */
+    private Map<Node, List<Node>> findComponents() {
+        final Map<Node, List<Node>> components = new IdentityHashMap<Node, List<Node>>();
+        final Deque<Node> stack = new ArrayDeque<Node>();
+        final int[] counter = new int[1];
+        for (final Node node : nodes) {
+            if (node.index < 0) {
+                connect(node, stack, counter, components);
+            }
+        }
+        return components;
+    }
+
+    private void connect(final Node node, final Deque<Node> stack, final int[] counter,
+            final Map<Node, List<Node>> components) {
+        node.index = node.lowLink = counter[0]++;
+        stack.push(node);
+        node.onStack = true;
+        for (final Node dependency : node.dependencies) {
+            if (dependency.index < 0) {
+                connect(dependency, stack, counter, components);
+                node.lowLink = Math.min(node.lowLink, dependency.lowLink);
+            } else if (dependency.onStack) {
+                node.lowLink = Math.min(node.lowLink, dependency.index);
+            }
+        }
+        if (node.lowLink == node.index) {
+            final List<Node> component = new ArrayList<Node>();
+            Node member;
+            do {
+                member = stack.pop();
+                member.onStack = false;
+                component.add(member);
+                components.put(member, component);
+            } while (member != node);
+            if (component.size() > 1) {
+                cycles.add(component);
+            }
+        }
+    }
+
+    /**
+     * Computes the proposed start level of the bundle as one above the
+     * highest start level of the bundles it depends on outside of its
+     * component.
+     */
+    private int computeLevel(final Node node, final Map<Node, List<Node>> components) {
+        if (node.proposedLevel > 0) {
+            return node.proposedLevel;
+        }
+        final List<Node> component = components.get(node);
+        int level = FIRST_START_LEVEL;
+        for (final Node member : component) {
+            for (final Node dependency : member.dependencies) {
+                if (components.get(dependency) != component) {
+                    level = Math.max(level, computeLevel(dependency, components) + 1);
+                }
+            }
+        }
+        for (final Node member : component) {
+            member.proposedLevel = level;
+        }
+        return level;
+    }
+
+    private static <T> List<T> getList(final Map<String, List<T>> map, final String key) {
+        List<T> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<T>();
+            map.put(key, list);
+        }
+        return list;
+    }
+
+    /**
+     * Returns the analyzed bundles.
+     */
+    List<Node> getBundles() {
+        return nodes;
+    }
+
+    /**
+     * Returns the groups of bundles depending on each other in a cycle.
+     */
+    List<List<Node>> getCycles() {
+        return cycles;
+    }
+
+    /**
+     * Returns the mandatory requirements not satisfied by any bundle by
+     * the bundle declaring them.
+     */
+    Map<Node, List<BundleRequirement>> getUnresolved() {
+        return unresolved;
+    }
+
+    /**
+     * Returns the bundles whose proposed start level is above the target
+     * start level.
+     */
+    List<Node> getOverflowing() {
+        final List<Node> overflowing = new ArrayList<Node>();
+        for (final Node node : nodes) {
+            if (node.proposedLevel > targetStartLevel) {
+                overflowing.add(node);
+            }
+        }
+        return overflowing;
+    }
+
+    /**
+     * Writes the proposed start levels, the bundles above the target start
+     * level, the cycles and the unresolved requirements.
+     */
+    void writeReport(final PrintWriter out) {
+        int changed = 0;
+        for (final Node node : nodes) {
+            if (node.currentLevel != node.proposedLevel) {
+                changed++;
+            }
+        }
+        out.println("Start levels (symbolicName: current -> proposed, location), " + changed + " of "
+            + nodes.size() + " bundles changed");
+        for (final Node node : nodes) {
+            out.println("  " + node.symbolicName + ": " + node.currentLevel + " -> " + node.proposedLevel + ", "
+                + node.location);
+        }
+        out.println();
+        final List<Node> overflowing = getOverflowing();
+        out.println("Above the target start level " + targetStartLevel + " (" + overflowing.size() + " bundles)");
+        for (final Node node : overflowing) {
+            out.println("  " + node.symbolicName + ": " + node.proposedLevel);
+        }
+        out.println();
+        out.println("Cycles (" + cycles.size() + ")");
+        for (final List<Node> cycle : cycles) {
+            final List<String> names = new ArrayList<String>();
+            for (final Node node : cycle) {
+                names.add(node.symbolicName);
+            }
+            out.println("  " + names);
+        }
+        out.println();
+        out.println("Unresolved requirements (" + unresolved.size() + " bundles)");
+        for (final Node node : nodes) {
+            final List<BundleRequirement> requirements = unresolved.get(node);
+            if (requirements != null) {
+                out.println("  " + node.symbolicName);
+                for (final BundleRequirement requirement : requirements) {
+                    out.println("    " + requirement.getNamespace() + ": "
+                        + requirement.getDirectives().get(Namespace.REQUIREMENT_FILTER_DIRECTIVE));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the report to the file.
+     */
+    void writeReport(final File file) throws IOException {
+        file.getParentFile().mkdirs();
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(
+            new FileOutputStream(file), StandardCharsets.UTF_8));
+        try {
+            writeReport(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    // ---------- layout directory
+
+    /**
+     * Adds the bundle archives found in the directory and its numbered
+     * start level sub directories. Archives directly in the directory are
+     * added with start level 0.
+     */
+    void addLayout(final File dir) throws IOException {
+        addArchives(dir, 0);
+        final File[] children = dir.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                if (child.isDirectory()) {
+                    try {
+                        addArchives(child, Integer.parseInt(child.getName()));
+                    } catch (final NumberFormatException nfe) {
+                        // not a start level directory
+                    }
+                }
+            }
+        }
+    }
+
+    private void addArchives(final File dir, final int startLevel) throws IOException {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            if (file.isFile() && file.getName().endsWith(".jar")) {
+                final JarFile jar = new JarFile(file, false);
+                try {
+                    final Manifest manifest = jar.getManifest();
+                    if (manifest != null) {
+                        final Map<String, Object> headers = new HashMap<String, Object>();
+                        for (final Map.Entry<Object, Object> entry : manifest.getMainAttributes().entrySet()) {
+                            headers.put(((Attributes.Name) entry.getKey()).toString(), entry.getValue());
+                        }
+                        addBundle(file.getPath(), startLevel, headers);
+                    }
+                } finally {
+                    jar.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the archives added from a layout directory to the directory of
+     * their proposed start level. Nothing is moved if any proposed start
+     * level is above the target start level.
+     *
+     * @return The number of archives moved
+     * @throws IOException If a proposed start level is above the target
+     *             start level or an archive cannot be moved
+     */
+    int rewriteLayout(final File dir) throws IOException {
+        final List<Node> overflowing = getOverflowing();
+        if (!overflowing.isEmpty()) {
+            throw new IOException("Not rewriting " + dir + ": " + overflowing.size()
+                + " bundle(s) need a start level above the target start level " + targetStartLevel
+                + ", for example " + overflowing.get(0).symbolicName + " at " + overflowing.get(0).proposedLevel);
+        }
+        int moved = 0;
+        for (final Node node : nodes) {
+            if (node.proposedLevel != node.currentLevel) {
+                final File source = new File(node.location);
+                final File targetDir = new File(dir, String.valueOf(node.proposedLevel));
+                final File target = new File(targetDir, source.getName());
+                targetDir.mkdirs();
+                if (!source.renameTo(target)) {
+                    throw new IOException("Cannot move " + source + " to " + target);
+                }
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Returns the capabilities of the system bundle as configured by the
+     * defaults of the framework for the running Java version. On Java 9 and
+     * newer the packages of the platform modules are not included, since
+     * the framework only detects them when launched.
+     */
+    private static List<BundleCapability> getDefaultSystemCapabilities(final Logger logger) throws IOException {
+        final Properties defaults = org.apache.felix.framework.util.Util.loadDefaultProperties(logger);
+        org.apache.felix.framework.util.Util.initializeJPMSEE(System.getProperty("java.specification.version"),
+            defaults, logger);
+        final Map<String, Object> headers = new StringMap();
+        headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, FelixConstants.SYSTEM_BUNDLE_SYMBOLICNAME);
+        headers.put(Constants.EXPORT_PACKAGE, org.apache.felix.framework.util.Util.getPropertyWithSubs(defaults,
+            Constants.FRAMEWORK_SYSTEMPACKAGES));
+        try {
+            return new ManifestParser(logger, Collections.<String, Object> emptyMap(), null, headers)
+                .getCapabilities();
+        } catch (final BundleException be) {
+            throw new IOException("Cannot parse the system packages", be);
+        }
+    }
+
+    /**
+     * Reports on and optionally rewrites a start level layout directory.
+     */
+    public static void main(final String[] args) throws IOException {
+        boolean rewrite = false;
+        int targetStartLevel = DEFAULT_TARGET_START_LEVEL;
+        File dir = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("-rewrite".equals(args[i])) {
+                rewrite = true;
+            } else if ("-target".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    targetStartLevel = Integer.parseInt(args[++i]);
+                } catch (final NumberFormatException nfe) {
+                    dir = null;
+                    break;
+                }
+            } else {
+                dir = new File(args[i]);
+            }
+        }
+        if (dir == null || !dir.isDirectory()) {
+            System.err.println("Usage: StartLevelAnalyzer [-rewrite] [-target <level>] <dir>");
+            System.exit(1);
+            return;
+        }
+
+        final Logger logger = new Logger();
+        final StartLevelAnalyzer analyzer = new StartLevelAnalyzer(logger, targetStartLevel);
+        analyzer.addSystemCapabilities(getDefaultSystemCapabilities(logger));
+        analyzer.addLayout(dir);
+        analyzer.analyze();
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        analyzer.writeReport(out);
+        out.flush();
+        if (!analyzer.getOverflowing().isEmpty()) {
+            System.err.println(analyzer.getOverflowing().size() + " bundle(s) need a start level above the target"
+                + " start level " + targetStartLevel + (rewrite ? ", not rewriting " + dir : ""));
+            System.exit(3);
+            return;
+        }
+        if (rewrite) {
+            System.out.println();
+            System.out.println("Moved " + analyzer.rewriteLayout(dir) + " bundles");
+        }
+        if (!analyzer.getUnresolved().isEmpty()) {
+            System.exit(2);
+        }
+    }
+}
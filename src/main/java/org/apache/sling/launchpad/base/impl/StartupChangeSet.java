@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The <code>StartupChangeSet</code> lists the bundle files of the start
+ * level directories of the startup directory which have been added,
+ * changed or removed since the last startup, as detected by the
+ * {@link StartupManager} by comparing two {@link StartupFingerprint}s.
+ * <p>
+ * A change set is only available if the launcher jars and the bundle pack
+ * are unchanged, thus the bundles of the launchpad archive are the same as
+ * before and only the listed bundle files need to be installed.
+ */
+class StartupChangeSet {
+
+    /** The kind of change of a bundle file */
+    enum Change {
+        ADDED, CHANGED, REMOVED
+    }
+
+    /** The changes by start level directory and file name */
+    private final Map<String, Change> changes = new TreeMap<String, Change>();
+
+    /**
+     * Returns the changes of the bundle files between the two fingerprints.
+     */
+    static StartupChangeSet between(final StartupFingerprint recorded,
+            final StartupFingerprint current) {
+        final StartupChangeSet changeSet = new StartupChangeSet();
+        final Map<String, String> before = recorded.getFiles();
+        final Map<String, String> after = current.getFiles();
+        for (final Map.Entry<String, String> file : after.entrySet()) {
+            final String status = before.get(file.getKey());
+            if (status == null) {
+                changeSet.changes.put(file.getKey(), Change.ADDED);
+            } else if (!status.equals(file.getValue())) {
+                changeSet.changes.put(file.getKey(), Change.CHANGED);
+            }
+        }
+        for (final String file : before.keySet()) {
+            if (!after.containsKey(file)) {
+                changeSet.changes.put(file, Change.REMOVED);
+            }
+        }
+        return changeSet;
+    }
+
+    /**
+     * Returns the changes by start level directory and file name, separated
+     * by a slash.
+     */
+    Map<String, Change> getChanges() {
+        return Collections.unmodifiableMap(changes);
+    }
+
+    /**
+     * Returns the change of the file in the start level directory or
+     * <code>null</code> if the file is unchanged.
+     */
+    Change getChange(final String levelDir, final String fileName) {
+        return changes.get(levelDir + '/' + fileName);
+    }
+
+    boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /**
+     * Returns the start levels with added or changed bundle files. Start
+     * level directories not denoting a positive start level are reported as
+     * level 0, the default bundle start level.
+     */
+    SortedSet<Integer> getLevels() {
+        final SortedSet<Integer> levels = new TreeSet<Integer>();
+        for (final Map.Entry<String, Change> change : changes.entrySet()) {
+            if (change.getValue() != Change.REMOVED) {
+                final String dir = change.getKey().substring(0, change.getKey().indexOf('/'));
+                int level;
+                try {
+                    level = Math.max(0, Integer.decode(dir));
+                } catch (final NumberFormatException nfe) {
+                    level = 0;
+                }
+                levels.add(level);
+            }
+        }
+        return levels;
+    }
+
+    @Override
+    public String toString() {
+        int added = 0, changed = 0, removed = 0;
+        for (final Change change : changes.values()) {
+            if (change == Change.ADDED) {
+                added++;
+            } else if (change == Change.CHANGED) {
+                changed++;
+            } else {
+                removed++;
+            }
+        }
+        return added + " added, " + changed + " changed, " + removed + " removed";
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.felix.framework.Logger;
+
+/**
+ * The <code>StartupDigestIndex</code> records the content digest, size and
+ * last modification time of the bundle files in the startup directory.
+ * <p>
+ * The index is used to detect whether a bundle file has to be copied from
+ * the launchpad archive again: if the file in the startup directory still
+ * has the recorded size and modification time, it is assumed to still have
+ * the recorded content digest, which can then be compared to the digest of
+ * the source without touching the file in the startup directory.
+ * <p>
+ * The index is stored in the <code>conf</code> directory as a properties
+ * file whose keys are the paths relative to the startup directory.
+ */
+class StartupDigestIndex {
+
+    /** The name of the index file in the conf directory */
+    static final String INDEX_FILE = "startup-digests.properties";
+
+    /** The digest algorithm used for bundle contents */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Logger logger;
+
+    private final File startupDir;
+
+    private final File indexFile;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    StartupDigestIndex(final Logger logger, final File startupDir, final File confDir) {
+        this.logger = logger;
+        this.startupDir = startupDir.getAbsoluteFile();
+        this.indexFile = new File(confDir, INDEX_FILE);
+        this.load();
+    }
+
+    /**
+     * Returns the recorded entry for the given file in the startup directory
+     * if the file still has the recorded size and modification time.
+     * Otherwise <code>null</code> is returned.
+     */
+    Entry getValid(final File file) {
+        final Entry entry = this.entries.get(this.getKey(file));
+        if (entry != null && file.isFile() && file.length() == entry.size
+            && file.lastModified() == entry.lastModified) {
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Records the digest of the given file along with its current size and
+     * modification time.
+     */
+    void put(final File file, final String digest) {
+        this.entries.put(this.getKey(file),
+            new Entry(digest, file.length(), file.lastModified()));
+    }
+
+    /**
+     * Writes the index to the conf directory. Entries of files which do
+     * not exist anymore are removed.
+     */
+    void save() {
+        final Properties props = new Properties();
+        for (final Map.Entry<String, Entry> e : this.entries.entrySet()) {
+            if (new File(this.startupDir, e.getKey()).isFile()) {
+                props.setProperty(e.getKey(), e.getValue().toString());
+            }
+        }
+
+        OutputStream os = null;
+        try {
+            this.indexFile.getParentFile().mkdirs();
+            os = new FileOutputStream(this.indexFile);
+            props.store(os, "Startup directory digest index");
+        } catch (final IOException ioe) {
+            logger.log(Logger.LOG_WARNING, "Cannot write startup digest index "
+                + this.indexFile, ioe);
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private void load() {
+        if (!this.indexFile.isFile()) {
+            return;
+        }
+
+        final Properties props = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(this.indexFile);
+            props.load(is);
+        } catch (final IOException ioe) {
+            logger.log(Logger.LOG_WARNING, "Cannot read startup digest index "
+                + this.indexFile + ", ignoring", ioe);
+            return;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        for (final String key : props.stringPropertyNames()) {
+            final Entry entry = Entry.parse(props.getProperty(key));
+            if (entry != null) {
+                this.entries.put(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Returns the path of the file relative to the startup directory with
+     * forward slashes.
+     */
+    private String getKey(final File file) {
+        final String root = this.startupDir.getPath();
+        String path = file.getAbsolutePath();
+        if (path.startsWith(root)) {
+            path = path.substring(root.length() + 1);
+        }
+        return path.replace(File.separatorChar, '/');
+    }
+
+    // ---------- digest helper
+
+    /**
+     * Returns a new <code>MessageDigest</code> for the algorithm used by the
+     * index.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (final NoSuchAlgorithmException nsae) {
+            // each Java platform is required to support SHA-256
+            throw new IllegalStateException(DIGEST_ALGORITHM + " not supported", nsae);
+        }
+    }
+
+    /**
+     * Reads the stream to its end and returns the hex encoded digest of its
+     * contents. The stream is not closed.
+     */
+    static String digest(final InputStream ins) throws IOException {
+        final MessageDigest md = newDigest();
+        final byte[] buf = new byte[8192];
+        int rd;
+        while ((rd = ins.read(buf)) >= 0) {
+            md.update(buf, 0, rd);
+        }
+        return toHex(md.digest());
+    }
+
+    static String toHex(final byte[] digest) {
+        final char[] result = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            result[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+            result[2 * i + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    /**
+     * The recorded state of a single file.
+     */
+    static final class Entry {
+
+        final String digest;
+
+        final long size;
+
+        final long lastModified;
+
+        Entry(final String digest, final long size, final long lastModified) {
+            this.digest = digest;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        static Entry parse(final String value) {
+            final String[] parts = value.split(",");
+            if (parts.length == 3) {
+                try {
+                    return new Entry(parts[0], Long.parseLong(parts[1]),
+                        Long.parseLong(parts[2]));
+                } catch (final NumberFormatException ignore) {
+                    // invalid entry, ignored
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return digest + ',' + size + ',' + lastModified;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.framework.Logger;
+import org.apache.sling.launchpad.api.StartupListener;
+import org.apache.sling.launchpad.api.StartupMode;
+
+/**
+ * The <code>StartupDirectoryWatcher</code> watches the start level
+ * directories of the startup directory once the startup has finished and
+ * has the {@link BootstrapInstaller} deploy new and changed bundle files
+ * into the running framework.
+ * <p>
+ * Bursts of file events are collected until no further event has been
+ * received for the debounce time, so copying a set of bundles results in a
+ * single deployment. Removed bundle files are ignored, as they are by the
+ * installer during startup.
+ */
+class StartupDirectoryWatcher implements StartupListener, Runnable {
+
+    private final Logger logger;
+
+    private final BootstrapInstaller installer;
+
+    private final long debounce;
+
+    private WatchService watchService;
+
+    private Thread thread;
+
+    StartupDirectoryWatcher(final Logger logger, final BootstrapInstaller installer,
+            final long debounce) {
+        this.logger = logger;
+        this.installer = installer;
+        this.debounce = debounce;
+    }
+
+    // ---------- StartupListener
+
+    @Override
+    public void inform(final StartupMode mode, final boolean finished) {
+        if (finished) {
+            this.start();
+        }
+    }
+
+    @Override
+    public void startupFinished(final StartupMode mode) {
+        this.start();
+    }
+
+    @Override
+    public void startupProgress(final float ratio) {
+        // nothing to do
+    }
+
+    // ---------- watcher
+
+    /**
+     * Starts watching the startup directory unless already watching.
+     */
+    synchronized void start() {
+        if (this.thread != null) {
+            return;
+        }
+
+        final File startupDir = this.installer.getStartupDirectory();
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+            register(startupDir.toPath());
+            final File[] levelDirs = startupDir.listFiles(DirectoryUtil.DIRECTORY_FILTER);
+            if (levelDirs != null) {
+                for (final File levelDir : levelDirs) {
+                    register(levelDir.toPath());
+                }
+            }
+        } catch (final IOException ioe) {
+            logger.log(Logger.LOG_ERROR, "Cannot watch " + startupDir
+                + ", bundles will only be installed on startup", ioe);
+            this.close();
+            return;
+        }
+
+        this.thread = new Thread(this, "Apache Sling Startup Directory Watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        logger.log(Logger.LOG_INFO, "Watching " + startupDir + " for bundles to deploy");
+    }
+
+    /**
+     * Stops watching the startup directory.
+     */
+    synchronized void stop() {
+        if (this.thread != null) {
+            this.close();
+            this.thread.interrupt();
+            this.thread = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        final WatchService watcher = this.watchService;
+        try {
+            while (true) {
+                // wait for the first event and collect further events until
+                // no event has been received for the debounce time
+                boolean changed = this.process(watcher.take());
+                WatchKey key;
+                while ((key = watcher.poll(this.debounce, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= this.process(key);
+                }
+
+                if (changed) {
+                    try {
+                        this.installer.deploy();
+                    } catch (final IllegalStateException ise) {
+                        // framework is stopping
+                        return;
+                    } catch (final RuntimeException re) {
+                        logger.log(Logger.LOG_ERROR, "Failure deploying bundles", re);
+                    }
+                }
+            }
+        } catch (final InterruptedException ie) {
+            // stopped
+        } catch (final ClosedWatchServiceException cwse) {
+            // stopped
+        }
+    }
+
+    /**
+     * Handles the events of the key, registering new start level
+     * directories.
+     *
+     * @return <code>true</code> if a bundle file has been created or
+     *      modified or events have been lost.
+     */
+    private boolean process(final WatchKey key) {
+        boolean changed = false;
+        final Path dir = (Path) key.watchable();
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed = true;
+                continue;
+            }
+
+            final Path child = dir.resolve((Path) event.context());
+            if (child.toFile().isDirectory()) {
+                try {
+                    register(child);
+                    // bundles copied along with the directory
+                    changed = true;
+                } catch (final IOException ioe) {
+                    logger.log(Logger.LOG_WARNING, "Cannot watch " + child, ioe);
+                }
+            } else if (DirectoryUtil.isBundle(child.toString())) {
+                logger.log(Logger.LOG_DEBUG, "Bundle file " + child + " changed");
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void register(final Path dir) throws IOException {
+        dir.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    private void close() {
+        if (this.watchService != null) {
+            try {
+                this.watchService.close();
+            } catch (final IOException ignore) {
+            }
+            this.watchService = null;
+        }
+    }
+}
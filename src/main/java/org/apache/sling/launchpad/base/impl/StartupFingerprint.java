@@ -0,0 +1,315 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * The <code>StartupFingerprint</code> records the state of the launcher
+ * jars and the startup directory at the end of a startup, so the next
+ * startup can tell whether anything changed with a handful of file status
+ * calls instead of listing and checking every bundle file.
+ * <p>
+ * The fingerprint holds the size, modification time and digest of the
+ * launcher jars, the modification times of the startup directory and its
+ * start level directories, the size and modification time of the
+ * {@link BundlePack} and the startup index: the size and modification time
+ * of every bundle file by start level directory and name, along with a hash
+ * of the index.
+ * <p>
+ * {@link #isUnchanged(List, File, boolean)} only compares the recorded
+ * file status with the current one, without listing any directory. Adding,
+ * removing or renaming a bundle file changes the modification time of its
+ * directory. A bundle file overwritten in place only changes its own size
+ * or modification time, which is only compared if requested, at the cost
+ * of one status call per bundle file. If any status differs, a new
+ * fingerprint is {@link #compute(List, File, StartupFingerprint) computed}
+ * and compared to the recorded one with {@link #isSameContent}, which only
+ * reads a launcher jar again if its size or modification time changed.
+ */
+class StartupFingerprint {
+
+    /** The name of the fingerprint file in the conf directory */
+    static final String FINGERPRINT_FILE = "launchpad-fingerprint.properties";
+
+    private static final String LAUNCHER = "launcher.";
+
+    private static final String DIR = "dir.";
+
+    private static final String FILE = "file.";
+
+    private static final String PACK = "pack";
+
+    private static final String INDEX_HASH = "index.hash";
+
+    /** The launcher jars by path: size, modification time and digest */
+    private final Map<String, String[]> launchers = new LinkedHashMap<String, String[]>();
+
+    /** The start level directories by name with their modification time */
+    private final Map<String, Long> directories = new LinkedHashMap<String, Long>();
+
+    /** The bundle files by start level directory and name with their status */
+    private final Map<String, String> files = new TreeMap<String, String>();
+
+    private String pack;
+
+    private String indexHash;
+
+    private StartupFingerprint() {
+    }
+
+    /**
+     * Reads the fingerprint from the file or returns <code>null</code> if
+     * the file does not exist or cannot be read.
+     */
+    static StartupFingerprint load(final File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        final Properties props = new Properties();
+        InputStream ins = null;
+        try {
+            ins = new FileInputStream(file);
+            props.load(ins);
+        } catch (final IOException ioe) {
+            return null;
+        } finally {
+            if (ins != null) {
+                try {
+                    ins.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        final StartupFingerprint fingerprint = new StartupFingerprint();
+        for (final String key : props.stringPropertyNames()) {
+            final String value = props.getProperty(key);
+            if (key.startsWith(LAUNCHER)) {
+                final String[] fields = value.split(":", 3);
+                if (fields.length == 3) {
+                    fingerprint.launchers.put(key.substring(LAUNCHER.length()), fields);
+                }
+            } else if (key.startsWith(DIR)) {
+                try {
+                    fingerprint.directories.put(key.substring(DIR.length()), Long.valueOf(value));
+                } catch (final NumberFormatException nfe) {
+                    return null;
+                }
+            } else if (key.startsWith(FILE)) {
+                fingerprint.files.put(key.substring(FILE.length()), value);
+            }
+        }
+        fingerprint.pack = props.getProperty(PACK);
+        fingerprint.indexHash = props.getProperty(INDEX_HASH);
+        if (fingerprint.pack == null || fingerprint.indexHash == null) {
+            return null;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Writes the fingerprint to the file.
+     */
+    void save(final File file) throws IOException {
+        final Properties props = new Properties();
+        for (final Map.Entry<String, String[]> launcher : launchers.entrySet()) {
+            final String[] fields = launcher.getValue();
+            props.setProperty(LAUNCHER + launcher.getKey(),
+                fields[0] + ":" + fields[1] + ":" + fields[2]);
+        }
+        for (final Map.Entry<String, Long> dir : directories.entrySet()) {
+            props.setProperty(DIR + dir.getKey(), String.valueOf(dir.getValue()));
+        }
+        for (final Map.Entry<String, String> bundleFile : files.entrySet()) {
+            props.setProperty(FILE + bundleFile.getKey(), bundleFile.getValue());
+        }
+        props.setProperty(PACK, pack);
+        props.setProperty(INDEX_HASH, indexHash);
+
+        file.getParentFile().mkdirs();
+        final OutputStream os = new FileOutputStream(file);
+        try {
+            props.store(os, "Launchpad startup fingerprint");
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Computes the fingerprint of the launcher jars and the startup
+     * directory. Digests of launcher jars are taken from the previous
+     * fingerprint if the jar still has the recorded size and modification
+     * time.
+     */
+    static StartupFingerprint compute(final List<File> launcherJars,
+            final File startupDir,
+            final StartupFingerprint previous) throws IOException {
+        final StartupFingerprint fingerprint = new StartupFingerprint();
+        for (final File jar : launcherJars) {
+            final String size = String.valueOf(jar.length());
+            final String lastModified = String.valueOf(jar.lastModified());
+            final String[] recorded = previous != null ? previous.launchers.get(jar.getPath()) : null;
+            final String digest;
+            if (recorded != null && recorded[0].equals(size) && recorded[1].equals(lastModified)) {
+                digest = recorded[2];
+            } else {
+                final InputStream ins = new FileInputStream(jar);
+                try {
+                    digest = StartupDigestIndex.digest(ins);
+                } finally {
+                    ins.close();
+                }
+            }
+            fingerprint.launchers.put(jar.getPath(), new String[] { size, lastModified, digest });
+        }
+
+        final MessageDigest md = StartupDigestIndex.newDigest();
+        fingerprint.directories.put("", startupDir.lastModified());
+        final File[] levelDirs = startupDir.listFiles(DirectoryUtil.DIRECTORY_FILTER);
+        if (levelDirs != null) {
+            Arrays.sort(levelDirs);
+            for (final File levelDir : levelDirs) {
+                fingerprint.directories.put(levelDir.getName(), levelDir.lastModified());
+                final File[] files = levelDir.listFiles(DirectoryUtil.BUNDLE_FILE_FILTER);
+                if (files != null) {
+                    Arrays.sort(files);
+                    for (final File file : files) {
+                        final String key = levelDir.getName() + '/' + file.getName();
+                        final String status = getStatus(file);
+                        fingerprint.files.put(key, status);
+                        md.update((key + '\t' + status + '\n').getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        }
+        fingerprint.pack = getPackStatus(startupDir);
+        fingerprint.indexHash = StartupDigestIndex.toHex(md.digest());
+        return fingerprint;
+    }
+
+    /**
+     * Returns <code>true</code> if the launcher jars, the startup directory,
+     * its start level directories, the bundle pack and, if requested, the
+     * recorded bundle files still have the recorded size and modification
+     * times.
+     *
+     * @param checkFiles Whether to check the status of every recorded bundle
+     *            file to notice bundle files overwritten in place
+     */
+    boolean isUnchanged(final List<File> launcherJars, final File startupDir, final boolean checkFiles) {
+        if (launcherJars.size() != launchers.size()) {
+            return false;
+        }
+        for (final File jar : launcherJars) {
+            final String[] recorded = launchers.get(jar.getPath());
+            if (recorded == null || !recorded[0].equals(String.valueOf(jar.length()))
+                    || !recorded[1].equals(String.valueOf(jar.lastModified()))) {
+                return false;
+            }
+        }
+        for (final Map.Entry<String, Long> dir : directories.entrySet()) {
+            final File file = dir.getKey().length() == 0 ? startupDir : new File(startupDir, dir.getKey());
+            if (file.lastModified() != dir.getValue()) {
+                return false;
+            }
+        }
+        if (!pack.equals(getPackStatus(startupDir))) {
+            return false;
+        }
+        if (checkFiles) {
+            for (final Map.Entry<String, String> bundleFile : files.entrySet()) {
+                try {
+                    if (!bundleFile.getValue().equals(getStatus(new File(startupDir, bundleFile.getKey())))) {
+                        return false;
+                    }
+                } catch (final IOException ioe) {
+                    // removed or not readable
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if the launcher jars have the same digests,
+     * the bundle pack the same status and the startup index the same hash
+     * as recorded in the other fingerprint.
+     */
+    boolean isSameContent(final StartupFingerprint other) {
+        return isSameLauncher(other) && indexHash.equals(other.indexHash);
+    }
+
+    /**
+     * Returns <code>true</code> if the launcher jars have the same digests
+     * and the bundle pack the same status as recorded in the other
+     * fingerprint, so only bundle files of the start level directories may
+     * differ.
+     */
+    boolean isSameLauncher(final StartupFingerprint other) {
+        if (!launchers.keySet().equals(other.launchers.keySet())) {
+            return false;
+        }
+        for (final Map.Entry<String, String[]> launcher : launchers.entrySet()) {
+            if (!launcher.getValue()[2].equals(other.launchers.get(launcher.getKey())[2])) {
+                return false;
+            }
+        }
+        return pack.equals(other.pack);
+    }
+
+    /**
+     * Returns the status (size and modification time) of the bundle files
+     * by start level directory name and file name, separated by a slash.
+     */
+    Map<String, String> getFiles() {
+        return Collections.unmodifiableMap(files);
+    }
+
+    /**
+     * Returns the size and modification time of the file read with a single
+     * status call.
+     */
+    private static String getStatus(final File file) throws IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return attributes.size() + ":" + attributes.lastModifiedTime().toMillis();
+    }
+
+    private static String getPackStatus(final File startupDir) {
+        final File packFile = new File(startupDir, BundlePack.PACK_FILE);
+        return packFile.length() + ":" + packFile.lastModified();
+    }
+}
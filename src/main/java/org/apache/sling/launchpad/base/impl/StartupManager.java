@@ -22,8 +22,11 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.felix.framework.Logger;
@@ -63,13 +66,41 @@ public class StartupManager {
 
     private final long targetStartLevel;
 
+    private final long readyStartLevel;
+
     private final boolean incrementalStartupEnabled;
 
+    /** Whether the installation is only planned, see {@link #markInstalled()} */
+    private final boolean dryRun;
+
+    /**
+     * The launcher jars or <code>null</code> if the startup fingerprint is
+     * disabled or the jars are not accessible as files.
+     */
+    private final List<File> launcherJars;
+
+    /** Whether the fingerprint check includes the status of every bundle file */
+    private final boolean fingerprintFiles;
+
+    /** The current fingerprint, if known */
+    private StartupFingerprint fingerprint;
+
+    /** Whether the current fingerprint is the recorded one */
+    private boolean fingerprintSaved;
+
+    /** The changed bundle files if only bundle files changed */
+    private StartupChangeSet changeSet;
+
     StartupManager(final Map<String, String> properties,
                    final Logger logger) {
         this.logger = logger;
         this.startupDir = DirectoryUtil.getStartupDir(properties);
         this.confDir = DirectoryUtil.getConfigDir(properties);
+        final String fingerprintProp = properties.get(SharedConstants.SLING_STARTUP_FINGERPRINT);
+        this.launcherJars = fingerprintProp == null || Boolean.valueOf(fingerprintProp)
+                ? getLauncherJars()
+                : null;
+        this.fingerprintFiles = Boolean.valueOf(properties.get(SharedConstants.SLING_STARTUP_FINGERPRINT_FILES));
         // check for override property
         final String overrideMode = System.getProperty(OVERRIDE_PROP, properties.get(OVERRIDE_PROP));
         if ( overrideMode != null ) {
@@ -80,6 +111,16 @@ public class StartupManager {
             this.logger.log(Logger.LOG_INFO, "Detected startup mode. Starting in mode " + this.mode);
         }
 
+        this.dryRun = Boolean.valueOf(System.getProperty(SharedConstants.SLING_INSTALL_DRYRUN,
+            properties.get(SharedConstants.SLING_INSTALL_DRYRUN)));
+
+        // all bundles are checked if the package bundle loading is forced
+        final String forcePackageBundleLoading = System.getProperty(SharedConstants.FORCE_PACKAGE_BUNDLE_LOADING,
+            properties.get(SharedConstants.FORCE_PACKAGE_BUNDLE_LOADING));
+        if ( Boolean.valueOf(forcePackageBundleLoading) ) {
+            this.changeSet = null;
+        }
+
         // populate the sling target start level from the framework one, if not set,
         // otherwise overwrite the framework one
         if (!properties.containsKey(SharedConstants.SLING_INSTALL_TARGETSTARTLEVEL)) {
@@ -89,6 +130,7 @@ public class StartupManager {
         }
 
         this.targetStartLevel = Long.valueOf(properties.get(Constants.FRAMEWORK_BEGINNING_STARTLEVEL));
+        this.readyStartLevel = getReadyStartLevel(properties.get(SharedConstants.SLING_STARTUP_READY_LEVEL));
 
         this.incrementalStartupEnabled = Boolean.valueOf(properties.get(SharedConstants.SLING_INSTALL_INCREMENTAL_START));
 
@@ -96,7 +138,30 @@ public class StartupManager {
         if ( this.mode != StartupMode.RESTART && this.incrementalStartupEnabled ) {
             final String startLevel = properties.get(SharedConstants.SLING_INSTALL_STARTLEVEL);
             properties.put(Constants.FRAMEWORK_BEGINNING_STARTLEVEL, startLevel != null ? startLevel : "10");
+        } else if ( this.readyStartLevel < this.targetStartLevel ) {
+            // the levels above the ready level are raised after the startup
+            properties.put(Constants.FRAMEWORK_BEGINNING_STARTLEVEL, String.valueOf(this.readyStartLevel));
+        }
+    }
+
+    /**
+     * Returns the configured ready start level if it is a positive level
+     * up to the target start level, the target start level otherwise.
+     */
+    private long getReadyStartLevel(final String value) {
+        if ( value != null ) {
+            try {
+                final long level = Long.parseLong(value.trim());
+                if ( level > 0 && level <= this.targetStartLevel ) {
+                    return level;
+                }
+            } catch (final NumberFormatException nfe) {
+                // logged below
+            }
+            this.logger.log(Logger.LOG_WARNING, "Ignoring invalid value " + value
+                + " for " + SharedConstants.SLING_STARTUP_READY_LEVEL);
         }
+        return this.targetStartLevel;
     }
 
     /**
@@ -107,6 +172,24 @@ public class StartupManager {
         return this.mode;
     }
 
+    /**
+     * Returns the bundle files of the startup directory which changed since
+     * the last startup if the startup mode is {@link StartupMode#UPDATE}
+     * and nothing but these files changed. Otherwise, or if the loading of
+     * the bundles from the package is forced, <code>null</code> is returned
+     * and all bundles have to be checked.
+     */
+    StartupChangeSet getChangeSet() {
+        return this.changeSet;
+    }
+
+    /**
+     * Returns the conf directory holding the launchpad state files.
+     */
+    File getConfigDir() {
+        return this.confDir;
+    }
+
     /**
      * Is the incremental startup enabled?
      */
@@ -122,6 +205,15 @@ public class StartupManager {
         return this.targetStartLevel;
     }
 
+    /**
+     * Return the start level at which the startup is finished. The levels
+     * up to the target start level are raised after the startup.
+     * @return Ready start level, at most the target start level
+     */
+    long getReadyStartLevel() {
+        return this.readyStartLevel;
+    }
+
     /**
      * Detect the startup mode by comparing time stamps
      */
@@ -129,6 +221,12 @@ public class StartupManager {
         final File dataFile = new File(this.confDir, DATA_FILE);
         if (dataFile.exists()) {
 
+            // compare with the fingerprint of the last startup if recorded
+            final StartupMode fingerprintMode = this.detectModeFromFingerprint();
+            if (fingerprintMode != null) {
+                return fingerprintMode;
+            }
+
             FileReader fis = null;
             try {
                 final long selfStamp = this.getSelfTimestamp();
@@ -177,6 +275,81 @@ public class StartupManager {
         return StartupMode.INSTALL;
     }
 
+    /**
+     * Detect the startup mode by comparing the fingerprint recorded by the
+     * last startup: first by the status of a few files only and, if any
+     * differs, by computing the fingerprint again.
+     *
+     * @return The startup mode or <code>null</code> if no fingerprint is
+     *      available.
+     */
+    private StartupMode detectModeFromFingerprint() {
+        if (this.launcherJars == null) {
+            return null;
+        }
+        final StartupFingerprint recorded = StartupFingerprint.load(
+            new File(this.confDir, StartupFingerprint.FINGERPRINT_FILE));
+        if (recorded == null) {
+            return null;
+        }
+        if (recorded.isUnchanged(this.launcherJars, this.startupDir, this.fingerprintFiles)) {
+            logger.log(Logger.LOG_INFO, "Startup fingerprint unchanged");
+            this.fingerprint = recorded;
+            this.fingerprintSaved = true;
+            return StartupMode.RESTART;
+        }
+
+        try {
+            final StartupFingerprint current = StartupFingerprint.compute(
+                this.launcherJars, this.startupDir, recorded);
+            this.fingerprint = current;
+            if (current.isSameContent(recorded)) {
+                logger.log(Logger.LOG_INFO, "Startup fingerprint changed without content changes");
+                return StartupMode.RESTART;
+            }
+            if (current.isSameLauncher(recorded)) {
+                this.changeSet = StartupChangeSet.between(recorded, current);
+                logger.log(Logger.LOG_INFO, "Startup fingerprint changed: bundle files "
+                    + this.changeSet);
+            } else {
+                logger.log(Logger.LOG_INFO, "Startup fingerprint changed");
+            }
+            return StartupMode.UPDATE;
+        } catch (final IOException ioe) {
+            logger.log(Logger.LOG_WARNING, "Cannot compute startup fingerprint: " + ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the jar files of the launcher and the launchpad API or
+     * <code>null</code> if they are not loaded from files.
+     */
+    private List<File> getLauncherJars() {
+        final List<File> jars = new ArrayList<File>();
+        for (final Class<?> clazz : new Class<?>[] { this.getClass(), LaunchpadContentProvider.class }) {
+            final ClassLoader loader = clazz.getClassLoader();
+            if (!(loader instanceof URLClassLoader)) {
+                return null;
+            }
+            final URL[] urls = ((URLClassLoader) loader).getURLs();
+            if (urls.length == 0 || !"file".equals(urls[0].getProtocol())) {
+                return null;
+            }
+            try {
+                final File jar = new File(urls[0].toURI());
+                if (!jars.contains(jar)) {
+                    jars.add(jar);
+                }
+            } catch (final URISyntaxException use) {
+                return null;
+            } catch (final IllegalArgumentException iae) {
+                return null;
+            }
+        }
+        return jars;
+    }
+
     /**
      * Get the time stamp of a class through its url classloader (if possible)
      */
@@ -223,6 +396,13 @@ public class StartupManager {
         long selfStamp = this.getTimeStampOfClass(this.getClass(), -1);
         selfStamp = this.getTimeStampOfClass(LaunchpadContentProvider.class, selfStamp);
 
+        // the bundle pack is checked with a single file status
+        final File pack = new File(this.startupDir, BundlePack.PACK_FILE);
+        if (pack.lastModified() > selfStamp) {
+            selfStamp = pack.lastModified();
+            logger.log(Logger.LOG_INFO, String.format("Newer timestamp from %s : %s", pack, selfStamp));
+        }
+
         // check whether any bundle is younger than the launcher jar
         final File[] directories = this.startupDir.listFiles(DirectoryUtil.DIRECTORY_FILTER);
         if ( directories != null ) {
@@ -249,9 +429,16 @@ public class StartupManager {
     }
 
     /**
-     * Set the finished installation marker.
+     * Set the finished installation marker. Nothing is marked during an
+     * install dry run, so the next startup still performs the planned
+     * installation.
      */
     public void markInstalled() {
+        if ( this.dryRun ) {
+            // keep the startup mode for the actual installation
+            logger.log(Logger.LOG_INFO, "Install dry run, not marking the installation as done");
+            return;
+        }
         final File dataFile = new File(this.confDir, DATA_FILE);
         try {
             this.confDir.mkdirs();
@@ -265,5 +452,26 @@ public class StartupManager {
             logger.log(Logger.LOG_ERROR,
                 "IOException during writing of installed flag.", ioe);
         }
+
+        // record the fingerprint unless unchanged
+        if (this.launcherJars != null) {
+            final File fingerprintFile = new File(this.confDir, StartupFingerprint.FINGERPRINT_FILE);
+            try {
+                if (this.fingerprint == null
+                        || !this.fingerprint.isUnchanged(this.launcherJars, this.startupDir, this.fingerprintFiles)) {
+                    this.fingerprint = StartupFingerprint.compute(this.launcherJars,
+                        this.startupDir, this.fingerprint);
+                    this.fingerprintSaved = false;
+                }
+                if (!this.fingerprintSaved) {
+                    this.fingerprint.save(fingerprintFile);
+                    this.fingerprintSaved = true;
+                }
+            } catch (final IOException ioe) {
+                logger.log(Logger.LOG_WARNING, "Cannot write startup fingerprint "
+                    + fingerprintFile + ": " + ioe);
+                fingerprintFile.delete();
+            }
+        }
     }
 }
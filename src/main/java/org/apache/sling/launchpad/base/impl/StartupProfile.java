@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.sling.launchpad.api.StartupMode;
+
+/**
+ * The <code>StartupProfile</code> records the cost of completed startups
+ * by {@link StartupMode}: the total time and, for each start level, the
+ * time spent in the level and the number of bundles started. The next
+ * startup in the same mode uses the profile to weight its progress by the
+ * historical cost of the start levels and to predict the time until the
+ * startup is finished.
+ * <p>
+ * The times are averaged with the previous profile, so a single slow or
+ * fast startup does not dominate the prediction. Start levels not reached
+ * by the last startup are dropped.
+ */
+class StartupProfile {
+
+    /** The name of the profile file in the conf directory */
+    static final String PROFILE_FILE = "launchpad-startup-profile.properties";
+
+    private static final String TOTAL = ".total";
+
+    private static final String LEVEL = ".level.";
+
+    private final Properties props;
+
+    private StartupProfile(final Properties props) {
+        this.props = props;
+    }
+
+    /**
+     * Reads the profile from the file. An empty profile is returned if the
+     * file does not exist or cannot be read.
+     */
+    static StartupProfile load(final File file) {
+        final Properties props = new Properties();
+        if (file != null && file.isFile()) {
+            InputStream ins = null;
+            try {
+                ins = new FileInputStream(file);
+                props.load(ins);
+            } catch (final IOException ioe) {
+                props.clear();
+            } finally {
+                if (ins != null) {
+                    try {
+                        ins.close();
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        }
+        return new StartupProfile(props);
+    }
+
+    /**
+     * Writes the profile to the file.
+     */
+    void save(final File file) throws IOException {
+        file.getParentFile().mkdirs();
+        final OutputStream os = new FileOutputStream(file);
+        try {
+            props.store(os, "Launchpad startup profile");
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Records the timings of a completed startup in the mode.
+     */
+    void record(final StartupMode mode, final StartupTimings timings, final long total) {
+        final String prefix = getPrefix(mode);
+        final SortedMap<Integer, long[]> previous = getLevels(mode);
+        for (final Integer level : previous.keySet()) {
+            props.remove(prefix + LEVEL + level);
+        }
+        for (final Integer level : timings.getStartLevels()) {
+            final long[] recorded = previous.get(level);
+            long time = timings.getTimeInLevel(level);
+            if (recorded != null) {
+                time = (recorded[0] + time) / 2;
+            }
+            props.setProperty(prefix + LEVEL + level, time + ":" + timings.getBundlesInLevel(level));
+        }
+        final long recordedTotal = getTotal(mode);
+        props.setProperty(prefix + TOTAL, String.valueOf(recordedTotal > 0 ? (recordedTotal + total) / 2 : total));
+    }
+
+    /**
+     * Returns the recorded total time of a startup in the mode or 0 if no
+     * startup in this mode has been recorded.
+     */
+    long getTotal(final StartupMode mode) {
+        try {
+            return Math.max(0, Long.parseLong(props.getProperty(getPrefix(mode) + TOTAL, "0")));
+        } catch (final NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the recorded number of bundles started in the mode or 0 if
+     * not known.
+     */
+    int getBundles(final StartupMode mode) {
+        int bundles = 0;
+        for (final long[] level : getLevels(mode).values()) {
+            bundles += level[1];
+        }
+        return bundles;
+    }
+
+    /**
+     * Returns the progress of a startup in the mode when the start level
+     * is reached, that is the recorded time of the lower start levels
+     * relative to the time of all start levels, or a negative value if
+     * not known.
+     */
+    float getProgress(final StartupMode mode, final int startLevel) {
+        return getProgress(mode, startLevel, 0);
+    }
+
+    /**
+     * Returns the progress of a startup in the mode once the number of
+     * bundles of the start level has been started, that is the recorded
+     * time of the lower start levels and the share of the recorded time of
+     * the start level by its recorded number of bundles, relative to the
+     * time of all start levels, or a negative value if not known.
+     */
+    float getProgress(final StartupMode mode, final int startLevel, final int startedBundles) {
+        final SortedMap<Integer, long[]> levels = getLevels(mode);
+        long all = 0;
+        for (final long[] level : levels.values()) {
+            all += level[0];
+        }
+        if (all <= 0) {
+            return -1;
+        }
+        return (float) (all - getRemaining(levels, startLevel, startedBundles)) / (float) all;
+    }
+
+    /**
+     * Returns the recorded time of the start level and the higher start
+     * levels, that is the time a startup in the mode is expected to take
+     * once the start level is reached, or a negative value if not known.
+     */
+    long getRemaining(final StartupMode mode, final int startLevel) {
+        return getRemaining(mode, startLevel, 0);
+    }
+
+    /**
+     * Returns the time a startup in the mode is expected to take once the
+     * number of bundles of the start level has been started, or a negative
+     * value if not known.
+     */
+    long getRemaining(final StartupMode mode, final int startLevel, final int startedBundles) {
+        final SortedMap<Integer, long[]> levels = getLevels(mode);
+        return levels.isEmpty() ? -1 : getRemaining(levels, startLevel, startedBundles);
+    }
+
+    private static long getRemaining(final SortedMap<Integer, long[]> levels, final int startLevel,
+            final int startedBundles) {
+        long remaining = 0;
+        for (final long[] level : levels.tailMap(startLevel).values()) {
+            remaining += level[0];
+        }
+        final long[] current = levels.get(startLevel);
+        if (current != null && current[1] > 0) {
+            remaining -= current[0] * Math.min(startedBundles, current[1]) / current[1];
+        }
+        return remaining;
+    }
+
+    /**
+     * Returns the recorded time and number of bundles by start level.
+     */
+    private SortedMap<Integer, long[]> getLevels(final StartupMode mode) {
+        final String prefix = getPrefix(mode) + LEVEL;
+        final SortedMap<Integer, long[]> levels = new TreeMap<Integer, long[]>();
+        for (final String key : props.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                final String[] fields = props.getProperty(key).split(":");
+                try {
+                    levels.put(Integer.valueOf(key.substring(prefix.length())),
+                        new long[] { Long.parseLong(fields[0]), fields.length > 1 ? Long.parseLong(fields[1]) : 0 });
+                } catch (final NumberFormatException nfe) {
+                    // ignore damaged entry
+                }
+            }
+        }
+        return levels;
+    }
+
+    private static String getPrefix(final StartupMode mode) {
+        return mode.name().toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.startlevel.BundleStartLevel;
+
+/**
+ * The <code>StartupTimings</code> record where the time of the startup is
+ * spent: the wall time spent in each start level, the time the
+ * {@link DefaultStartupHandler} was held in each start level because the
+ * installer asked to wait with the startup, and the time each bundle took
+ * from <code>STARTING</code> to <code>STARTED</code>, that is the time
+ * spent in its activator.
+ * <p>
+ * The timings are registered as a synchronous bundle listener, since
+ * <code>STARTING</code> events are not delivered to asynchronous
+ * listeners. At the end of the startup a report of the start levels and
+ * the slowest bundles can be {@link #writeReport(File, int) written}.
+ */
+class StartupTimings implements SynchronousBundleListener {
+
+    /** The name of the report file in the logs directory */
+    static final String REPORT_FILE = "startup-timings.txt";
+
+    /** The activation time of a bundle */
+    static final class BundleTiming {
+
+        private final Bundle bundle;
+
+        private final int startLevel;
+
+        private final long duration;
+
+        BundleTiming(final Bundle bundle, final int startLevel, final long duration) {
+            this.bundle = bundle;
+            this.startLevel = startLevel;
+            this.duration = duration;
+        }
+
+        Bundle getBundle() {
+            return bundle;
+        }
+
+        int getStartLevel() {
+            return startLevel;
+        }
+
+        long getDuration() {
+            return duration;
+        }
+
+        @Override
+        public String toString() {
+            return bundle.getSymbolicName() + " " + bundle.getVersion() + " (id " + bundle.getBundleId()
+                + ", level " + startLevel + "): " + duration + "ms";
+        }
+    }
+
+    /** The times of a start level: entered at, time spent and time held */
+    private static final class LevelTiming {
+
+        long enteredAt = -1;
+
+        long duration;
+
+        long waited;
+
+        int bundles;
+
+        long activation;
+    }
+
+    private final long startedAt;
+
+    /** The time the bundles started starting by bundle id */
+    private final Map<Long, Long> starting = new HashMap<Long, Long>();
+
+    /** The activation times of the started bundles */
+    private final List<BundleTiming> bundles = new ArrayList<BundleTiming>();
+
+    /** The times by start level */
+    private final SortedMap<Integer, LevelTiming> levels = new TreeMap<Integer, LevelTiming>();
+
+    /** The current start level or -1 if none has been reached yet */
+    private int currentLevel = -1;
+
+    private long finishedAt = -1;
+
+    StartupTimings(final long startedAt) {
+        this.startedAt = startedAt;
+    }
+
+    /**
+     * Records the activation time of the bundles from their
+     * <code>STARTING</code> and <code>STARTED</code> events.
+     */
+    @Override
+    public void bundleChanged(final BundleEvent event) {
+        final Bundle bundle = event.getBundle();
+        switch (event.getType()) {
+            case BundleEvent.STARTING:
+                synchronized (this) {
+                    starting.put(bundle.getBundleId(), System.currentTimeMillis());
+                }
+                break;
+            case BundleEvent.STARTED:
+                bundleStarted(bundle, System.currentTimeMillis());
+                break;
+            case BundleEvent.STOPPED:
+                // the activator failed or the bundle has been stopped
+                synchronized (this) {
+                    starting.remove(bundle.getBundleId());
+                }
+                break;
+            default:
+                // not interested
+        }
+    }
+
+    private void bundleStarted(final Bundle bundle, final long now) {
+        final BundleStartLevel bsl = bundle.adapt(BundleStartLevel.class);
+        final int startLevel = bsl != null ? bsl.getStartLevel() : 0;
+        synchronized (this) {
+            final Long since = starting.remove(bundle.getBundleId());
+            if (since != null) {
+                final BundleTiming timing = new BundleTiming(bundle, startLevel, now - since);
+                bundles.add(timing);
+                final LevelTiming level = getLevel(startLevel);
+                level.bundles++;
+                level.activation += timing.getDuration();
+            }
+        }
+    }
+
+    /**
+     * Records that the framework reached the start level, ending the time
+     * spent in the previous start level.
+     */
+    synchronized void startLevelReached(final int startLevel, final long now) {
+        if (startLevel == currentLevel) {
+            return;
+        }
+        closeLevel(now);
+        currentLevel = startLevel;
+        getLevel(startLevel).enteredAt = now;
+    }
+
+    /**
+     * Records the time the start level was held because the installer
+     * asked to wait with the startup.
+     */
+    synchronized void waited(final int startLevel, final long time) {
+        getLevel(startLevel).waited += time;
+    }
+
+    /**
+     * Records the end of the startup, ending the time spent in the current
+     * start level.
+     */
+    synchronized void finish(final long now) {
+        closeLevel(now);
+        currentLevel = -1;
+        finishedAt = now;
+    }
+
+    private void closeLevel(final long now) {
+        if (currentLevel >= 0) {
+            final LevelTiming level = getLevel(currentLevel);
+            level.duration += now - level.enteredAt;
+        }
+    }
+
+    private LevelTiming getLevel(final int startLevel) {
+        LevelTiming level = levels.get(startLevel);
+        if (level == null) {
+            level = new LevelTiming();
+            levels.put(startLevel, level);
+        }
+        return level;
+    }
+
+    /**
+     * Returns the <code>count</code> bundles with the longest activation
+     * time, slowest first.
+     */
+    synchronized List<BundleTiming> getSlowestBundles(final int count) {
+        final List<BundleTiming> sorted = new ArrayList<BundleTiming>(bundles);
+        Collections.sort(sorted, new Comparator<BundleTiming>() {
+
+            @Override
+            public int compare(final BundleTiming t1, final BundleTiming t2) {
+                return Long.compare(t2.getDuration(), t1.getDuration());
+            }
+        });
+        return sorted.size() > count ? sorted.subList(0, count) : sorted;
+    }
+
+    /**
+     * Returns the time spent in the start level or 0 if the start level has
+     * not been reached.
+     */
+    synchronized long getTimeInLevel(final int startLevel) {
+        final LevelTiming level = levels.get(startLevel);
+        return level != null ? level.duration : 0;
+    }
+
+    /**
+     * Returns the start levels reached or with bundles started.
+     */
+    synchronized SortedSet<Integer> getStartLevels() {
+        return new TreeSet<Integer>(levels.keySet());
+    }
+
+    /**
+     * Returns the number of bundles started in the start level.
+     */
+    synchronized int getBundlesInLevel(final int startLevel) {
+        final LevelTiming level = levels.get(startLevel);
+        return level != null ? level.bundles : 0;
+    }
+
+    /**
+     * Returns the time the start level was held because the installer
+     * asked to wait with the startup.
+     */
+    synchronized long getWaitedInLevel(final int startLevel) {
+        final LevelTiming level = levels.get(startLevel);
+        return level != null ? level.waited : 0;
+    }
+
+    /**
+     * Writes the report of the start levels and the <code>count</code>
+     * slowest bundles to the file.
+     */
+    void writeReport(final File file, final int count) throws IOException {
+        file.getParentFile().mkdirs();
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(
+            new FileOutputStream(file), StandardCharsets.UTF_8));
+        try {
+            synchronized (this) {
+                out.println("Startup finished in " + (finishedAt - startedAt) + "ms");
+                out.println();
+                out.println("Start levels (level: time, held by installer, bundles started, activation time)");
+                for (final Map.Entry<Integer, LevelTiming> entry : levels.entrySet()) {
+                    final LevelTiming level = entry.getValue();
+                    out.println("  " + entry.getKey() + ": " + level.duration + "ms, " + level.waited + "ms, "
+                        + level.bundles + ", " + level.activation + "ms");
+                }
+                out.println();
+            }
+            final List<BundleTiming> slowest = getSlowestBundles(count);
+            out.println("Slowest " + slowest.size() + " bundles (activation time)");
+            for (final BundleTiming timing : slowest) {
+                out.println("  " + timing);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
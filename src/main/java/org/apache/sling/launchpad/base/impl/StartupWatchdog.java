@@ -0,0 +1,341 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.felix.framework.Logger;
+import org.apache.sling.launchpad.base.shared.SharedConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+/**
+ * The <code>StartupWatchdog</code> detects a stalled startup, for example
+ * because a bundle activator blocks: if neither the start level nor any
+ * bundle changes within the configured window, it writes a report with the
+ * current start level, the bundles being started, the number of pending
+ * requests to wait with the startup and a dump of all threads to
+ * <code>logs/startup-stall-&lt;timestamp&gt;.txt</code> below
+ * <code>sling.home</code>.
+ * <p>
+ * While the startup stays stalled, further reports are written after
+ * doubling intervals. The stall state is available through JMX as long as
+ * the startup is running. The watchdog stops itself when the framework is
+ * stopped before the startup finished.
+ */
+class StartupWatchdog implements SynchronousBundleListener, StartupWatchdogMBean {
+
+    /** The name of the watchdog mbean */
+    static final String NAME = "org.apache.sling.launchpad:type=StartupWatchdog";
+
+    /** The prefix of the stall report files in the logs directory */
+    static final String REPORT_PREFIX = "startup-stall-";
+
+    /** The maximum number of times the interval between reports is doubled */
+    private static final int MAX_BACKOFF = 4;
+
+    private final BundleContext bundleContext;
+
+    private final Logger logger;
+
+    private final FrameworkStartLevel frameworkStartLevel;
+
+    private final AtomicInteger waitCount;
+
+    private final long window;
+
+    /** The bundles being started with the time they started starting */
+    private final Map<Bundle, Long> pending = new LinkedHashMap<Bundle, Long>();
+
+    private ScheduledExecutorService executor;
+
+    private ObjectName name;
+
+    private volatile long lastChange;
+
+    /** The time the next report is due while stalled, guarded by this */
+    private long nextReport;
+
+    /** The number of reports since the last change, guarded by this */
+    private int reportsSinceChange;
+
+    private volatile int reportCount;
+
+    private volatile String lastReport;
+
+    /**
+     * @param context The bundle context
+     * @param logger The logger
+     * @param startLevel The start level of the framework
+     * @param waitCount The number of pending requests to wait with the startup
+     * @param window The time in milliseconds without a change after which
+     *            the startup is considered stalled
+     */
+    StartupWatchdog(final BundleContext context,
+            final Logger logger,
+            final FrameworkStartLevel startLevel,
+            final AtomicInteger waitCount,
+            final long window) {
+        this.bundleContext = context;
+        this.logger = logger;
+        this.frameworkStartLevel = startLevel;
+        this.waitCount = waitCount;
+        this.window = window;
+        this.lastChange = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts watching the startup.
+     */
+    void start() {
+        this.bundleContext.addBundleListener(this);
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+            new NamedThreadFactory("Apache Sling Startup Watchdog"));
+        final long interval = Math.max(10, this.window / 10);
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                check(System.currentTimeMillis());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName objectName = new ObjectName(NAME);
+            if (server.isRegistered(objectName)) {
+                // left by a startup of a previous framework which did not finish
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(new StandardMBean(this, StartupWatchdogMBean.class), objectName);
+            this.name = objectName;
+        } catch (final Exception e) {
+            logger.log(Logger.LOG_DEBUG, "Cannot register startup watchdog mbean: " + e);
+        }
+        changed();
+    }
+
+    /**
+     * Stops watching the startup.
+     */
+    void stop() {
+        try {
+            this.bundleContext.removeBundleListener(this);
+        } catch (final IllegalStateException ignore) {
+            // framework already stopped
+        }
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+        if (this.name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+            } catch (final Exception ignore) {
+                // ignore
+            }
+            this.name = null;
+        }
+    }
+
+    /**
+     * Records a change of the start level.
+     */
+    void startLevelChanged() {
+        changed();
+    }
+
+    @Override
+    public void bundleChanged(final BundleEvent event) {
+        if (event.getType() == BundleEvent.STOPPING && event.getBundle().getBundleId() == 0) {
+            // the framework is stopped before the startup finished
+            stop();
+            return;
+        }
+        synchronized (this) {
+            if (event.getType() == BundleEvent.STARTING) {
+                pending.put(event.getBundle(), System.currentTimeMillis());
+            } else if (event.getType() == BundleEvent.STARTED || event.getType() == BundleEvent.STOPPED) {
+                pending.remove(event.getBundle());
+            }
+        }
+        changed();
+    }
+
+    private synchronized void changed() {
+        lastChange = System.currentTimeMillis();
+        reportsSinceChange = 0;
+        nextReport = 0;
+    }
+
+    /**
+     * Writes a report if the startup is stalled and a report is due.
+     */
+    void check(final long now) {
+        synchronized (this) {
+            if (now - lastChange < window || now < nextReport) {
+                return;
+            }
+            reportsSinceChange++;
+            nextReport = now + (window << Math.min(MAX_BACKOFF, reportsSinceChange));
+        }
+        logger.log(Logger.LOG_WARNING, "Startup stalled for " + (now - lastChange) + "ms in start level "
+            + getStartLevel() + ", bundles being started: " + pendingBundles(now));
+        final String slingHome = bundleContext.getProperty(SharedConstants.SLING_HOME);
+        if (slingHome != null) {
+            final String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(now));
+            final File file = new File(new File(slingHome, "logs"), REPORT_PREFIX + timestamp + ".txt");
+            try {
+                writeReport(file, now);
+                reportCount++;
+                lastReport = file.getAbsolutePath();
+                logger.log(Logger.LOG_WARNING, "Startup stall report written to " + file);
+            } catch (final IOException ioe) {
+                logger.log(Logger.LOG_WARNING, "Cannot write startup stall report " + file, ioe);
+            }
+        }
+    }
+
+    private void writeReport(final File file, final long now) throws IOException {
+        file.getParentFile().mkdirs();
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(
+            new FileOutputStream(file), StandardCharsets.UTF_8));
+        try {
+            out.println("Startup stalled for " + (now - lastChange) + "ms");
+            out.println("Start level: " + getStartLevel());
+            out.println("Pending requests to wait with the startup: " + getWaitCount());
+            out.println();
+            out.println("Bundles being started:");
+            for (final String bundle : pendingBundles(now)) {
+                out.println("  " + bundle);
+            }
+            out.println();
+            out.println("Thread dump:");
+            for (final ThreadInfo info : ManagementFactory.getThreadMXBean().dumpAllThreads(true, true)) {
+                out.println();
+                printThread(out, info);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Prints the complete stack of the thread, unlike
+     * {@link ThreadInfo#toString()} which is limited to a few frames.
+     */
+    private static void printThread(final PrintWriter out, final ThreadInfo info) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append('"').append(info.getThreadName()).append("\" Id=").append(info.getThreadId())
+            .append(' ').append(info.getThreadState());
+        if (info.getLockName() != null) {
+            sb.append(" on ").append(info.getLockName());
+        }
+        if (info.getLockOwnerName() != null) {
+            sb.append(" owned by \"").append(info.getLockOwnerName()).append("\" Id=").append(info.getLockOwnerId());
+        }
+        out.println(sb);
+        final StackTraceElement[] stack = info.getStackTrace();
+        final MonitorInfo[] monitors = info.getLockedMonitors();
+        for (int i = 0; i < stack.length; i++) {
+            out.println("\tat " + stack[i]);
+            for (final MonitorInfo monitor : monitors) {
+                if (monitor.getLockedStackDepth() == i) {
+                    out.println("\t-  locked " + monitor);
+                }
+            }
+        }
+        for (final LockInfo lock : info.getLockedSynchronizers()) {
+            out.println("\t-  holds " + lock);
+        }
+    }
+
+    private List<String> pendingBundles(final long now) {
+        final List<String> result = new ArrayList<String>();
+        synchronized (this) {
+            for (final Map.Entry<Bundle, Long> entry : pending.entrySet()) {
+                final Bundle bundle = entry.getKey();
+                result.add(bundle.getSymbolicName() + " (id " + bundle.getBundleId() + "), starting for "
+                    + (now - entry.getValue()) + "ms");
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isStalled() {
+        return getTimeSinceLastChange() >= window;
+    }
+
+    @Override
+    public long getTimeSinceLastChange() {
+        return System.currentTimeMillis() - lastChange;
+    }
+
+    @Override
+    public int getStartLevel() {
+        return frameworkStartLevel.getStartLevel();
+    }
+
+    @Override
+    public int getWaitCount() {
+        return waitCount.get();
+    }
+
+    @Override
+    public String[] getPendingBundles() {
+        final List<String> bundles = pendingBundles(System.currentTimeMillis());
+        return bundles.toArray(new String[bundles.size()]);
+    }
+
+    @Override
+    public int getReportCount() {
+        return reportCount;
+    }
+
+    @Override
+    public String getLastReport() {
+        return lastReport;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+/**
+ * The management interface of the {@link StartupWatchdog}, registered as
+ * <code>org.apache.sling.launchpad:type=StartupWatchdog</code> while the
+ * startup is running.
+ */
+public interface StartupWatchdogMBean {
+
+    /** Whether neither the start level nor a bundle changed within the window */
+    boolean isStalled();
+
+    /** The time in milliseconds since the last change */
+    long getTimeSinceLastChange();
+
+    /** The current start level */
+    int getStartLevel();
+
+    /** The number of pending requests to wait with the startup */
+    int getWaitCount();
+
+    /** The bundles being started */
+    String[] getPendingBundles();
+
+    /** The number of stall reports written */
+    int getReportCount();
+
+    /** The path of the last stall report or <code>null</code> */
+    String getLastReport();
+}
@@ -0,0 +1,354 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.shared;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The <code>FileTransfer</code> class provides the copy routines used by the
+ * launchpad to write files to the file system.
+ * <p>
+ * All copy methods write the data to a temporary file in the target
+ * directory first, which is then atomically renamed to the target file,
+ * where the file system supports this. Thus the target file is never seen
+ * partially written. Whether the data is forced to the storage device
+ * before the rename is controlled by the {@link SyncPolicy}.
+ * <p>
+ * Data from files is transferred with <code>FileChannel.transferTo</code>
+ * which lets the operating system copy the data without passing it through
+ * the Java heap. Data from other streams, such as entries of the launchpad
+ * archive which generally have to be inflated, is copied through a pool of
+ * direct buffers.
+ * <p>
+ * The number of files and bytes copied as well as the time spent copying
+ * are counted for all copy operations of this class.
+ */
+public final class FileTransfer {
+
+    /**
+     * The policy for forcing copied data to the storage device.
+     */
+    public enum SyncPolicy {
+
+        /** Data is not forced to the storage device (default) */
+        NONE,
+
+        /** File contents are forced to the device before the file is renamed */
+        FILE,
+
+        /**
+         * File contents are forced to the device before the file is renamed
+         * and the directory entry is forced after the rename.
+         */
+        FULL;
+
+        /**
+         * Returns the policy for the given case-insensitive name or
+         * {@link #NONE} if the name is <code>null</code> or unknown.
+         */
+        public static SyncPolicy fromString(final String name) {
+            if (name != null) {
+                for (final SyncPolicy policy : values()) {
+                    if (policy.name().equalsIgnoreCase(name.trim())) {
+                        return policy;
+                    }
+                }
+            }
+            return NONE;
+        }
+    }
+
+    /** The size of the pooled direct buffers */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The maximum number of direct buffers kept in the pool */
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    /** The maximum number of bytes transferred per transferTo call */
+    private static final long MAX_TRANSFER_SIZE = 8L * 1024 * 1024;
+
+    private static final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private static final AtomicLong filesCopied = new AtomicLong();
+
+    private static final AtomicLong bytesCopied = new AtomicLong();
+
+    private static final AtomicLong copyTimeNanos = new AtomicLong();
+
+    private static volatile SyncPolicy syncPolicy = SyncPolicy.fromString(
+        System.getProperty(SharedConstants.SLING_COPY_FSYNC));
+
+    // no instantiate
+    private FileTransfer() {}
+
+    /**
+     * Sets the policy for forcing copied data to the storage device.
+     *
+     * @param policy The new policy, <code>null</code> is the same as
+     *            {@link SyncPolicy#NONE}.
+     * @see SharedConstants#SLING_COPY_FSYNC
+     */
+    public static void setSyncPolicy(final SyncPolicy policy) {
+        syncPolicy = (policy == null) ? SyncPolicy.NONE : policy;
+    }
+
+    /**
+     * Returns the current policy for forcing copied data to the storage
+     * device.
+     */
+    public static SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * Copies the contents of the stream to the target file replacing the
+     * contents of the file. The stream is read to its end but not closed.
+     *
+     * @param ins The stream to copy. If this is a <code>FileInputStream</code>
+     *            the data is transferred through its channel.
+     * @param target The file to write
+     * @return The number of bytes copied
+     * @throws IOException If an error occurrs reading or writing the data. In
+     *             this case the target file is not modified.
+     */
+    public static long copy(final InputStream ins, final File target) throws IOException {
+        if (ins instanceof FileInputStream) {
+            return copy(((FileInputStream) ins).getChannel(), target);
+        }
+        return copy(Channels.newChannel(ins), target);
+    }
+
+    /**
+     * Copies the contents of the source file to the target file replacing
+     * the contents of the target file.
+     *
+     * @return The number of bytes copied
+     * @throws IOException If an error occurrs reading or writing the data. In
+     *             this case the target file is not modified.
+     */
+    public static long copy(final File source, final File target) throws IOException {
+        final FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        try {
+            return copy(in, target);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies the contents of the URL to the target file replacing the
+     * contents of the target file. The contents of <code>file:</code> URLs
+     * are transferred directly from the file.
+     *
+     * @return The number of bytes copied
+     * @throws IOException If an error occurrs reading or writing the data. In
+     *             this case the target file is not modified.
+     */
+    public static long copy(final URL source, final File target) throws IOException {
+        if ("file".equals(source.getProtocol())) {
+            try {
+                return copy(new File(source.toURI()), target);
+            } catch (final URISyntaxException use) {
+                // not a valid file URL, use the stream
+            } catch (final IllegalArgumentException iae) {
+                // not a valid file URL, use the stream
+            }
+        }
+        final InputStream ins = source.openStream();
+        try {
+            return copy(ins, target);
+        } finally {
+            try {
+                ins.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Returns the number of files copied since the class has been loaded.
+     */
+    public static long getFilesCopied() {
+        return filesCopied.get();
+    }
+
+    /**
+     * Returns the number of bytes copied since the class has been loaded.
+     */
+    public static long getBytesCopied() {
+        return bytesCopied.get();
+    }
+
+    /**
+     * Returns the accumulated time in milliseconds spent copying files. If
+     * files are copied concurrently, this may be more than the elapsed time.
+     */
+    public static long getCopyTime() {
+        return copyTimeNanos.get() / 1000000L;
+    }
+
+    /**
+     * Returns a human readable summary of the copy counters.
+     */
+    public static String getStatistics() {
+        final long bytes = getBytesCopied();
+        final long time = getCopyTime();
+        final StringBuilder sb = new StringBuilder();
+        sb.append(getFilesCopied()).append(" file(s), ");
+        sb.append(bytes).append(" bytes copied in ").append(time).append("ms");
+        if (time > 0) {
+            sb.append(" (").append(bytes * 1000L / time / 1024L).append(" KB/s)");
+        }
+        return sb.toString();
+    }
+
+    // ---------- internal
+
+    private static long copy(final ReadableByteChannel in, final File target) throws IOException {
+        final long start = System.nanoTime();
+        final File tmp = File.createTempFile("." + target.getName() + "-", ".tmp",
+            target.getAbsoluteFile().getParentFile());
+        long size = 0;
+        try {
+            final FileOutputStream os = new FileOutputStream(tmp);
+            try {
+                final FileChannel out = os.getChannel();
+                if (in instanceof FileChannel) {
+                    size = transfer((FileChannel) in, out);
+                } else {
+                    size = transfer(in, out);
+                }
+                if (syncPolicy != SyncPolicy.NONE) {
+                    out.force(true);
+                }
+            } finally {
+                os.close();
+            }
+
+            rename(tmp, target);
+
+            if (syncPolicy == SyncPolicy.FULL) {
+                syncDirectory(target.getAbsoluteFile().getParentFile());
+            }
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+
+        filesCopied.incrementAndGet();
+        bytesCopied.addAndGet(size);
+        copyTimeNanos.addAndGet(System.nanoTime() - start);
+        return size;
+    }
+
+    private static long transfer(final FileChannel in, final FileChannel out) throws IOException {
+        long pos = in.position();
+        final long end = in.size();
+        long size = 0;
+        while (pos < end) {
+            final long count = in.transferTo(pos, Math.min(MAX_TRANSFER_SIZE, end - pos), out);
+            if (count <= 0) {
+                break;
+            }
+            pos += count;
+            size += count;
+        }
+        in.position(pos);
+        return size;
+    }
+
+    private static long transfer(final ReadableByteChannel in, final FileChannel out) throws IOException {
+        final ByteBuffer buf = acquireBuffer();
+        long size = 0;
+        try {
+            while (in.read(buf) >= 0) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    size += out.write(buf);
+                }
+                buf.clear();
+            }
+        } finally {
+            releaseBuffer(buf);
+        }
+        return size;
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        final ByteBuffer buf = bufferPool.poll();
+        return (buf != null) ? buf : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private static void releaseBuffer(final ByteBuffer buf) {
+        // the size of the pool is only approximately limited
+        if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+            buf.clear();
+            bufferPool.offer(buf);
+        }
+    }
+
+    /**
+     * Atomically replaces the target file by the source file if supported
+     * by the file system.
+     */
+    private static void rename(final File source, final File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final AtomicMoveNotSupportedException amnse) {
+            Files.move(source.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Forces the directory entries to the storage device. Not all platforms
+     * support opening a directory, thus failures are ignored.
+     */
+    private static void syncDirectory(final File dir) {
+        try {
+            final FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (final IOException ignore) {
+            // not supported on this platform
+        }
+    }
+}
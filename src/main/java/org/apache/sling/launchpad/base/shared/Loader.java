@@ -21,11 +21,9 @@ package org.apache.sling.launchpad.base.shared;
 import java.beans.Introspector;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.JarURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -272,14 +270,8 @@ public class Loader {
      *             stream contents.
      */
     public static void spool(InputStream ins, File destFile) throws IOException {
-        OutputStream out = null;
         try {
-            out = new FileOutputStream(destFile);
-            byte[] buf = new byte[8192];
-            int rd;
-            while ((rd = ins.read(buf)) >= 0) {
-                out.write(buf, 0, rd);
-            }
+            FileTransfer.copy(ins, destFile);
         } finally {
             if (ins != null) {
                 try {
@@ -287,12 +279,6 @@ public class Loader {
                 } catch (IOException ignore) {
                 }
             }
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException ignore) {
-                }
-            }
         }
     }
 
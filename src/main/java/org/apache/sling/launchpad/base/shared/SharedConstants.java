@@ -147,4 +147,253 @@ public interface SharedConstants {
      * @see {@link #SLING_INSTALL_STARTLEVEL}
      */
     public static final String SLING_INSTALL_TARGETSTARTLEVEL = "sling.framework.install.targetstartlevel";
+
+    /**
+     * The name of the configuration property defining the number of threads
+     * used to copy the bundles contained in the sling jar or war to the startup
+     * folder in sling home (value is "sling.launchpad.install.copy.threads").
+     * The default value is the number of available processors, limited to 8.
+     * Setting this property to 1 copies the bundles sequentially.
+     */
+    public static final String SLING_INSTALL_COPY_THREADS = "sling.launchpad.install.copy.threads";
+
+    /**
+     * The name of the system or configuration property defining whether
+     * files written by the launchpad are forced to the storage device (value
+     * is "sling.launchpad.copy.fsync"). Supported values are <code>none</code>
+     * (the default), <code>file</code> to force the file contents before the
+     * file is renamed to its final name and <code>full</code> to additionally
+     * force the directory entry after the rename.
+     *
+     * @see FileTransfer.SyncPolicy
+     */
+    public static final String SLING_COPY_FSYNC = "sling.launchpad.copy.fsync";
+
+    /**
+     * The name of the configuration property defining the number of threads
+     * used by the bootstrap installer to analyze the bundles in the startup
+     * folder and to start independent bundles of an active start level or,
+     * with {@link #SLING_STARTUP_PARALLEL}, of the start levels entered
+     * (value is "sling.launchpad.install.threads"). The default value is
+     * the number of available processors, limited to 8.
+     */
+    public static final String SLING_INSTALL_THREADS = "sling.launchpad.install.threads";
+
+    /**
+     * The name of the configuration property defining whether the bundles
+     * contained in the sling jar or war are installed directly from the jar
+     * or war instead of being copied to the startup folder in sling home
+     * first (value is "sling.launchpad.install.direct"). The default is
+     * <code>false</code>. If set to <code>true</code>, the startup folder is
+     * only used for additional bundles: a bundle in the startup folder
+     * overrides a bundle with the same symbolic name in the jar or war.
+     */
+    public static final String SLING_INSTALL_DIRECT = "sling.launchpad.install.direct";
+
+    /**
+     * The name of the configuration property defining whether the bundle
+     * files in the startup folder are installed by reference instead of
+     * being copied into the framework bundle cache (value is
+     * "sling.launchpad.install.reference"). The default is
+     * <code>false</code>. If set to <code>true</code>, the files in the
+     * startup folder must neither be removed nor modified in place while
+     * they are installed. Bundles installed by reference to another file
+     * or not by reference at all are updated from a copy as before.
+     */
+    public static final String SLING_INSTALL_REFERENCE = "sling.launchpad.install.reference";
+
+    /**
+     * The name of the configuration property defining whether the bootstrap
+     * installer only plans the installation of the bundles (value is
+     * "sling.launchpad.install.dryrun"). The default is <code>false</code>.
+     * If set to <code>true</code>, no bundles are copied, installed, updated
+     * or started and the plan is written to <code>conf/install-plan.tsv</code>
+     * in sling home. The installation is then still pending for the next
+     * startup.
+     */
+    public static final String SLING_INSTALL_DRYRUN = "sling.launchpad.install.dryrun";
+
+    /**
+     * The name of the configuration property defining whether the startup
+     * folder is watched for new and updated bundles once the startup has
+     * finished (value is "sling.launchpad.install.watch"). The default is
+     * <code>false</code>. If set to <code>true</code>, bundles copied to the
+     * start level folders are installed or updated and started in the
+     * running framework, using the same version checks as during startup.
+     */
+    public static final String SLING_INSTALL_WATCH = "sling.launchpad.install.watch";
+
+    /**
+     * The name of the configuration property defining the time in
+     * milliseconds without further changes in the startup folder after which
+     * the changed bundles are deployed (value is
+     * "sling.launchpad.install.watch.debounce"). The default is 2000.
+     */
+    public static final String SLING_INSTALL_WATCH_DEBOUNCE = "sling.launchpad.install.watch.debounce";
+
+    /**
+     * The name of the configuration property defining whether the archives
+     * of the installed bundles are read ahead of their activation while the
+     * framework starts (value is "sling.launchpad.prefetch"). The default is
+     * <code>false</code>. Enabling this warms the page cache on cold
+     * storage, such as network attached disks of fresh virtual machines.
+     * Only bundles installed by reference, see
+     * {@link #SLING_INSTALL_REFERENCE}, are read.
+     */
+    public static final String SLING_PREFETCH = "sling.launchpad.prefetch";
+
+    /**
+     * The name of the configuration property defining the maximum number of
+     * megabytes of bundle archives read ahead while the framework starts
+     * (value is "sling.launchpad.prefetch.budget"). The default is 512.
+     */
+    public static final String SLING_PREFETCH_BUDGET = "sling.launchpad.prefetch.budget";
+
+    /**
+     * The name of the configuration property defining whether the bundles
+     * contained in the sling jar or war are copied to a single pack file in
+     * the startup folder instead of the start level folders (value is
+     * "sling.launchpad.install.pack"). The default is <code>false</code>.
+     * Bundles in the start level folders override bundles with the same
+     * symbolic name in the pack. This property is ignored if
+     * {@link #SLING_INSTALL_DIRECT} is set.
+     */
+    public static final String SLING_INSTALL_PACK = "sling.launchpad.install.pack";
+
+    /**
+     * The name of the configuration property defining whether the startup
+     * mode is detected by comparing a fingerprint of the launcher jars and
+     * the startup folder recorded by the last startup (value is
+     * "sling.launchpad.startup.fingerprint"). The default is
+     * <code>true</code>. The fingerprint is checked with a few file status
+     * calls and only computed again if any of them changed. A bundle file
+     * overwritten in place, without changing its folder, is only detected
+     * with {@link #SLING_STARTUP_FINGERPRINT_FILES}. If set to
+     * <code>false</code>, all bundle files are checked on every startup.
+     */
+    public static final String SLING_STARTUP_FINGERPRINT = "sling.launchpad.startup.fingerprint";
+
+    /**
+     * The name of the boolean configuration property defining whether the
+     * check of the startup fingerprint includes the size and modification
+     * time of every bundle file (value is
+     * "sling.launchpad.startup.fingerprint.files"). The default is
+     * <code>false</code>. Enable it if bundle files are overwritten in
+     * place, at the cost of one file status call per bundle file on every
+     * startup.
+     */
+    public static final String SLING_STARTUP_FINGERPRINT_FILES = "sling.launchpad.startup.fingerprint.files";
+
+    /**
+     * The name of the configuration property defining the time in
+     * milliseconds the startup handler waits without a request of the
+     * installer to wait with the startup before increasing the start level
+     * during an incremental startup (value is
+     * "sling.launchpad.startup.quiet"). The default is 200.
+     */
+    public static final String SLING_STARTUP_QUIET_PERIOD = "sling.launchpad.startup.quiet";
+
+    /**
+     * The name of the configuration property defining the time in
+     * milliseconds the startup handler waits after a start level change
+     * during an incremental startup if no installer has ever requested to
+     * wait with the startup (value is "sling.launchpad.startup.idle.timeout").
+     * The default is 2000.
+     */
+    public static final String SLING_STARTUP_IDLE_TIMEOUT = "sling.launchpad.startup.idle.timeout";
+
+    /**
+     * The name of the configuration property defining the number of the
+     * slowest bundles listed in the startup timings report (value is
+     * "sling.launchpad.startup.timings"). The default is 20. The report
+     * lists the time spent in each start level and the activation time of
+     * the slowest bundles. It is written to
+     * <code>logs/startup-timings.txt</code> below <code>sling.home</code>
+     * and published with the properties of the startup service. If set to
+     * 0, no report is written.
+     */
+    public static final String SLING_STARTUP_TIMINGS = "sling.launchpad.startup.timings";
+
+    /**
+     * The name of the configuration property defining the time in
+     * milliseconds a startup listener may take to handle a notification
+     * before a warning is logged (value is
+     * "sling.launchpad.startup.listener.budget"). The default is 1000.
+     * Startup listeners are notified on a dedicated thread, so a slow
+     * listener delays other listeners but not the startup.
+     */
+    public static final String SLING_STARTUP_LISTENER_BUDGET = "sling.launchpad.startup.listener.budget";
+
+    /**
+     * The name of the configuration property defining the time in
+     * milliseconds without a change of the start level or of any bundle
+     * after which the startup is considered stalled (value is
+     * "sling.launchpad.startup.watchdog"). The default is 60000. A stalled
+     * startup is reported with a thread dump in
+     * <code>logs/startup-stall-&lt;timestamp&gt;.txt</code> below
+     * <code>sling.home</code>, repeated after doubling intervals while the
+     * startup stays stalled. If set to 0, the startup is not watched.
+     */
+    public static final String SLING_STARTUP_WATCHDOG = "sling.launchpad.startup.watchdog";
+
+    /**
+     * The name of the configuration property defining the start level at
+     * which the startup is reported finished and the startup service is
+     * registered (value is "sling.launchpad.startup.readylevel"). If set
+     * below the target start level ({@value #SLING_INSTALL_TARGETSTARTLEVEL}),
+     * the remaining start levels are raised in the background after the
+     * startup is finished, waiting {@link #SLING_STARTUP_DEFERRED_PACE}
+     * milliseconds between the levels. By default the startup is finished
+     * at the target start level.
+     */
+    public static final String SLING_STARTUP_READY_LEVEL = "sling.launchpad.startup.readylevel";
+
+    /**
+     * The name of the configuration property defining the time in
+     * milliseconds to wait before raising each start level above the
+     * ready level ({@value #SLING_STARTUP_READY_LEVEL}) in the background
+     * (value is "sling.launchpad.startup.deferred.pace"). The default is
+     * 1000.
+     */
+    public static final String SLING_STARTUP_DEFERRED_PACE = "sling.launchpad.startup.deferred.pace";
+
+    /**
+     * The name of the configuration property listing the symbolic names of
+     * the critical bundles, for example the HTTP service and the health
+     * checks, separated by commas (value is
+     * "sling.launchpad.startup.critical"). The critical bundles and the
+     * bundles they depend on through their package, bundle, service and
+     * extender requirements are started in the first start level, ahead of
+     * all other bundles. Their original start levels are recorded in the
+     * conf directory and restored as the framework reaches them, or on the
+     * next launch if the framework is stopped before. By default no bundle
+     * is critical.
+     */
+    public static final String SLING_STARTUP_CRITICAL = "sling.launchpad.startup.critical";
+
+    /**
+     * The name of the boolean configuration property enabling the analysis
+     * of the start levels of the installed bundles (value is
+     * "sling.launchpad.startup.analyze"). If set to <code>true</code>, the
+     * start levels proposed from the dependencies declared in the bundle
+     * manifests, the bundles needing a start level above the target start
+     * level, the dependency cycles and the unresolved requirements are
+     * written to <code>logs/start-level-analysis.txt</code> below
+     * <code>sling.home</code> after the bundles have been installed. The
+     * default is <code>false</code>.
+     */
+    public static final String SLING_STARTUP_ANALYZE = "sling.launchpad.startup.analyze";
+
+    /**
+     * The name of the boolean configuration property enabling the parallel
+     * start of the bundles of a start level while the framework enters it
+     * (value is "sling.launchpad.startup.parallel"). The default is
+     * <code>false</code>, in which case the framework starts the bundles
+     * of a start level one after the other in the order of their bundle
+     * ids. If set to <code>true</code>, bundles not wired to each other are
+     * started at the same time by up to {@link #SLING_INSTALL_THREADS}
+     * threads, so the start order within a start level is no longer
+     * defined. The property has no effect with a single thread.
+     */
+    public static final String SLING_STARTUP_PARALLEL = "sling.launchpad.startup.parallel";
 }
@@ -183,6 +183,27 @@ public class BootstrapInstallerTest {
         assertFalse(BootstrapInstaller.isBlank(" asdf "));
     }
 
+    /**
+     * Test method for
+     * {@link org.apache.sling.launchpad.base.impl.BootstrapInstaller#isPreferred(ManifestInfo, ManifestInfo)}
+     * .
+     */
+    @Test
+    public void testIsPreferred() {
+        final ManifestInfo v1 = new ManifestInfo("a;singleton:=true", "1.0.0", "100", null);
+        final ManifestInfo v2 = new ManifestInfo("a", "2.0.0", "50", null);
+        final ManifestInfo v2newer = new ManifestInfo("a", "2.0.0", "60", null);
+        final ManifestInfo invalid = new ManifestInfo("a", "not.a.version", null, null);
+
+        assertEquals("a", v1.getCleanSymbolicName());
+        assertTrue(BootstrapInstaller.isPreferred(v2, v1));
+        assertFalse(BootstrapInstaller.isPreferred(v1, v2));
+        assertTrue(BootstrapInstaller.isPreferred(v2newer, v2));
+        assertFalse(BootstrapInstaller.isPreferred(v2, v2newer));
+        assertFalse(BootstrapInstaller.isPreferred(v2, v2));
+        assertTrue(BootstrapInstaller.isPreferred(v1, invalid));
+    }
+
     // TODO eventually add in tests that create a context so we can test more
     // things in detail
 
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.felix.framework.Logger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Test the parallel copying of bundles to the startup directory */
+public class BundleCopierTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ClassLoaderResourceProvider provider = new ClassLoaderResourceProvider(getClass().getClassLoader());
+
+    private File testDir;
+
+    @Before
+    public void setup() throws IOException {
+        testDir = tmp.getRoot();
+    }
+
+    @Test
+    public void testCopyManyFiles() {
+        final BundleCopier copier = new BundleCopier(new Logger(), provider, 4, null);
+        for (int i = 0; i < 50; i++) {
+            copier.add("holaworld.jar", new File(testDir, "bundle" + i + ".jar"));
+        }
+        assertEquals(50, copier.copy());
+
+        final long expected = new File(testDir, "bundle0.jar").length();
+        assertTrue(expected > 0);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(expected, new File(testDir, "bundle" + i + ".jar").length());
+        }
+    }
+
+    @Test
+    public void testLastRequestForTargetWins() {
+        final File target = new File(testDir, "bundle.jar");
+        final BundleCopier copier = new BundleCopier(new Logger(), provider, 2, null);
+        copier.add("holaworld.jar", target);
+        copier.add("holaworld-invalid.jar", target);
+        assertEquals(1, copier.copy());
+
+        final BundleCopier reference = new BundleCopier(new Logger(), provider, 1, null);
+        final File expected = new File(testDir, "expected.jar");
+        reference.add("holaworld-invalid.jar", expected);
+        reference.copy();
+        assertEquals(expected.length(), target.length());
+    }
+
+    @Test
+    public void testFailureReported() {
+        final File blocker = new File(testDir, "notadir");
+        final BundleCopier copier = new BundleCopier(new Logger(), provider, 2, null);
+        copier.add("holaworld.jar", new File(testDir, "ok.jar"));
+        copier.add("holaworld.jar", new File(blocker, "fails.jar"));
+        try {
+            copier.copy();
+            fail("Expected copy failure");
+        } catch (final RuntimeException re) {
+            assertTrue(re.getMessage(), re.getMessage().contains("fails.jar"));
+        }
+        // the other file has been copied nevertheless
+        assertTrue(new File(testDir, "ok.jar").length() > 0);
+    }
+
+    @Test
+    public void testUnchangedFileNotCopied() {
+        final File confDir = new File(testDir, "conf");
+        final File target = new File(testDir, "bundle.jar");
+
+        StartupDigestIndex index = new StartupDigestIndex(new Logger(), testDir, confDir);
+        BundleCopier copier = new BundleCopier(new Logger(), provider, 2, index);
+        copier.add("holaworld.jar", target);
+        assertEquals(1, copier.copy());
+        index.save();
+        assertTrue(new File(confDir, StartupDigestIndex.INDEX_FILE).isFile());
+
+        // same contents, reloaded index: not copied again
+        index = new StartupDigestIndex(new Logger(), testDir, confDir);
+        copier = new BundleCopier(new Logger(), provider, 2, index);
+        copier.add("holaworld.jar", target);
+        assertEquals(0, copier.copy());
+
+        // different contents: copied
+        copier.add("holaworld-invalid.jar", target);
+        assertEquals(1, copier.copy());
+
+        // target modified outside of the copier: copied
+        assertTrue(target.setLastModified(target.lastModified() - 10000));
+        copier.add("holaworld-invalid.jar", target);
+        assertEquals(1, copier.copy());
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.felix.framework.Logger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Test writing and reading the bundle pack */
+public class BundlePackTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private File testDir;
+
+    private File packFile;
+
+    @Before
+    public void setup() throws IOException {
+        testDir = tmp.getRoot();
+        packFile = new File(testDir, BundlePack.PACK_FILE);
+    }
+
+    private BundleSource copy(final String resource, final String name, final int level)
+            throws IOException {
+        final File levelDir = new File(testDir, "src" + level);
+        levelDir.mkdirs();
+        final File target = new File(levelDir, name);
+        final InputStream ins = getClass().getClassLoader().getResourceAsStream(resource);
+        try {
+            BootstrapInstaller.copyStreamToFile(ins, target);
+        } finally {
+            ins.close();
+        }
+        return BundleSource.forFile(target, level);
+    }
+
+    private static byte[] read(final BundleSource source) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final InputStream ins = source.openStream();
+        try {
+            final byte[] buf = new byte[1024];
+            int n;
+            while ((n = ins.read(buf)) >= 0) {
+                bos.write(buf, 0, n);
+            }
+        } finally {
+            ins.close();
+        }
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        final BundleSource hola = copy("holaworld.jar", "holaworld.jar", 10);
+        final BundleSource other = copy("holaworld-nomanifest.jar", "other.jar", 20);
+
+        BundlePack pack = new BundlePack(new Logger(), packFile);
+        assertEquals(2, pack.update(Arrays.asList(hola, other)));
+
+        // read back from a new instance
+        pack = new BundlePack(new Logger(), packFile);
+        final List<BundleSource> sources = pack.getSources();
+        assertEquals(2, sources.size());
+        assertEquals("holaworld.jar", sources.get(0).getName());
+        assertEquals(10, sources.get(0).getStartLevel());
+        assertEquals(hola.getSize(), sources.get(0).getSize());
+        assertEquals("org.apache.sling.holaworld", sources.get(0).getManifest().getSymbolicName());
+        assertEquals("1.2.0.SNAPSHOT", sources.get(0).getManifest().getVersion());
+        assertArrayEquals(read(hola), read(sources.get(0)));
+        assertEquals(20, sources.get(1).getStartLevel());
+        assertNull(sources.get(1).getManifest());
+        assertArrayEquals(read(other), read(sources.get(1)));
+
+        // unchanged bundles are not appended again
+        final long size = packFile.length();
+        assertEquals(0, pack.update(Arrays.asList(hola, other)));
+        assertEquals(size, packFile.length());
+    }
+
+    @Test
+    public void testAppendAndCompact() throws IOException {
+        final List<BundleSource> sources = new ArrayList<BundleSource>();
+        sources.add(copy("holaworld.jar", "holaworld.jar", 10));
+        sources.add(copy("holaworld.jar", "copy.jar", 10));
+        final BundlePack pack = new BundlePack(new Logger(), packFile);
+        pack.update(sources);
+        final long size = packFile.length();
+
+        // a changed bundle is appended
+        sources.set(1, copy("holaworld-nomanifest.jar", "copy.jar", 10));
+        assertEquals(1, pack.update(sources));
+        assertTrue(packFile.length() > size);
+        assertArrayEquals(read(sources.get(1)), read(pack.getSources().get(1)));
+
+        // removing bundles compacts the pack
+        sources.remove(0);
+        assertEquals(0, pack.update(sources));
+        assertEquals(1, pack.getEntries().size());
+        assertTrue(packFile.length() < size);
+        assertArrayEquals(read(sources.get(0)),
+            read(new BundlePack(new Logger(), packFile).getSources().get(0)));
+    }
+
+    @Test
+    public void testInterruptedAppend() throws IOException {
+        final BundleSource hola = copy("holaworld.jar", "holaworld.jar", 10);
+        final BundleSource other = copy("holaworld-nomanifest.jar", "other.jar", 20);
+        new BundlePack(new Logger(), packFile).update(Arrays.asList(hola));
+        final long size = packFile.length();
+        new BundlePack(new Logger(), packFile).update(Arrays.asList(hola, other));
+
+        // an append interrupted before its trailer has been written
+        final RandomAccessFile raf = new RandomAccessFile(packFile, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        // keeps the previous index
+        BundlePack pack = new BundlePack(new Logger(), packFile);
+        assertEquals(1, pack.getEntries().size());
+        assertEquals(size, packFile.length());
+        assertArrayEquals(read(hola), read(pack.getSources().get(0)));
+
+        // and only appends the missing bundle again
+        assertEquals(1, pack.update(Arrays.asList(hola, other)));
+        pack = new BundlePack(new Logger(), packFile);
+        assertEquals(2, pack.getEntries().size());
+        assertArrayEquals(read(other), read(pack.getSources().get(1)));
+    }
+
+    @Test
+    public void testTouchedBundle() throws IOException {
+        final BundleSource hola = copy("holaworld.jar", "holaworld.jar", 10);
+        new BundlePack(new Logger(), packFile).update(Arrays.asList(hola));
+        final long size = packFile.length();
+        assertTrue(hola.getFile().setLastModified(hola.getLastModified() - 60000));
+
+        // same content is not appended, only the index is
+        BundlePack pack = new BundlePack(new Logger(), packFile);
+        assertEquals(0, pack.update(Arrays.asList(hola)));
+        assertTrue(packFile.length() > size);
+        assertEquals(hola.getLastModified(), pack.getEntries().get(0).lastModified);
+
+        // after which the content is not compared again
+        final long touched = packFile.length();
+        pack = new BundlePack(new Logger(), packFile);
+        assertEquals(0, pack.update(Arrays.asList(hola)));
+        assertEquals(touched, packFile.length());
+    }
+
+    @Test
+    public void testDamagedPack() throws IOException {
+        final BundleSource hola = copy("holaworld.jar", "holaworld.jar", 10);
+        new BundlePack(new Logger(), packFile).update(Arrays.asList(hola));
+
+        // an incomplete append leaves no valid trailer
+        final RandomAccessFile raf = new RandomAccessFile(packFile, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+        BundlePack pack = new BundlePack(new Logger(), packFile);
+        assertTrue(pack.getEntries().isEmpty());
+
+        // and is rebuilt
+        assertEquals(1, pack.update(Arrays.asList(hola)));
+        pack = new BundlePack(new Logger(), packFile);
+        assertEquals(1, pack.getEntries().size());
+        assertArrayEquals(Files.readAllBytes(hola.getFile().toPath()),
+            read(pack.getSources().get(0)));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.felix.framework.Logger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+
+/** Test locating bundle archives and counting prefetch hits */
+public class BundlePrefetcherTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private File testDir;
+
+    @Before
+    public void setup() throws IOException {
+        testDir = tmp.getRoot();
+    }
+
+    @Test
+    public void testReferenceFile() throws IOException {
+        final File jar = new File(testDir, "with space.jar");
+        Files.write(jar.toPath(), new byte[] { 1 });
+
+        final Bundle bundle = mock(Bundle.class);
+        when(bundle.getLocation()).thenReturn(
+            BootstrapInstaller.REFERENCE_SCHEME + jar.toURI());
+        assertEquals(jar.getAbsoluteFile(), BundlePrefetcher.getBundleFile(bundle));
+    }
+
+    @Test
+    public void testCachedBundleSkipped() {
+        final Bundle bundle = mock(Bundle.class);
+        when(bundle.getLocation()).thenReturn("slinginstall:test.jar");
+        assertNull(BundlePrefetcher.getBundleFile(bundle));
+        verify(bundle, never()).getDataFile(anyString());
+    }
+
+    @Test
+    public void testMissesCounted() {
+        final BundlePrefetcher prefetcher = new BundlePrefetcher(new Logger(),
+            mock(BundleContext.class), 1024);
+        final Bundle bundle = mock(Bundle.class);
+        when(bundle.getBundleId()).thenReturn(5L);
+
+        prefetcher.bundleChanged(new BundleEvent(BundleEvent.STARTING, bundle));
+        prefetcher.bundleChanged(new BundleEvent(BundleEvent.INSTALLED, bundle));
+        assertEquals(0, prefetcher.getHits());
+        assertEquals(1, prefetcher.getMisses());
+
+        // no counting once stopped
+        prefetcher.stop();
+        prefetcher.bundleChanged(new BundleEvent(BundleEvent.STARTING, bundle));
+        assertEquals(1, prefetcher.getMisses());
+    }
+
+    @Test
+    public void testStopWithFramework() {
+        final BundleContext context = mock(BundleContext.class);
+        final BundlePrefetcher prefetcher = new BundlePrefetcher(new Logger(), context, 1024);
+        final Bundle systemBundle = mock(Bundle.class);
+        when(systemBundle.getBundleId()).thenReturn(0L);
+
+        // the framework is stopped before it has started
+        prefetcher.bundleChanged(new BundleEvent(BundleEvent.STOPPING, systemBundle));
+        verify(context).removeBundleListener(prefetcher);
+        verify(context).removeFrameworkListener(prefetcher);
+    }
+
+    @Test
+    public void testNothingToPrefetch() {
+        final BundleContext context = mock(BundleContext.class);
+        final Bundle bundle = mock(Bundle.class);
+        when(bundle.getBundleId()).thenReturn(5L);
+        when(bundle.getLocation()).thenReturn("slinginstall:test.jar");
+        when(context.getBundles()).thenReturn(new Bundle[] { bundle });
+        final BundlePrefetcher prefetcher = new BundlePrefetcher(new Logger(), context, 1024);
+
+        // stops without waiting for the start levels
+        prefetcher.run();
+        verify(context).removeBundleListener(prefetcher);
+        verify(context, never()).getBundle(anyString());
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.felix.framework.Logger;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/** Test the start level and wiring aware bundle starter */
+public class BundleStarterTest {
+
+    private BundleContext bundleContext;
+
+    private Bundle systemBundle;
+
+    private long lastId;
+
+    private final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setup() {
+        systemBundle = mock(Bundle.class);
+        final FrameworkStartLevel fsl = mock(FrameworkStartLevel.class);
+        when(fsl.getStartLevel()).thenReturn(10);
+        when(systemBundle.adapt(FrameworkStartLevel.class)).thenReturn(fsl);
+        when(systemBundle.adapt(FrameworkWiring.class)).thenReturn(mock(FrameworkWiring.class));
+
+        bundleContext = mock(BundleContext.class);
+        when(bundleContext.getBundle(Constants.SYSTEM_BUNDLE_LOCATION)).thenReturn(systemBundle);
+    }
+
+    private Bundle bundle(final String name, final int level, final String fragmentHost,
+            final Bundle... dependencies) throws BundleException {
+        final Bundle bundle = MockBundles.bundle(++lastId, name, level);
+        when(bundle.toString()).thenReturn(name);
+        if (fragmentHost != null) {
+            bundle.getHeaders().put(Constants.FRAGMENT_HOST, fragmentHost);
+        }
+
+        final List<BundleWire> wires = new ArrayList<BundleWire>();
+        for (final Bundle dependency : dependencies) {
+            final BundleWiring providerWiring = mock(BundleWiring.class);
+            when(providerWiring.getBundle()).thenReturn(dependency);
+            final BundleWire wire = mock(BundleWire.class);
+            when(wire.getProviderWiring()).thenReturn(providerWiring);
+            wires.add(wire);
+        }
+        final BundleWiring wiring = mock(BundleWiring.class);
+        when(wiring.getRequiredWires(null)).thenReturn(wires);
+        when(bundle.adapt(BundleWiring.class)).thenReturn(wiring);
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                started.add(name);
+                return null;
+            }
+        }).when(bundle).start();
+        return bundle;
+    }
+
+    @Test
+    public void testWaves() throws BundleException {
+        final Bundle api = bundle("api", 5, null);
+        final Bundle impl = bundle("impl", 5, null, api);
+        final Bundle other = bundle("other", 5, null);
+        final Bundle user = bundle("user", 5, null, impl, api);
+
+        final BundleStarter starter = new BundleStarter(new Logger(), bundleContext, 4);
+        final List<Set<Bundle>> waves = starter.getWaves(Arrays.asList(user, impl, other, api));
+        assertEquals(3, waves.size());
+        assertEquals(2, waves.get(0).size());
+        assertTrue(waves.get(0).contains(api));
+        assertTrue(waves.get(0).contains(other));
+        assertEquals(Collections.singleton(impl), waves.get(1));
+        assertEquals(Collections.singleton(user), waves.get(2));
+    }
+
+    @Test
+    public void testCycle() throws BundleException {
+        final Bundle a = bundle("a", 5, null);
+        final Bundle b = bundle("b", 5, null, a);
+        // a depends on b, closing the cycle
+        final BundleWiring providerWiring = mock(BundleWiring.class);
+        when(providerWiring.getBundle()).thenReturn(b);
+        final BundleWire wire = mock(BundleWire.class);
+        when(wire.getProviderWiring()).thenReturn(providerWiring);
+        when(a.adapt(BundleWiring.class).getRequiredWires(null)).thenReturn(
+            Collections.singletonList(wire));
+        final Bundle c = bundle("c", 5, null);
+
+        final List<Set<Bundle>> waves = new BundleStarter(new Logger(),
+            bundleContext, 4).getWaves(Arrays.asList(a, b, c));
+        assertEquals(2, waves.size());
+        assertEquals(Collections.singleton(c), waves.get(0));
+        assertEquals(2, waves.get(1).size());
+    }
+
+    @Test
+    public void testStartActive() throws BundleException {
+        when(systemBundle.getState()).thenReturn(Bundle.ACTIVE);
+
+        final Bundle api = bundle("api", 5, null);
+        final Bundle impl = bundle("impl", 5, null, api);
+        final Bundle early = bundle("early", 1, null);
+        final Bundle fragment = bundle("fragment", 1, "api");
+        final Bundle failing = bundle("failing", 5, null);
+        doThrow(new BundleException("failure")).when(failing).start();
+
+        final Map<Bundle, Long> times = new BundleStarter(new Logger(),
+            bundleContext, 4).start(Arrays.asList(impl, failing, fragment, api, early));
+
+        verify(fragment, never()).start();
+        assertEquals(3, times.size());
+        assertFalse(times.containsKey(failing));
+        assertEquals("early", started.get(0));
+        assertTrue(started.indexOf("api") < started.indexOf("impl"));
+    }
+
+    @Test
+    public void testStartInactive() throws BundleException {
+        when(systemBundle.getState()).thenReturn(Bundle.STARTING);
+
+        final Bundle b1 = bundle("b1", 20, null);
+        final Bundle b2 = bundle("b2", 3, null);
+        final Bundle b3 = bundle("b3", 20, null);
+
+        final Map<Bundle, Long> times = new BundleStarter(new Logger(),
+            bundleContext, 4).start(Arrays.asList(b1, b2, b3));
+        assertEquals(3, times.size());
+        assertEquals(Arrays.asList("b2", "b1", "b3"), started);
+    }
+}
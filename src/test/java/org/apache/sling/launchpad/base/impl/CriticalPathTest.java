@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.felix.framework.Logger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.Version;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.resource.Namespace;
+
+/** Test computing and starting the critical path */
+public class CriticalPathTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private BundleContext context;
+
+    private final List<Bundle> bundles = new ArrayList<Bundle>();
+
+    private final Map<Bundle, List<BundleCapability>> capabilities = new HashMap<Bundle, List<BundleCapability>>();
+
+    private final Map<Bundle, List<BundleRequirement>> requirements = new HashMap<Bundle, List<BundleRequirement>>();
+
+    private final Map<Bundle, BundleStartLevel> startLevels = new HashMap<Bundle, BundleStartLevel>();
+
+    private Bundle system;
+
+    @Before
+    public void setup() {
+        context = mock(BundleContext.class);
+        system = bundle(0, "org.apache.felix.framework", 0, false);
+        exportPackage(system, "org.osgi.framework", "1.8.0");
+    }
+
+    private Bundle bundle(final long id, final String name, final int level, final boolean fragment) {
+        final Bundle bundle = MockBundles.bundle(id, name, level);
+        when(bundle.getLocation()).thenReturn("slinginstall:" + name + ".jar");
+        when(bundle.getState()).thenReturn(Bundle.INSTALLED);
+        final BundleRevision revision = mock(BundleRevision.class);
+        when(revision.getBundle()).thenReturn(bundle);
+        when(revision.getTypes()).thenReturn(fragment ? BundleRevision.TYPE_FRAGMENT : 0);
+        when(bundle.adapt(BundleRevision.class)).thenReturn(revision);
+        startLevels.put(bundle, bundle.adapt(BundleStartLevel.class));
+        capabilities.put(bundle, new ArrayList<BundleCapability>());
+        requirements.put(bundle, new ArrayList<BundleRequirement>());
+        if (!fragment) {
+            provide(bundle, BundleRevision.HOST_NAMESPACE, Collections.<String, Object> singletonMap(
+                BundleRevision.HOST_NAMESPACE, name));
+        }
+        bundles.add(bundle);
+        return bundle;
+    }
+
+    private void provide(final Bundle bundle, final String namespace, final Map<String, Object> attributes) {
+        final BundleCapability capability = mock(BundleCapability.class);
+        final BundleRevision revision = bundle.adapt(BundleRevision.class);
+        when(capability.getNamespace()).thenReturn(namespace);
+        when(capability.getAttributes()).thenReturn(attributes);
+        when(capability.getRevision()).thenReturn(revision);
+        capabilities.get(bundle).add(capability);
+    }
+
+    private void require(final Bundle bundle, final String namespace, final String filter, final boolean optional) {
+        final BundleRequirement requirement = mock(BundleRequirement.class);
+        final Map<String, String> directives = new HashMap<String, String>();
+        directives.put(Namespace.REQUIREMENT_FILTER_DIRECTIVE, filter);
+        if (optional) {
+            directives.put(Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE, Namespace.RESOLUTION_OPTIONAL);
+        }
+        when(requirement.getNamespace()).thenReturn(namespace);
+        when(requirement.getDirectives()).thenReturn(directives);
+        requirements.get(bundle).add(requirement);
+    }
+
+    private void exportPackage(final Bundle bundle, final String pkg, final String version) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put(BundleRevision.PACKAGE_NAMESPACE, pkg);
+        attributes.put("version", new Version(version));
+        provide(bundle, BundleRevision.PACKAGE_NAMESPACE, attributes);
+    }
+
+    private void importPackage(final Bundle bundle, final String pkg, final boolean optional) {
+        require(bundle, BundleRevision.PACKAGE_NAMESPACE,
+            "(&(osgi.wiring.package=" + pkg + ")(version>=1.0.0))", optional);
+    }
+
+    private void complete() {
+        for (final Bundle bundle : bundles) {
+            final BundleRevision revision = bundle.adapt(BundleRevision.class);
+            final List<BundleCapability> caps = capabilities.get(bundle);
+            final List<BundleRequirement> reqs = requirements.get(bundle);
+            when(revision.getDeclaredCapabilities(null)).thenReturn(caps);
+            final List<BundleCapability> hostCaps = byNamespace(caps, BundleRevision.HOST_NAMESPACE);
+            when(revision.getDeclaredCapabilities(BundleRevision.HOST_NAMESPACE)).thenReturn(hostCaps);
+            when(revision.getDeclaredRequirements(null)).thenReturn(reqs);
+            final List<BundleRequirement> hosts = new ArrayList<BundleRequirement>();
+            for (final BundleRequirement req : reqs) {
+                if (BundleRevision.HOST_NAMESPACE.equals(req.getNamespace())) {
+                    hosts.add(req);
+                }
+            }
+            when(revision.getDeclaredRequirements(BundleRevision.HOST_NAMESPACE)).thenReturn(hosts);
+        }
+        when(context.getBundles()).thenReturn(bundles.toArray(new Bundle[bundles.size()]));
+        when(context.getBundle()).thenReturn(system);
+    }
+
+    private static List<BundleCapability> byNamespace(final List<BundleCapability> caps, final String namespace) {
+        final List<BundleCapability> result = new ArrayList<BundleCapability>();
+        for (final BundleCapability cap : caps) {
+            if (namespace.equals(cap.getNamespace())) {
+                result.add(cap);
+            }
+        }
+        return result;
+    }
+
+    private static Set<String> names(final String... names) {
+        return new LinkedHashSet<String>(Arrays.asList(names));
+    }
+
+    private static Set<String> symbolicNames(final Set<Bundle> bundles) {
+        final Set<String> names = new HashSet<String>();
+        for (final Bundle bundle : bundles) {
+            names.add(bundle.getSymbolicName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testClosure() {
+        final Bundle http = bundle(1, "http", 10, false);
+        final Bundle servlet = bundle(2, "servlet.api", 5, false);
+        final Bundle servletOther = bundle(3, "servlet.other", 20, false);
+        final Bundle scr = bundle(4, "scr", 10, false);
+        final Bundle optional = bundle(5, "optional", 10, false);
+        final Bundle fragment = bundle(6, "http.fragment", 10, true);
+        final Bundle tail = bundle(7, "tail", 30, false);
+        final Bundle log = bundle(8, "log", 10, false);
+
+        importPackage(http, "org.osgi.framework", false);
+        importPackage(http, "javax.servlet", false);
+        importPackage(http, "org.optional", true);
+        require(http, "osgi.extender", "(osgi.extender=osgi.component)", false);
+        exportPackage(servlet, "javax.servlet", "3.1.0");
+        exportPackage(servletOther, "javax.servlet", "3.1.0");
+        provide(scr, "osgi.extender", Collections.<String, Object> singletonMap("osgi.extender", "osgi.component"));
+        require(scr, "osgi.service", "(objectClass=org.osgi.service.log.LogService)", false);
+        provide(log, "osgi.service", Collections.<String, Object> singletonMap("objectClass",
+            new String[] { "org.osgi.service.log.LogService" }));
+        exportPackage(optional, "org.optional", "1.0.0");
+        require(fragment, BundleRevision.HOST_NAMESPACE, "(osgi.wiring.host=http)", false);
+        importPackage(tail, "javax.servlet", false);
+        complete();
+
+        final Set<Bundle> closure = new CriticalPath(mock(Logger.class), context, tmp.getRoot()).getClosure(names("http", "missing"));
+        assertEquals(new HashSet<String>(Arrays.asList("http", "servlet.api", "scr", "log", "http.fragment")),
+            symbolicNames(closure));
+    }
+
+    @Test
+    public void testPrioritizeAndRestore() throws IOException {
+        final Bundle http = bundle(1, "http", 10, false);
+        final Bundle servlet = bundle(2, "servlet.api", 5, false);
+        final Bundle early = bundle(3, "early", 1, false);
+        importPackage(http, "javax.servlet", false);
+        importPackage(http, "org.early", false);
+        exportPackage(servlet, "javax.servlet", "3.1.0");
+        exportPackage(early, "org.early", "1.0.0");
+        complete();
+        final FrameworkStartLevel fsl = mock(FrameworkStartLevel.class);
+        when(system.adapt(FrameworkStartLevel.class)).thenReturn(fsl);
+
+        final CriticalPath path = new CriticalPath(mock(Logger.class), context, tmp.getRoot());
+        path.prioritize(names("http"));
+        verify(startLevels.get(http)).setStartLevel(1);
+        verify(startLevels.get(servlet)).setStartLevel(1);
+        verify(startLevels.get(early), never()).setStartLevel(1);
+        verify(context).addFrameworkListener(path);
+        final Properties recorded = load();
+        assertEquals("10", recorded.getProperty("slinginstall:http.jar"));
+        assertEquals("5", recorded.getProperty("slinginstall:servlet.api.jar"));
+        assertEquals(2, recorded.size());
+
+        when(fsl.getStartLevel()).thenReturn(5);
+        path.frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTLEVEL_CHANGED, system, null));
+        verify(startLevels.get(servlet)).setStartLevel(5);
+        verify(startLevels.get(http), never()).setStartLevel(10);
+        verify(context, never()).removeFrameworkListener(path);
+        assertEquals(1, load().size());
+
+        when(fsl.getStartLevel()).thenReturn(10);
+        path.frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTLEVEL_CHANGED, system, null));
+        verify(startLevels.get(http)).setStartLevel(10);
+        verify(context).removeFrameworkListener(path);
+        assertFalse(new File(tmp.getRoot(), CriticalPath.STATE_FILE).exists());
+    }
+
+    @Test
+    public void testRestoreOnNextLaunch() throws IOException {
+        final Bundle http = bundle(1, "http", 1, false);
+        final Bundle servlet = bundle(2, "servlet.api", 1, false);
+        when(context.getBundle("slinginstall:http.jar")).thenReturn(http);
+        when(context.getBundle("slinginstall:servlet.api.jar")).thenReturn(servlet);
+        final Properties recorded = new Properties();
+        recorded.setProperty("slinginstall:http.jar", "10");
+        recorded.setProperty("slinginstall:servlet.api.jar", "invalid");
+        recorded.setProperty("slinginstall:uninstalled.jar", "20");
+        final OutputStream os = new FileOutputStream(new File(tmp.getRoot(), CriticalPath.STATE_FILE));
+        try {
+            recorded.store(os, null);
+        } finally {
+            os.close();
+        }
+
+        new CriticalPath(mock(Logger.class), context, tmp.getRoot()).restore();
+        verify(startLevels.get(http)).setStartLevel(10);
+        verify(startLevels.get(servlet), never()).setStartLevel(anyInt());
+        assertFalse(new File(tmp.getRoot(), CriticalPath.STATE_FILE).exists());
+    }
+
+    private Properties load() throws IOException {
+        final File file = new File(tmp.getRoot(), CriticalPath.STATE_FILE);
+        assertTrue(file.isFile());
+        final Properties props = new Properties();
+        final InputStream ins = new FileInputStream(file);
+        try {
+            props.load(ins);
+        } finally {
+            ins.close();
+        }
+        return props;
+    }
+}
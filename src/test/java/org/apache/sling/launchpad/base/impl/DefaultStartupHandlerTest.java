@@ -0,0 +1,283 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyFloat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.felix.framework.Logger;
+import org.apache.sling.launchpad.api.StartupListener;
+import org.apache.sling.launchpad.api.StartupMode;
+import org.apache.sling.launchpad.api.StartupService;
+import org.apache.sling.launchpad.base.shared.SharedConstants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.osgi.service.startlevel.StartLevel;
+
+/** Test the incremental start level handling of the startup handler */
+@SuppressWarnings("deprecation")
+public class DefaultStartupHandlerTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private BundleContext context;
+
+    private StartLevel startLevel;
+
+    private StartupManager manager;
+
+    private DefaultStartupHandler handler;
+
+    @Before
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void setup() throws Exception {
+        context = mock(BundleContext.class);
+        when(context.createFilter(anyString())).thenAnswer(new Answer<Filter>() {
+            @Override
+            public Filter answer(final InvocationOnMock invocation) throws Throwable {
+                return FrameworkUtil.createFilter((String) invocation.getArguments()[0]);
+            }
+        });
+        final ServiceReference ref = mock(ServiceReference.class);
+        startLevel = mock(StartLevel.class);
+        when(startLevel.getStartLevel()).thenReturn(10);
+        when(context.getServiceReference(StartLevel.class.getName())).thenReturn(ref);
+        when(context.getService(ref)).thenReturn(startLevel);
+        final Bundle[] bundles = new Bundle[] {
+            MockBundles.bundle(1, 5), MockBundles.bundle(2, 11), MockBundles.bundle(3, 20), MockBundles.bundle(4, 20) };
+        when(context.getBundles()).thenReturn(bundles);
+        when(context.getProperty(SharedConstants.SLING_STARTUP_QUIET_PERIOD)).thenReturn("100");
+        final Bundle framework = mock(Bundle.class);
+        final FrameworkStartLevel frameworkStartLevel = mock(FrameworkStartLevel.class);
+        when(framework.adapt(FrameworkStartLevel.class)).thenReturn(frameworkStartLevel);
+        when(context.getBundle(Constants.SYSTEM_BUNDLE_LOCATION)).thenReturn(framework);
+
+        manager = mock(StartupManager.class);
+        when(manager.getMode()).thenReturn(StartupMode.INSTALL);
+        when(manager.getTargetStartLevel()).thenReturn(30L);
+        when(manager.isIncrementalStartupEnabled()).thenReturn(true);
+    }
+
+    @After
+    public void cleanup() {
+        if (handler != null) {
+            // finish the startup to end the start level thread
+            when(startLevel.getStartLevel()).thenReturn(30);
+            handler.frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTLEVEL_CHANGED,
+                mock(Bundle.class), null));
+        }
+    }
+
+    @Test
+    public void testDryRunNotMarkedInstalled() throws Exception {
+        final Map<String, String> props = new HashMap<String, String>();
+        props.put(SharedConstants.SLING_HOME, tmp.getRoot().getPath());
+        props.put(Constants.FRAMEWORK_STORAGE, new File(tmp.getRoot(), "felix").getPath());
+        props.put(Constants.FRAMEWORK_BEGINNING_STARTLEVEL, "30");
+        props.put(SharedConstants.SLING_INSTALL_DRYRUN, "true");
+        final StartupManager dryRunManager = new StartupManager(props, new Logger());
+        assertEquals(StartupMode.INSTALL, dryRunManager.getMode());
+
+        handler = new DefaultStartupHandler(context, new Logger(), dryRunManager, System.currentTimeMillis());
+        handler.frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTED, mock(Bundle.class), null));
+
+        // the next regular startup performs the planned installation
+        props.remove(SharedConstants.SLING_INSTALL_DRYRUN);
+        assertEquals(StartupMode.INSTALL, new StartupManager(props, new Logger()).getMode());
+    }
+
+    @Test
+    public void testParallelStartOptIn() throws Exception {
+        when(manager.isIncrementalStartupEnabled()).thenReturn(false);
+        new DefaultStartupHandler(context, new Logger(), manager, System.currentTimeMillis());
+        when(context.getProperty(SharedConstants.SLING_STARTUP_PARALLEL)).thenReturn("true");
+        when(context.getProperty(SharedConstants.SLING_INSTALL_THREADS)).thenReturn("1");
+        new DefaultStartupHandler(context, new Logger(), manager, System.currentTimeMillis());
+        verify(context, never()).addBundleListener(isA(LevelStarter.class));
+
+        when(context.getProperty(SharedConstants.SLING_INSTALL_THREADS)).thenReturn("4");
+        new DefaultStartupHandler(context, new Logger(), manager, System.currentTimeMillis());
+        verify(context).addBundleListener(isA(LevelStarter.class));
+    }
+
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void testProfiledBundleProgress() throws Exception {
+        final Bundle[] bundles = context.getBundles();
+        final StartupTimings timings = new StartupTimings(0);
+        timings.startLevelReached(5, 0);
+        timings.bundleChanged(new BundleEvent(BundleEvent.STARTING, bundles[0]));
+        timings.bundleChanged(new BundleEvent(BundleEvent.STARTED, bundles[0]));
+        timings.startLevelReached(20, 100);
+        for (final Bundle bundle : new Bundle[] { bundles[2], bundles[3] }) {
+            timings.bundleChanged(new BundleEvent(BundleEvent.STARTING, bundle));
+            timings.bundleChanged(new BundleEvent(BundleEvent.STARTED, bundle));
+        }
+        timings.finish(1000);
+        final File profileFile = new File(tmp.getRoot(), StartupProfile.PROFILE_FILE);
+        final StartupProfile profile = StartupProfile.load(profileFile);
+        profile.record(StartupMode.RESTART, timings, 1000);
+        profile.save(profileFile);
+
+        final StartupListener listener = mock(StartupListener.class);
+        final ServiceReference ref = mock(ServiceReference.class);
+        when(context.getServiceReferences(StartupListener.class.getName(), null))
+            .thenReturn(new ServiceReference[] { ref });
+        when(context.getService(ref)).thenReturn(listener);
+        when(manager.getMode()).thenReturn(StartupMode.RESTART);
+        when(manager.getConfigDir()).thenReturn(tmp.getRoot());
+        handler = new DefaultStartupHandler(context, new Logger(), manager, System.currentTimeMillis());
+
+        // the first of two bundles of the most expensive start level is halfway
+        handler.bundleChanged(new BundleEvent(BundleEvent.STARTED, bundles[2]));
+        verify(listener, timeout(2000)).startupProgress(0.55f);
+    }
+
+    @Test
+    public void testAdvanceWhenInstallerIdle() throws Exception {
+        when(context.getProperty(SharedConstants.SLING_STARTUP_IDLE_TIMEOUT)).thenReturn("60000");
+        handler = new DefaultStartupHandler(context, new Logger(), manager, System.currentTimeMillis());
+
+        handler.waitWithStartup(true);
+        handler.frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTED, mock(Bundle.class), null));
+        Thread.sleep(300);
+        verify(startLevel, never()).setStartLevel(anyInt());
+
+        // the start level is increased once the installer is idle
+        handler.waitWithStartup(false);
+        verify(startLevel, timeout(2000)).setStartLevel(11);
+    }
+
+    @Test
+    public void testIdleTimeoutWithoutInstaller() throws Exception {
+        when(context.getProperty(SharedConstants.SLING_STARTUP_IDLE_TIMEOUT)).thenReturn("500");
+        handler = new DefaultStartupHandler(context, new Logger(), manager, System.currentTimeMillis());
+
+        handler.frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTED, mock(Bundle.class), null));
+        Thread.sleep(200);
+        verify(startLevel, never()).setStartLevel(anyInt());
+        verify(startLevel, timeout(2000)).setStartLevel(11);
+    }
+
+    @Test
+    public void testSkipEmptyLevels() throws Exception {
+        handler = new DefaultStartupHandler(context, new Logger(), manager, System.currentTimeMillis());
+        handler.waitWithStartup(true);
+        handler.waitWithStartup(false);
+
+        // from 11 straight to the next level with bundles
+        when(startLevel.getStartLevel()).thenReturn(11);
+        handler.frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTLEVEL_CHANGED, mock(Bundle.class), null));
+        verify(startLevel, timeout(2000)).setStartLevel(20);
+
+        // and to the target level if there are no further bundles
+        when(startLevel.getStartLevel()).thenReturn(20);
+        handler.frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTLEVEL_CHANGED, mock(Bundle.class), null));
+        verify(startLevel, timeout(2000)).setStartLevel(30);
+        verify(startLevel, never()).setStartLevel(12);
+    }
+
+    @Test(timeout = 10000)
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void testListenersDoNotBlockEvents() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final StartupListener listener = mock(StartupListener.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                latch.await();
+                return null;
+            }
+        }).when(listener).inform(any(StartupMode.class), anyBoolean());
+        final ServiceReference ref = mock(ServiceReference.class);
+        when(context.getServiceReferences(StartupListener.class.getName(), null))
+            .thenReturn(new ServiceReference[] { ref });
+        when(context.getService(ref)).thenReturn(listener);
+        handler = new DefaultStartupHandler(context, new Logger(), manager, System.currentTimeMillis());
+
+        // events are handled while the listener is busy
+        for (final int level : new int[] { 11, 12, 15 }) {
+            when(startLevel.getStartLevel()).thenReturn(level);
+            handler.frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTLEVEL_CHANGED, mock(Bundle.class), null));
+        }
+
+        // the listener only sees the latest progress
+        latch.countDown();
+        verify(listener, timeout(2000)).startupProgress(0.5f);
+        verify(listener, times(1)).startupProgress(anyFloat());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testDeferredStartLevels() throws Exception {
+        final Bundle systemBundle = mock(Bundle.class);
+        when(systemBundle.getState()).thenReturn(Bundle.ACTIVE);
+        when(context.getBundle()).thenReturn(systemBundle);
+        when(context.getProperty(SharedConstants.SLING_STARTUP_DEFERRED_PACE)).thenReturn("0");
+        when(manager.getReadyStartLevel()).thenReturn(20L);
+        handler = new DefaultStartupHandler(context, new Logger(), manager, System.currentTimeMillis());
+
+        // the startup is finished at the ready level
+        when(startLevel.getStartLevel()).thenReturn(20);
+        handler.frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTLEVEL_CHANGED, mock(Bundle.class), null));
+        assertTrue(handler.isFinished());
+        verify(context).registerService(any(Class.class), any(StartupService.class), any(Dictionary.class));
+
+        // and the remaining levels are raised afterwards
+        verify(startLevel, timeout(2000)).setStartLevel(30);
+        verify(context, never()).removeFrameworkListener(handler);
+        when(startLevel.getStartLevel()).thenReturn(30);
+        handler.frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTLEVEL_CHANGED, mock(Bundle.class), null));
+        verify(context, timeout(2000)).removeFrameworkListener(handler);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.felix.framework.Logger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Test resuming an interrupted installation from the install journal */
+public class InstallJournalTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private File confDir;
+
+    @Before
+    public void setup() throws IOException {
+        confDir = tmp.getRoot();
+    }
+
+    @Test
+    public void testResumeInterrupted() throws IOException {
+        InstallJournal journal = new InstallJournal(new Logger(), confDir);
+        assertFalse(journal.isResuming());
+        journal.open();
+        journal.record(InstallJournal.Event.COPIED, "c1", "/startup/10/a.jar");
+        journal.record(InstallJournal.Event.PLANNED, InstallJournal.NO_DIGEST, "/startup/10/a.jar");
+        journal.record(InstallJournal.Event.UPDATED, "d1", "/startup/10/a.jar");
+        journal.close();
+
+        // a partially written record is ignored
+        final FileOutputStream out = new FileOutputStream(
+            new File(confDir, InstallJournal.JOURNAL_FILE), true);
+        try {
+            out.write("installed\td2".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        journal = new InstallJournal(new Logger(), confDir);
+        assertTrue(journal.isResuming());
+        assertEquals("c1", journal.getCopied().get("/startup/10/a.jar"));
+        assertTrue(journal.isCommitted("/startup/10/a.jar", "d1"));
+        assertFalse(journal.isCommitted("/startup/10/a.jar", "other"));
+        assertFalse(journal.hasCommitted("/startup/10/b.jar"));
+
+        // the resumed installation completes
+        journal.open();
+        journal.record(InstallJournal.Event.INSTALLED, "d2", "/startup/10/b.jar");
+        journal.complete();
+
+        journal = new InstallJournal(new Logger(), confDir);
+        assertFalse(journal.isResuming());
+        assertTrue(journal.getCopied().isEmpty());
+        assertFalse(journal.hasCommitted("/startup/10/a.jar"));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+
+import org.junit.Test;
+
+/** Test the install plan and its report */
+public class InstallPlanTest {
+
+    private static InstallPlan.Step step(final String name, final int level,
+            final String fragmentHost, final InstallPlan.Action action,
+            final String location, final long bytes) {
+        return new InstallPlan.Step(BundleSource.forFile(new File(name + ".jar"), level),
+            new ManifestInfo(name, "1.0.0", null, fragmentHost), null, action,
+            "test", location, bytes);
+    }
+
+    @Test
+    public void testBatchesAndTotals() {
+        final InstallPlan plan = new InstallPlan();
+        final InstallPlan.Step late = step("late", 20, null, InstallPlan.Action.INSTALL, "slinginstall:late.jar", 100);
+        final InstallPlan.Step skipped = step("skipped", 1, null, InstallPlan.Action.SKIP, null, 0);
+        final InstallPlan.Step early = step("early", 1, null, InstallPlan.Action.UPDATE, null, 50);
+        final InstallPlan.Step fragment = step("fragment", 20, "late", InstallPlan.Action.INSTALL,
+            "reference:file:/tmp/fragment.jar", 0);
+        final InstallPlan.Step unknown = step("unknown", 20, null, InstallPlan.Action.INSTALL, "slinginstall:unknown.jar", -1);
+        plan.add(late);
+        plan.add(skipped);
+        plan.add(early);
+        plan.add(fragment);
+        plan.add(unknown);
+
+        final SortedMap<Integer, List<InstallPlan.Step>> batches = plan.getBatches();
+        assertEquals(Arrays.asList(1, 20), Arrays.asList(batches.keySet().toArray()));
+        assertEquals(Arrays.asList(early), batches.get(1));
+        assertEquals(Arrays.asList(late, fragment, unknown), batches.get(20));
+
+        assertEquals(3, plan.count(InstallPlan.Action.INSTALL));
+        assertEquals(1, plan.count(InstallPlan.Action.UPDATE));
+        assertEquals(1, plan.count(InstallPlan.Action.SKIP));
+        assertEquals(150, plan.getBytes());
+
+        assertTrue(late.isStart());
+        assertFalse(early.isStart());
+        assertFalse(fragment.isStart());
+        assertTrue(fragment.isReference());
+        assertFalse(late.isReference());
+    }
+
+    @Test
+    public void testReport() throws IOException {
+        final InstallPlan plan = new InstallPlan();
+        final InstallPlan.Step step = step("bundle", 5, null, InstallPlan.Action.INSTALL, "slinginstall:bundle.jar", 42);
+        step.setTime(7);
+        plan.add(step);
+
+        final File report = File.createTempFile(getClass().getSimpleName(), ".tsv");
+        try {
+            plan.write(report);
+            final List<String> lines = Files.readAllLines(report.toPath());
+            assertEquals(2, lines.size());
+            assertTrue(lines.get(0).startsWith("#action\tstart\tlevel"));
+            final String[] fields = lines.get(1).split("\t", -1);
+            assertEquals(11, fields.length);
+            assertEquals("INSTALL", fields[0]);
+            assertEquals("true", fields[1]);
+            assertEquals("5", fields[2]);
+            assertEquals("bundle", fields[3]);
+            assertEquals("", fields[5]);
+            assertEquals("42", fields[6]);
+            assertEquals("7", fields[7]);
+            assertEquals("slinginstall:bundle.jar", fields[9]);
+        } finally {
+            report.delete();
+        }
+    }
+}
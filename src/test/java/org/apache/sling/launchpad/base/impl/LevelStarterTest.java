@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.framework.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/** Test starting the bundles of the start level entered in parallel */
+public class LevelStarterTest {
+
+    private BundleContext bundleContext;
+
+    private final List<Bundle> bundles = new ArrayList<Bundle>();
+
+    private final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+
+    private CountDownLatch latch;
+
+    private LevelStarter starter;
+
+    @Before
+    public void setup() {
+        final Bundle systemBundle = mock(Bundle.class);
+        when(systemBundle.getState()).thenReturn(Bundle.STARTING);
+        final FrameworkStartLevel fsl = mock(FrameworkStartLevel.class);
+        when(fsl.getStartLevel()).thenReturn(20);
+        when(systemBundle.adapt(FrameworkStartLevel.class)).thenReturn(fsl);
+        when(systemBundle.adapt(FrameworkWiring.class)).thenReturn(mock(FrameworkWiring.class));
+
+        bundleContext = mock(BundleContext.class);
+        when(bundleContext.getBundle(Constants.SYSTEM_BUNDLE_LOCATION)).thenReturn(systemBundle);
+        starter = new LevelStarter(new Logger(), bundleContext, 4);
+    }
+
+    @After
+    public void cleanup() {
+        starter.stop();
+    }
+
+    private Bundle bundle(final long id, final String name, final int level, final boolean persistentlyStarted)
+            throws BundleException {
+        final Bundle bundle = MockBundles.bundle(id, name, level);
+        when(bundle.getState()).thenReturn(Bundle.RESOLVED);
+        final BundleStartLevel bsl = bundle.adapt(BundleStartLevel.class);
+        when(bsl.isPersistentlyStarted()).thenReturn(persistentlyStarted);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                started.add(name + ":" + invocation.getArguments()[0]);
+                latch.countDown();
+                return null;
+            }
+        }).when(bundle).start(Bundle.START_TRANSIENT);
+        bundles.add(bundle);
+        return bundle;
+    }
+
+    @Test
+    public void testStartPendingBundlesOfLevel() throws Exception {
+        final Bundle first = bundle(1, "first", 20, true);
+        bundle(2, "second", 20, true);
+        bundle(3, "third", 20, true);
+        bundle(4, "stopped", 20, false);
+        bundle(5, "higher", 30, true);
+        final Bundle[] all = bundles.toArray(new Bundle[bundles.size()]);
+        when(bundleContext.getBundles()).thenReturn(all);
+
+        latch = new CountDownLatch(2);
+        starter.bundleChanged(new BundleEvent(BundleEvent.STARTING, first));
+        // a second bundle of the same level does not start the level again
+        starter.bundleChanged(new BundleEvent(BundleEvent.STARTING, first));
+        latch.await(5, TimeUnit.SECONDS);
+        starter.stop();
+
+        Collections.sort(started);
+        final String transientStart = String.valueOf(Bundle.START_TRANSIENT);
+        assertEquals(Arrays.asList("second:" + transientStart, "third:" + transientStart), started);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.framework.Logger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Test the persistent bundle manifest cache */
+public class ManifestCacheTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private File testDir;
+
+    private File confDir;
+
+    @Before
+    public void setup() throws IOException {
+        testDir = tmp.getRoot();
+        confDir = new File(testDir, "conf");
+        assertTrue(confDir.mkdirs());
+    }
+
+    private File copy(final String resource, final String name) throws IOException {
+        final File target = new File(testDir, name);
+        final InputStream ins = getClass().getClassLoader().getResourceAsStream(resource);
+        try {
+            BootstrapInstaller.copyStreamToFile(ins, target);
+        } finally {
+            ins.close();
+        }
+        return target;
+    }
+
+    @Test
+    public void testReadAndCache() throws IOException {
+        final File jar = copy("holaworld.jar", "holaworld.jar");
+
+        ManifestCache cache = new ManifestCache(new Logger(), confDir);
+        final ManifestInfo info = cache.get(jar);
+        assertNotNull(info);
+        assertEquals("org.apache.sling.holaworld", info.getSymbolicName());
+        assertEquals("1.2.0.SNAPSHOT", info.getVersion());
+        assertEquals("1241175143573", info.getLastModified());
+        assertNull(info.getFragmentHost());
+        cache.save();
+        assertTrue(new File(confDir, ManifestCache.CACHE_FILE).isFile());
+
+        // the cached information is used while size and modification time match
+        cache = new ManifestCache(new Logger(), confDir);
+        assertEquals("org.apache.sling.holaworld", cache.get(jar).getSymbolicName());
+
+        // a modified file is read again
+        final File other = copy("holaworld-nomanifest.jar", "other.jar");
+        assertTrue(other.renameTo(jar));
+        assertNull(cache.get(jar));
+    }
+
+    @Test
+    public void testParallelRead() throws IOException {
+        final List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 20; i++) {
+            files.add(copy("holaworld.jar", "bundle" + i + ".jar"));
+        }
+        files.add(copy("holaworld-nomanifest.jar", "nomanifest.jar"));
+
+        final ManifestCache cache = new ManifestCache(new Logger(), confDir);
+        final Map<File, ManifestInfo> infos = cache.get(files, 4);
+        assertEquals(20, infos.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("org.apache.sling.holaworld",
+                infos.get(files.get(i)).getSymbolicName());
+        }
+    }
+
+    @Test
+    public void testReadFromStream() throws IOException {
+        InputStream ins = getClass().getClassLoader().getResourceAsStream("holaworld.jar");
+        try {
+            final ManifestInfo info = ManifestInfo.read(ins);
+            assertEquals("org.apache.sling.holaworld", info.getSymbolicName());
+            assertEquals("1.2.0.SNAPSHOT", info.getVersion());
+        } finally {
+            ins.close();
+        }
+
+        ins = getClass().getClassLoader().getResourceAsStream("holaworld-nomanifest.jar");
+        try {
+            assertNull(ManifestInfo.read(ins));
+        } finally {
+            ins.close();
+        }
+    }
+}
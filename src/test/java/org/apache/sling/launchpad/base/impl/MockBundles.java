@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Hashtable;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+import org.osgi.framework.startlevel.BundleStartLevel;
+
+/** Mocked bundles shared by the startup tests */
+final class MockBundles {
+
+    private MockBundles() {
+    }
+
+    /**
+     * Returns a mocked bundle with the id, symbolic name, version 1.0.0,
+     * empty headers and a mocked {@link BundleStartLevel} for the start
+     * level. Tests stub further methods on the returned mocks.
+     */
+    static Bundle bundle(final long id, final String symbolicName, final int level) {
+        final Bundle bundle = mock(Bundle.class);
+        when(bundle.getBundleId()).thenReturn(id);
+        when(bundle.getSymbolicName()).thenReturn(symbolicName);
+        when(bundle.getVersion()).thenReturn(Version.parseVersion("1.0.0"));
+        when(bundle.getHeaders()).thenReturn(new Hashtable<String, String>());
+        final BundleStartLevel bsl = mock(BundleStartLevel.class);
+        when(bsl.getStartLevel()).thenReturn(level);
+        when(bundle.adapt(BundleStartLevel.class)).thenReturn(bsl);
+        return bundle;
+    }
+
+    /**
+     * Returns a mocked bundle named after its id.
+     *
+     * @see #bundle(long, String, int)
+     */
+    static Bundle bundle(final long id, final int level) {
+        return bundle(id, "bundle" + id, level);
+    }
+}
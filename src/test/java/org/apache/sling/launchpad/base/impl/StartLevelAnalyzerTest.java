@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.apache.felix.framework.Logger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.wiring.BundleRequirement;
+
+/** Test proposing start levels from the bundle dependencies */
+public class StartLevelAnalyzerTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    private StartLevelAnalyzer analyzer;
+
+    @Before
+    public void setup() throws IOException {
+        dir = tmp.getRoot();
+        analyzer = new StartLevelAnalyzer(new Logger(), 30);
+    }
+
+    private static Map<String, Object> headers(final String name, final String exports, final String imports) {
+        final Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("Bundle-ManifestVersion", "2");
+        headers.put("Bundle-SymbolicName", name);
+        if (exports != null) {
+            headers.put("Export-Package", exports);
+        }
+        if (imports != null) {
+            headers.put("Import-Package", imports);
+        }
+        return headers;
+    }
+
+    private int proposed(final String name) {
+        for (final StartLevelAnalyzer.Node node : analyzer.getBundles()) {
+            if (name.equals(node.getSymbolicName())) {
+                return node.getProposedLevel();
+            }
+        }
+        throw new AssertionError("Missing bundle " + name);
+    }
+
+    @Test
+    public void testLayering() {
+        final Map<String, Object> a = headers("a", "p.a;version=1.0", null);
+        a.put("Require-Capability", "osgi.ee;filter:=\"(osgi.ee=JavaSE)\"");
+        analyzer.addBundle("a.jar", 20, a);
+        analyzer.addBundle("b.jar", 20, headers("b", "p.b", "p.a;version=\"[1,2)\""));
+        analyzer.addBundle("c.jar", 20, headers("c", null, "p.a,p.b"));
+        analyzer.addBundle("d.jar", 20, headers("d", "p.d", "p.a"));
+        final Map<String, Object> fragment = headers("h", null, "p.d");
+        fragment.put("Fragment-Host", "b");
+        analyzer.addBundle("h.jar", 20, fragment);
+        analyzer.addBundle("e.jar", 20, headers("e", "p.e", "p.f"));
+        analyzer.addBundle("f.jar", 20, headers("f", "p.f", "p.e"));
+        analyzer.addBundle("g.jar", 20, headers("g", null, "p.x,p.y;resolution:=optional"));
+        analyzer.analyze();
+
+        assertEquals(1, proposed("a"));
+        assertEquals(2, proposed("d"));
+        assertEquals(3, proposed("b"));
+        assertEquals(3, proposed("h"));
+        assertEquals(4, proposed("c"));
+        assertEquals(1, proposed("e"));
+        assertEquals(1, proposed("f"));
+        assertEquals(1, proposed("g"));
+
+        assertEquals(1, analyzer.getCycles().size());
+        assertEquals(2, analyzer.getCycles().get(0).size());
+
+        assertEquals(1, analyzer.getUnresolved().size());
+        final List<BundleRequirement> unresolved = analyzer.getUnresolved().values().iterator().next();
+        assertEquals(1, unresolved.size());
+        assertTrue(unresolved.get(0).getDirectives().get("filter").contains("p.x"));
+    }
+
+    @Test
+    public void testVersionMismatchIsUnresolved() {
+        analyzer.addBundle("a.jar", 1, headers("a", "p.a;version=1.0", null));
+        analyzer.addBundle("b.jar", 1, headers("b", null, "p.a;version=\"[2,3)\""));
+        analyzer.analyze();
+
+        assertEquals(1, proposed("b"));
+        assertEquals(1, analyzer.getUnresolved().size());
+    }
+
+    private void jar(final File file, final Map<String, Object> headers) throws IOException {
+        final Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        for (final Map.Entry<String, Object> entry : headers.entrySet()) {
+            manifest.getMainAttributes().putValue(entry.getKey(), (String) entry.getValue());
+        }
+        file.getParentFile().mkdirs();
+        new JarOutputStream(new FileOutputStream(file), manifest).close();
+    }
+
+    @Test
+    public void testRewriteLayout() throws IOException {
+        jar(new File(dir, "20/a.jar"), headers("a", "p.a", null));
+        jar(new File(dir, "20/b.jar"), headers("b", null, "p.a"));
+        jar(new File(dir, "2/c.jar"), headers("c", null, null));
+
+        analyzer.addLayout(dir);
+        analyzer.analyze();
+        assertEquals(3, analyzer.rewriteLayout(dir));
+
+        assertTrue(new File(dir, "1/a.jar").isFile());
+        assertTrue(new File(dir, "2/b.jar").isFile());
+        assertTrue(new File(dir, "1/c.jar").isFile());
+        assertEquals(0, new File(dir, "20").list().length);
+    }
+
+    @Test
+    public void testAboveTargetStartLevel() throws IOException {
+        analyzer = new StartLevelAnalyzer(new Logger(), 2);
+        jar(new File(dir, "1/a.jar"), headers("a", "p.a", null));
+        jar(new File(dir, "1/b.jar"), headers("b", "p.b", "p.a"));
+        jar(new File(dir, "1/c.jar"), headers("c", null, "p.b"));
+
+        analyzer.addLayout(dir);
+        analyzer.analyze();
+        assertEquals(3, proposed("c"));
+        assertEquals(1, analyzer.getOverflowing().size());
+        assertEquals("c", analyzer.getOverflowing().get(0).getSymbolicName());
+
+        final StringWriter report = new StringWriter();
+        analyzer.writeReport(new PrintWriter(report));
+        assertTrue(report.toString(), report.toString().contains("Above the target start level 2 (1 bundles)"));
+
+        try {
+            analyzer.rewriteLayout(dir);
+            fail("Expected the rewrite to be refused");
+        } catch (final IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("target start level 2"));
+        }
+        assertTrue(new File(dir, "1/b.jar").isFile());
+        assertFalse(new File(dir, "2").exists());
+    }
+}
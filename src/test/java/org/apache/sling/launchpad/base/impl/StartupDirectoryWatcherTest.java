@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.felix.framework.Logger;
+import org.apache.sling.launchpad.api.StartupMode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Test the startup directory watcher triggering deployments */
+public class StartupDirectoryWatcherTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private File startupDir;
+
+    private BootstrapInstaller installer;
+
+    private StartupDirectoryWatcher watcher;
+
+    @Before
+    public void setup() throws IOException {
+        startupDir = tmp.getRoot();
+        assertTrue(new File(startupDir, "10").mkdirs());
+
+        installer = mock(BootstrapInstaller.class);
+        when(installer.getStartupDirectory()).thenReturn(startupDir);
+        watcher = new StartupDirectoryWatcher(new Logger(), installer, 200);
+    }
+
+    @After
+    public void cleanup() {
+        watcher.stop();
+    }
+
+    @Test
+    public void testDeployAfterStartup() throws Exception {
+        watcher.inform(StartupMode.INSTALL, false);
+        watcher.startupFinished(StartupMode.INSTALL);
+
+        // a burst of files results in a single deployment
+        for (int i = 0; i < 5; i++) {
+            Files.write(new File(startupDir, "10/bundle" + i + ".jar").toPath(), new byte[] { 1 });
+        }
+        verify(installer, timeout(10000).times(1)).deploy();
+
+        // bundles in a new start level directory
+        final File levelDir = new File(startupDir, "20");
+        assertTrue(levelDir.mkdir());
+        Thread.sleep(300);
+        Files.write(new File(levelDir, "other.jar").toPath(), new byte[] { 1 });
+        verify(installer, timeout(10000).atLeast(2)).deploy();
+    }
+
+    @Test
+    public void testNoWatchBeforeStartupFinished() throws Exception {
+        watcher.inform(StartupMode.INSTALL, false);
+        Files.write(new File(startupDir, "10/bundle.jar").toPath(), new byte[] { 1 });
+        Thread.sleep(500);
+        verify(installer, times(0)).deploy();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Test detecting changes with the startup fingerprint */
+public class StartupFingerprintTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private File testDir;
+
+    private File startupDir;
+
+    private List<File> launcherJars;
+
+    @Before
+    public void setup() throws IOException {
+        testDir = tmp.getRoot();
+        startupDir = new File(testDir, "startup");
+        assertTrue(new File(startupDir, "10").mkdirs());
+        Files.write(new File(startupDir, "10/a.jar").toPath(), new byte[] { 1 });
+
+        final File launcher = new File(testDir, "launcher.jar");
+        Files.write(launcher.toPath(), new byte[] { 1, 2, 3 });
+        launcherJars = Collections.singletonList(launcher);
+    }
+
+    private StartupFingerprint saveAndLoad() throws IOException {
+        final File file = new File(testDir, StartupFingerprint.FINGERPRINT_FILE);
+        StartupFingerprint.compute(launcherJars, startupDir, null).save(file);
+        final StartupFingerprint recorded = StartupFingerprint.load(file);
+        assertNotNull(recorded);
+        return recorded;
+    }
+
+    @Test
+    public void testUnchanged() throws IOException {
+        final StartupFingerprint recorded = saveAndLoad();
+        assertTrue(recorded.isUnchanged(launcherJars, startupDir, false));
+        assertTrue(recorded.isUnchanged(launcherJars, startupDir, true));
+        assertTrue(StartupFingerprint.compute(launcherJars, startupDir, recorded)
+            .isSameContent(recorded));
+    }
+
+    @Test
+    public void testTouchedWithoutContentChange() throws IOException {
+        final StartupFingerprint recorded = saveAndLoad();
+        final File launcher = launcherJars.get(0);
+        launcher.setLastModified(launcher.lastModified() - 10000);
+        final File levelDir = new File(startupDir, "10");
+        levelDir.setLastModified(levelDir.lastModified() - 10000);
+
+        assertFalse(recorded.isUnchanged(launcherJars, startupDir, false));
+        assertTrue(StartupFingerprint.compute(launcherJars, startupDir, recorded)
+            .isSameContent(recorded));
+    }
+
+    @Test
+    public void testBundleAdded() throws IOException {
+        final StartupFingerprint recorded = saveAndLoad();
+        final File levelDir = new File(startupDir, "20");
+        assertTrue(levelDir.mkdir());
+        Files.write(new File(levelDir, "b.jar").toPath(), new byte[] { 1 });
+        startupDir.setLastModified(startupDir.lastModified() + 10000);
+
+        assertFalse(recorded.isUnchanged(launcherJars, startupDir, false));
+        assertFalse(StartupFingerprint.compute(launcherJars, startupDir, recorded)
+            .isSameContent(recorded));
+    }
+
+    @Test
+    public void testBundleOverwrittenInPlace() throws IOException {
+        final StartupFingerprint recorded = saveAndLoad();
+        final File levelDir = new File(startupDir, "10");
+        final long dirModified = levelDir.lastModified();
+        final File bundle = new File(levelDir, "a.jar");
+        Files.write(bundle.toPath(), new byte[] { 2 });
+        bundle.setLastModified(bundle.lastModified() + 10000);
+        levelDir.setLastModified(dirModified);
+
+        // only noticed when checking the bundle files
+        assertTrue(recorded.isUnchanged(launcherJars, startupDir, false));
+        assertFalse(recorded.isUnchanged(launcherJars, startupDir, true));
+        assertFalse(StartupFingerprint.compute(launcherJars, startupDir, recorded)
+            .isSameContent(recorded));
+    }
+
+    @Test
+    public void testLauncherChanged() throws IOException {
+        final StartupFingerprint recorded = saveAndLoad();
+        final File launcher = launcherJars.get(0);
+        Files.write(launcher.toPath(), new byte[] { 3, 2, 1 });
+        launcher.setLastModified(launcher.lastModified() + 10000);
+
+        assertFalse(recorded.isUnchanged(launcherJars, startupDir, false));
+        assertFalse(StartupFingerprint.compute(launcherJars, startupDir, recorded)
+            .isSameContent(recorded));
+    }
+
+    @Test
+    public void testChangeSet() throws IOException {
+        Files.write(new File(startupDir, "10/b.jar").toPath(), new byte[] { 1 });
+        final StartupFingerprint recorded = saveAndLoad();
+
+        final File changed = new File(startupDir, "10/a.jar");
+        Files.write(changed.toPath(), new byte[] { 1, 2 });
+        assertTrue(new File(startupDir, "10/b.jar").delete());
+        assertTrue(new File(startupDir, "30").mkdir());
+        Files.write(new File(startupDir, "30/c.jar").toPath(), new byte[] { 1 });
+
+        final StartupFingerprint current = StartupFingerprint.compute(launcherJars, startupDir, recorded);
+        assertTrue(current.isSameLauncher(recorded));
+        final StartupChangeSet changeSet = StartupChangeSet.between(recorded, current);
+        assertEquals(StartupChangeSet.Change.CHANGED, changeSet.getChange("10", "a.jar"));
+        assertEquals(StartupChangeSet.Change.REMOVED, changeSet.getChange("10", "b.jar"));
+        assertEquals(StartupChangeSet.Change.ADDED, changeSet.getChange("30", "c.jar"));
+        assertEquals(new TreeSet<Integer>(Arrays.asList(10, 30)), changeSet.getLevels());
+        assertEquals("1 added, 1 changed, 1 removed", changeSet.toString());
+    }
+
+    @Test
+    public void testMissingFingerprint() {
+        assertNull(StartupFingerprint.load(new File(testDir, "missing.properties")));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.sling.launchpad.api.StartupMode;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+
+/** Test recording startup profiles and predicting the progress */
+public class StartupProfileTest {
+
+    /** Timings spending the times in the start levels 10, 20 and 30 */
+    private static StartupTimings timings(final long t10, final long t20, final long t30) {
+        final StartupTimings timings = new StartupTimings(0);
+        timings.startLevelReached(10, 0);
+        for (int i = 0; i < 3; i++) {
+            final Bundle bundle = MockBundles.bundle(i + 1, 10);
+            timings.bundleChanged(new BundleEvent(BundleEvent.STARTING, bundle));
+            timings.bundleChanged(new BundleEvent(BundleEvent.STARTED, bundle));
+        }
+        timings.startLevelReached(20, t10);
+        timings.startLevelReached(30, t10 + t20);
+        timings.finish(t10 + t20 + t30);
+        return timings;
+    }
+
+    @Test
+    public void testRecordAndPredict() throws IOException {
+        final File file = File.createTempFile(getClass().getSimpleName(), ".properties");
+        try {
+            file.delete();
+            StartupProfile profile = StartupProfile.load(file);
+            assertEquals(0, profile.getTotal(StartupMode.INSTALL));
+            assertTrue(profile.getProgress(StartupMode.INSTALL, 20) < 0);
+            assertTrue(profile.getRemaining(StartupMode.INSTALL, 20) < 0);
+
+            profile.record(StartupMode.INSTALL, timings(100, 700, 200), 1000);
+            profile.save(file);
+
+            profile = StartupProfile.load(file);
+            assertEquals(1000, profile.getTotal(StartupMode.INSTALL));
+            assertEquals(3, profile.getBundles(StartupMode.INSTALL));
+            assertEquals(0.1f, profile.getProgress(StartupMode.INSTALL, 20), 0.001f);
+            assertEquals(0.8f, profile.getProgress(StartupMode.INSTALL, 30), 0.001f);
+            assertEquals(900, profile.getRemaining(StartupMode.INSTALL, 20));
+            assertEquals(0, profile.getTotal(StartupMode.RESTART));
+
+            // the time of a start level is shared by its bundles
+            assertEquals(0f, profile.getProgress(StartupMode.INSTALL, 10, 0), 0.001f);
+            assertEquals(0.033f, profile.getProgress(StartupMode.INSTALL, 10, 1), 0.001f);
+            assertEquals(0.1f, profile.getProgress(StartupMode.INSTALL, 10, 3), 0.001f);
+            assertEquals(0.1f, profile.getProgress(StartupMode.INSTALL, 10, 5), 0.001f);
+            assertEquals(900, profile.getRemaining(StartupMode.INSTALL, 10, 3));
+
+            // times are averaged with the previous startups
+            profile.record(StartupMode.INSTALL, timings(300, 500, 200), 2000);
+            assertEquals(1500, profile.getTotal(StartupMode.INSTALL));
+            assertEquals(0.2f, profile.getProgress(StartupMode.INSTALL, 20), 0.001f);
+        } finally {
+            file.delete();
+        }
+    }
+}
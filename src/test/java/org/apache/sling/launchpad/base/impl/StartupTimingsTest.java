@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+
+/** Test recording the startup timings */
+public class StartupTimingsTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private static void start(final StartupTimings timings, final Bundle bundle, final long sleep)
+            throws InterruptedException {
+        timings.bundleChanged(new BundleEvent(BundleEvent.STARTING, bundle));
+        Thread.sleep(sleep);
+        timings.bundleChanged(new BundleEvent(BundleEvent.STARTED, bundle));
+    }
+
+    @Test
+    public void testTimings() throws Exception {
+        final StartupTimings timings = new StartupTimings(0);
+        final Bundle fast = MockBundles.bundle(1, "fast", 10);
+        final Bundle slow = MockBundles.bundle(2, "slow", 20);
+        final Bundle failed = MockBundles.bundle(3, "failed", 20);
+
+        timings.startLevelReached(10, 1000);
+        start(timings, fast, 0);
+        timings.waited(10, 300);
+        timings.startLevelReached(20, 1500);
+        start(timings, slow, 100);
+        timings.bundleChanged(new BundleEvent(BundleEvent.STARTING, failed));
+        timings.bundleChanged(new BundleEvent(BundleEvent.STOPPED, failed));
+        timings.finish(2500);
+
+        assertEquals(500, timings.getTimeInLevel(10));
+        assertEquals(300, timings.getWaitedInLevel(10));
+        assertEquals(1000, timings.getTimeInLevel(20));
+        assertEquals(0, timings.getTimeInLevel(30));
+
+        final List<StartupTimings.BundleTiming> slowest = timings.getSlowestBundles(5);
+        assertEquals(2, slowest.size());
+        assertSame(slow, slowest.get(0).getBundle());
+        assertEquals(20, slowest.get(0).getStartLevel());
+        assertTrue(slowest.get(0).getDuration() >= 100);
+        assertEquals(1, timings.getSlowestBundles(1).size());
+    }
+
+    @Test
+    public void testReport() throws IOException, InterruptedException {
+        final StartupTimings timings = new StartupTimings(0);
+        timings.startLevelReached(20, 100);
+        start(timings, MockBundles.bundle(1, "some.bundle", 20), 0);
+        timings.finish(200);
+
+        final File file = new File(new File(tmp.getRoot(), "logs"), StartupTimings.REPORT_FILE);
+        timings.writeReport(file, 10);
+        final String report = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertTrue(report, report.startsWith("Startup finished in 200ms"));
+        assertTrue(report, report.contains("  20: 100ms, 0ms, 1, "));
+        assertTrue(report, report.contains("Slowest 1 bundles"));
+        assertTrue(report, report.contains("some.bundle 1.0.0 (id 1, level 20)"));
+    }
+}
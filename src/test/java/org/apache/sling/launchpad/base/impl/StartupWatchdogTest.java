@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+
+import org.apache.felix.framework.Logger;
+import org.apache.sling.launchpad.base.shared.SharedConstants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+/** Test reporting a stalled startup */
+public class StartupWatchdogTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private File slingHome;
+
+    private StartupWatchdog watchdog;
+
+    @Before
+    public void setup() throws IOException {
+        slingHome = tmp.getRoot();
+    }
+
+    @After
+    public void cleanup() {
+        if (watchdog != null) {
+            watchdog.stop();
+        }
+    }
+
+    @Test
+    public void testStallReport() throws Exception {
+        final BundleContext context = mock(BundleContext.class);
+        when(context.getProperty(SharedConstants.SLING_HOME)).thenReturn(slingHome.getPath());
+        final FrameworkStartLevel startLevel = mock(FrameworkStartLevel.class);
+        when(startLevel.getStartLevel()).thenReturn(20);
+        final Bundle bundle = mock(Bundle.class);
+        when(bundle.getSymbolicName()).thenReturn("blocking.bundle");
+        when(bundle.getBundleId()).thenReturn(42L);
+
+        watchdog = new StartupWatchdog(context, new Logger(), startLevel, new AtomicInteger(1), 500);
+        watchdog.start();
+        assertEquals(Boolean.FALSE, ManagementFactory.getPlatformMBeanServer()
+            .getAttribute(new ObjectName(StartupWatchdog.NAME), "Stalled"));
+        watchdog.bundleChanged(new BundleEvent(BundleEvent.STARTING, bundle));
+
+        final long end = System.currentTimeMillis() + 5000;
+        while (watchdog.getReportCount() == 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+        }
+        assertTrue(watchdog.isStalled());
+        assertEquals(1, watchdog.getReportCount());
+        assertNotNull(watchdog.getLastReport());
+
+        final String report = new String(Files.readAllBytes(new File(watchdog.getLastReport()).toPath()),
+            StandardCharsets.UTF_8);
+        assertTrue(report, report.contains("Start level: 20"));
+        assertTrue(report, report.contains("Pending requests to wait with the startup: 1"));
+        assertTrue(report, report.contains("blocking.bundle (id 42)"));
+        assertTrue(report, report.contains("Thread dump:"));
+        assertTrue(report, report.contains(Thread.currentThread().getName()));
+
+        // the startup goes on
+        watchdog.bundleChanged(new BundleEvent(BundleEvent.STARTED, bundle));
+        assertFalse(watchdog.isStalled());
+        assertEquals(0, watchdog.getPendingBundles().length);
+    }
+
+    @Test
+    public void testBackoff() {
+        final BundleContext context = mock(BundleContext.class);
+        when(context.getProperty(SharedConstants.SLING_HOME)).thenReturn(slingHome.getPath());
+        watchdog = new StartupWatchdog(context, new Logger(), mock(FrameworkStartLevel.class), new AtomicInteger(), 1000);
+        watchdog.startLevelChanged();
+        final long now = System.currentTimeMillis();
+
+        // reports after the window and then after doubling intervals
+        watchdog.check(now + 500);
+        assertEquals(0, watchdog.getReportCount());
+        watchdog.check(now + 1500);
+        assertEquals(1, watchdog.getReportCount());
+        watchdog.check(now + 3000);
+        assertEquals(1, watchdog.getReportCount());
+        watchdog.check(now + 3500);
+        assertEquals(2, watchdog.getReportCount());
+        watchdog.check(now + 7000);
+        assertEquals(2, watchdog.getReportCount());
+        watchdog.check(now + 7500);
+        assertEquals(3, watchdog.getReportCount());
+    }
+
+    @Test
+    public void testStopWithFramework() throws Exception {
+        final BundleContext context = mock(BundleContext.class);
+        final Bundle framework = mock(Bundle.class);
+        when(framework.getBundleId()).thenReturn(0L);
+
+        watchdog = new StartupWatchdog(context, new Logger(), mock(FrameworkStartLevel.class), new AtomicInteger(), 1000);
+        watchdog.start();
+        final ObjectName name = new ObjectName(StartupWatchdog.NAME);
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+
+        watchdog.bundleChanged(new BundleEvent(BundleEvent.STOPPING, framework));
+        verify(context).removeBundleListener(watchdog);
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
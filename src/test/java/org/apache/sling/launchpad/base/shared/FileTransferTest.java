@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.launchpad.base.shared;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileTransferTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private File testDir;
+
+    private byte[] data;
+
+    @Before
+    public void setup() throws IOException {
+        testDir = tmp.getRoot();
+
+        // more than a single buffer
+        data = new byte[200 * 1024 + 17];
+        new Random(42).nextBytes(data);
+    }
+
+    @Test
+    public void testCopyStream() throws IOException {
+        final File target = new File(testDir, "target.bin");
+        final long before = FileTransfer.getBytesCopied();
+        assertEquals(data.length, FileTransfer.copy(new ByteArrayInputStream(data), target));
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertTrue(FileTransfer.getBytesCopied() - before >= data.length);
+        assertTemporaryFilesRemoved();
+    }
+
+    @Test
+    public void testCopyFileAndFileStream() throws IOException {
+        final File source = new File(testDir, "source.bin");
+        Files.write(source.toPath(), data);
+
+        final File target = new File(testDir, "target.bin");
+        assertEquals(data.length, FileTransfer.copy(source, target));
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+
+        final File target2 = new File(testDir, "target2.bin");
+        final InputStream ins = new FileInputStream(source);
+        try {
+            assertEquals(data.length, FileTransfer.copy(ins, target2));
+        } finally {
+            ins.close();
+        }
+        assertArrayEquals(data, Files.readAllBytes(target2.toPath()));
+
+        final File target3 = new File(testDir, "target3.bin");
+        assertEquals(data.length, FileTransfer.copy(source.toURI().toURL(), target3));
+        assertArrayEquals(data, Files.readAllBytes(target3.toPath()));
+    }
+
+    @Test
+    public void testReplaceExisting() throws IOException {
+        final File target = new File(testDir, "target.bin");
+        Files.write(target.toPath(), "old contents".getBytes());
+        FileTransfer.copy(new ByteArrayInputStream(data), target);
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void testFailureKeepsTarget() throws IOException {
+        final File target = new File(testDir, "target.bin");
+        Files.write(target.toPath(), "old contents".getBytes());
+        final InputStream failing = new InputStream() {
+            private int count;
+
+            @Override
+            public int read() throws IOException {
+                if (++count > 1000) {
+                    throw new IOException("failure");
+                }
+                return 0;
+            }
+        };
+        try {
+            FileTransfer.copy(failing, target);
+            fail("Expected IOException");
+        } catch (final IOException expected) {
+            // expected
+        }
+        assertArrayEquals("old contents".getBytes(), Files.readAllBytes(target.toPath()));
+        assertTemporaryFilesRemoved();
+    }
+
+    @Test
+    public void testSyncPolicy() throws IOException {
+        assertEquals(FileTransfer.SyncPolicy.NONE, FileTransfer.SyncPolicy.fromString(null));
+        assertEquals(FileTransfer.SyncPolicy.NONE, FileTransfer.SyncPolicy.fromString("unknown"));
+        assertEquals(FileTransfer.SyncPolicy.FULL, FileTransfer.SyncPolicy.fromString(" Full "));
+
+        final FileTransfer.SyncPolicy old = FileTransfer.getSyncPolicy();
+        try {
+            FileTransfer.setSyncPolicy(FileTransfer.SyncPolicy.FULL);
+            final File target = new File(testDir, "target.bin");
+            FileTransfer.copy(new ByteArrayInputStream(data), target);
+            assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        } finally {
+            FileTransfer.setSyncPolicy(old);
+        }
+    }
+
+    private void assertTemporaryFilesRemoved() {
+        for (final String name : testDir.list()) {
+            assertFalse("Temporary file left: " + name, name.endsWith(".tmp"));
+        }
+    }
+}